@@ -0,0 +1,127 @@
+package networking;
+
+import error.CBGNException;
+import java.net.Socket;
+import java.util.HashMap;
+
+/**
+ * The BenchListener class is a server and client listener that ignores
+ * everything, so benchmarks only have to override the callbacks they time.
+ *
+ * @author Chris
+ */
+class BenchListener implements CBGNServerListener, CBGNClientListener {
+
+    @Override
+    public void onBegin() {
+    }
+
+    @Override
+    public void onConnection(String name) {
+    }
+
+    @Override
+    public void onMessage(HashMap<String, String> data) {
+    }
+
+    @Override
+    public void onUDPMessage(HashMap<String, String> data) {
+    }
+
+    @Override
+    public void onReliableUDPMessage(HashMap<String, String> data) {
+    }
+
+    @Override
+    public void onConnectionClosed(Socket socket, CBGNException reason) {
+    }
+
+    @Override
+    public void onSlowConnection(Socket socket, CBGNOverflowPolicy policy) {
+    }
+
+    @Override
+    public void onStopped(CBGNException except) {
+    }
+
+    @Override
+    public void onClientConnected() {
+    }
+
+    @Override
+    public void onClientMessage(HashMap<String, String> data) {
+    }
+
+    @Override
+    public void onClientUDPMessage(HashMap<String, String> data) {
+    }
+
+    @Override
+    public void onClientReliableUDPMessage(HashMap<String, String> data) {
+    }
+
+    @Override
+    public void onClientConnectionClosed(CBGNException reason) {
+    }
+
+    /**
+     * Returns a message like the position updates a game sends many times a
+     * second.
+     *
+     * @return a small message
+     */
+    static HashMap<String, String> smallMessage() {
+        HashMap<String, String> data = new HashMap<>();
+        data.put("type", "move");
+        data.put("entity", "1042");
+        data.put("x", "1534.25");
+        data.put("y", "-220.5");
+        data.put("heading", "1.5708");
+        data.put("name", "Zoë");
+        return data;
+    }
+
+    /**
+     * Returns a message like an inventory dump, a few kilobytes of JSON.
+     *
+     * @return a large message
+     */
+    static HashMap<String, String> largeMessage() {
+        HashMap<String, String> data = new HashMap<>();
+        data.put("type", "inventory");
+        for (int i = 0; i < 128; i++) {
+            data.put("slot" + i, "{\"item\":\"sword_" + (i % 17) + "\",\"count\":" + (i * 7 % 64) + ",\"durability\":0." + (i % 10) + "}");
+        }
+        return data;
+    }
+
+    /**
+     * Waits until the passed condition holds, failing if it takes too long.
+     *
+     * @param what what's being waited for, for the error message
+     * @param condition the condition to wait for
+     * @throws InterruptedException if interrupted while waiting
+     */
+    static void await(String what, Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.holds()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("Timed out waiting for " + what + ".");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Something to wait for.
+     */
+    interface Condition {
+
+        /**
+         * Returns whether the thing waited for has happened.
+         *
+         * @return true once it has
+         */
+        boolean holds();
+    }
+}
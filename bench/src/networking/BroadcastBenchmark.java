@@ -0,0 +1,90 @@
+package networking;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The BroadcastBenchmark class measures a TCP broadcast from a server to a
+ * number of clients in the same process, from the call to broadcastMessage
+ * until every client has received the message. Clients that haven't received
+ * it after a second are given up on, so one stuck client doesn't hang the
+ * run; that shows up as a very slow operation.
+ *
+ * @author Chris
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BroadcastBenchmark {
+
+    private static final int TCP_PORT = 22776;
+    private static final int UDP_PORT = 22777;
+    // each client gets its own UDP port, counting up from this one
+    private static final int CLIENT_UDP_PORT = 23000;
+
+    @Param({"1", "16", "64", "256"})
+    public int clients;
+
+    @Param({"false", "true"})
+    public boolean selector;
+
+    @Param({"small", "large"})
+    public String message;
+
+    private CBGNServer server;
+    private HashMap<String, String> data;
+    private volatile CountDownLatch received;
+
+    @Setup
+    public void setUp() throws Exception {
+        server = new CBGNServer(TCP_PORT, UDP_PORT, CLIENT_UDP_PORT);
+        server.registerListener(new BenchListener());
+        server.setSelectorEngine(selector);
+        new Thread(server, "bench-server").start();
+        Thread.sleep(200);
+
+        BenchListener listener = new BenchListener() {
+            @Override
+            public void onClientMessage(HashMap<String, String> data) {
+                received.countDown();
+            }
+        };
+        for (int i = 0; i < clients; i++) {
+            CBGNClient client = new CBGNClient(listener, InetAddress.getLoopbackAddress(), TCP_PORT, CLIENT_UDP_PORT + i, UDP_PORT);
+            new Thread(client, "bench-client-" + i).start();
+        }
+        BenchListener.await("every client to connect", new BenchListener.Condition() {
+            @Override
+            public boolean holds() {
+                return server.numberOfConnections() == clients;
+            }
+        });
+        data = "large".equals(message) ? BenchListener.largeMessage() : BenchListener.smallMessage();
+        received = new CountDownLatch(0);
+    }
+
+    @Benchmark
+    public boolean broadcast() throws IOException, InterruptedException {
+        CountDownLatch latch = new CountDownLatch(clients);
+        received = latch;
+        server.broadcastMessage(data);
+        return latch.await(1, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,74 @@
+package networking;
+
+import error.CBGNException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The CodecBenchmark class measures encoding and decoding a message with each
+ * codec, and encoding it as a UDP datagram, which is everything a message
+ * costs before it reaches a socket.
+ *
+ * @author Chris
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    @Param({"json", "binary"})
+    public String codecName;
+
+    @Param({"small", "large"})
+    public String message;
+
+    private CBGNCodec codec;
+    private HashMap<String, String> data;
+    private CBGNOutputBuffer out;
+    private byte[] frame;
+
+    @Setup
+    public void setUp() throws IOException {
+        codec = "binary".equals(codecName) ? CBGNCodec.BINARY : CBGNCodec.JSON;
+        data = "large".equals(message) ? BenchListener.largeMessage() : BenchListener.smallMessage();
+        out = new CBGNOutputBuffer(1024);
+        codec.encode(data, out);
+        frame = out.toByteArray();
+    }
+
+    @Benchmark
+    public int encode() throws IOException {
+        out.reset();
+        codec.encode(data, out);
+        return out.size();
+    }
+
+    @Benchmark
+    public HashMap<String, String> decode() throws CBGNException {
+        HashMap<String, String> decoded = new HashMap<>();
+        codec.decode(ByteBuffer.wrap(frame), decoded);
+        return decoded;
+    }
+
+    @Benchmark
+    public byte[] datagram() {
+        // a new event every time, so the cached datagram isn't reused
+        return new GameEvent(data).toDatagram();
+    }
+}
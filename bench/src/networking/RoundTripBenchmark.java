@@ -0,0 +1,95 @@
+package networking;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The RoundTripBenchmark class measures how long a message takes to reach a
+ * server on loopback and be echoed back to the client that sent it, over TCP
+ * and over UDP. The sample time mode reports latency percentiles.
+ *
+ * A UDP message that's lost on the way counts as a round trip of a second,
+ * which shows up at the top of the percentiles rather than hanging the run.
+ *
+ * @author Chris
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoundTripBenchmark {
+
+    private static final int TCP_PORT = 21776;
+    private static final int UDP_PORT = 21777;
+    private static final int CLIENT_UDP_PORT = 21778;
+
+    @Param({"false", "true"})
+    public boolean selector;
+
+    @Param({"json", "binary"})
+    public String codecName;
+
+    private CBGNClient client;
+    private HashMap<String, String> data;
+    private final BlockingQueue<HashMap<String, String>> tcpReplies = new ArrayBlockingQueue<>(1024);
+    private final BlockingQueue<HashMap<String, String>> udpReplies = new ArrayBlockingQueue<>(1024);
+
+    @Setup
+    public void setUp() throws Exception {
+        final CBGNServer server = new CBGNServer(TCP_PORT, UDP_PORT, CLIENT_UDP_PORT);
+        server.registerListener(new BenchListener());
+        server.setSelectorEngine(selector);
+        new Thread(server, "bench-server").start();
+        Thread.sleep(200);
+
+        client = new CBGNClient(new BenchListener() {
+            @Override
+            public void onClientMessage(HashMap<String, String> data) {
+                tcpReplies.offer(data);
+            }
+
+            @Override
+            public void onClientUDPMessage(HashMap<String, String> data) {
+                udpReplies.offer(data);
+            }
+        }, InetAddress.getLoopbackAddress(), TCP_PORT, CLIENT_UDP_PORT, UDP_PORT);
+        client.setCodec("binary".equals(codecName) ? CBGNCodec.BINARY : CBGNCodec.JSON);
+        new Thread(client, "bench-client").start();
+        BenchListener.await("the client to bind its UDP address", new BenchListener.Condition() {
+            @Override
+            public boolean holds() {
+                return client.isUDPBound();
+            }
+        });
+        data = BenchListener.smallMessage();
+    }
+
+    @Benchmark
+    public HashMap<String, String> tcp() throws IOException, InterruptedException {
+        client.sendMessage(data);
+        return tcpReplies.take();
+    }
+
+    @Benchmark
+    public HashMap<String, String> udp() throws IOException, InterruptedException {
+        client.sendUDPMessage(data);
+        return udpReplies.poll(1, TimeUnit.SECONDS);
+    }
+}
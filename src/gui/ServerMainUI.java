@@ -11,6 +11,7 @@ import java.util.logging.Logger;
 import javax.swing.JOptionPane;
 import networking.CBGNClient;
 import networking.CBGNClientListener;
+import networking.CBGNOverflowPolicy;
 import networking.CBGNServer;
 import networking.CBGNServerListener;
 
@@ -73,6 +74,11 @@ public class ServerMainUI extends javax.swing.JFrame implements CBGNServerListen
         log("Server received UDP: " + data.toString());
     }
 
+    @Override
+    public void onReliableUDPMessage(HashMap<String, String> data) {
+        log("Server received reliable UDP: " + data.toString());
+    }
+
     /**
      *
      * @param socket
@@ -83,6 +89,16 @@ public class ServerMainUI extends javax.swing.JFrame implements CBGNServerListen
         log("Connection has quit for reason: " + reason.getMessage());
     }
 
+    /**
+     *
+     * @param socket
+     * @param policy
+     */
+    @Override
+    public void onSlowConnection(Socket socket, CBGNOverflowPolicy policy) {
+        log("Connection can't keep up, policy: " + policy);
+    }
+
     /**
      *
      * @param except
@@ -109,6 +125,11 @@ public class ServerMainUI extends javax.swing.JFrame implements CBGNServerListen
         log("\tClient received UDP: " + data.toString());
     }
 
+    @Override
+    public void onClientReliableUDPMessage(HashMap<String, String> data) {
+        log("\tClient received reliable UDP: " + data.toString());
+    }
+
     @Override
     public void onClientConnectionClosed(CBGNException reason) {
         log("\tClient stopped with exception: "
@@ -0,0 +1,119 @@
+package networking;
+
+import error.CBGNException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * The CBGNBinaryCodec class frames each message as a varint body length
+ * followed by the body: a varint entry count, then for every entry a
+ * varint-length-prefixed UTF-8 key and value. A value's length is stored plus
+ * one so that 0 can stand for a null value.
+ *
+ * @author Chris
+ */
+final class CBGNBinaryCodec extends CBGNCodec {
+
+    @Override
+    public String getName() {
+        return "binary";
+    }
+
+    @Override
+    public void encode(Map<String, String> data, OutputStream out) throws IOException {
+        // the body length has to go first, so measure everything up front
+        int bodyLength = varintLength(data.size());
+        for (Map.Entry<String, String> entry : data.entrySet()) {
+            int keyLength = CBGNUTF8.length(String.valueOf(entry.getKey()));
+            bodyLength += varintLength(keyLength) + keyLength;
+            String value = entry.getValue();
+            int valueLength = value == null ? 0 : CBGNUTF8.length(value);
+            bodyLength += varintLength(value == null ? 0 : valueLength + 1) + valueLength;
+        }
+
+        writeVarint(bodyLength, out);
+        writeVarint(data.size(), out);
+        for (Map.Entry<String, String> entry : data.entrySet()) {
+            String key = String.valueOf(entry.getKey());
+            writeVarint(CBGNUTF8.length(key), out);
+            CBGNUTF8.write(key, out);
+            String value = entry.getValue();
+            if (value == null) {
+                writeVarint(0, out);
+            } else {
+                writeVarint(CBGNUTF8.length(value) + 1, out);
+                CBGNUTF8.write(value, out);
+            }
+        }
+    }
+
+    @Override
+    public boolean decode(ByteBuffer in, Map<String, String> data) throws CBGNException {
+        int start = in.position();
+        int bodyLength = readVarint(in);
+        if (bodyLength < 0 || in.remaining() < bodyLength) {
+            in.position(start);
+            return false;
+        }
+
+        int end = in.position() + bodyLength;
+        ByteBuffer body = in.duplicate();
+        body.limit(end);
+        in.position(end);
+
+        int count = readVarint(body);
+        if (count < 0) {
+            throw new CBGNException("Binary message has a truncated entry count.");
+        }
+        for (int i = 0; i < count; i++) {
+            int keyLength = readVarint(body);
+            if (keyLength < 0 || body.remaining() < keyLength) {
+                throw new CBGNException("Binary message has a truncated key.");
+            }
+            String key = CBGNUTF8.readKey(body, keyLength);
+            int valueLength = readVarint(body);
+            if (valueLength < 0 || body.remaining() < valueLength - 1) {
+                throw new CBGNException("Binary message has a truncated value.");
+            }
+            data.put(key, valueLength == 0 ? null : CBGNUTF8.read(body, valueLength - 1));
+        }
+        return true;
+    }
+
+    // the number of bytes the passed value takes up as a varint
+    static int varintLength(int value) {
+        int length = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    static void writeVarint(int value, OutputStream out) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    // returns the varint at the buffer's position, or -1 if the buffer ends
+    // before the varint does or it's too large for an int
+    static int readVarint(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (!in.hasRemaining()) {
+                return -1;
+            }
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value < 0 ? -1 : value;
+            }
+        }
+        return -1;
+    }
+}
@@ -4,11 +4,15 @@ import error.CBGNException;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.concurrent.Executor;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -27,7 +31,7 @@ public final class CBGNClient implements Runnable {
     private Socket tcpSocket;
     private PrintWriter out;
     private BufferedReader in;
-    private DatagramSocket udpSocket;
+    private DatagramChannel udpChannel;
 
     // the address and port for this client's connection to the server
     private final InetAddress address;
@@ -35,8 +39,56 @@ public final class CBGNClient implements Runnable {
 
     private CBGNConnection tcpConn, udpConn;
 
+    // the reliable UDP channel to the server, and what resends and acks on
+    // it while it has anything pending
+    private CBGNReliableChannel reliable;
+    private final CBGNReliableTicker reliableTicker;
+
+    // numbers the sequenced streams this client sends, and drops stale
+    // messages on the ones it receives
+    private final CBGNSequencedStreams sequenced;
+
+    // rebuilds the full state from the snapshots the server sends
+    private final CBGNSnapshotReceiver snapshots;
+
+    // the round trip time the server has measured to this client
+    private final CBGNHeartbeat heartbeat;
+
+    // where received events go instead of the listener, if that's been asked
+    // for
+    private CBGNEventQueue events;
+
     private CBGNClientConnectionAdapter adapter;
 
+    // runs the TCP and UDP connections
+    private Executor executor;
+
+    // the codec this client asks the server for when it connects
+    private CBGNCodec codec;
+    // whether this client asks the server for key dictionaries
+    private boolean keyDictionary;
+    // the compression this client asks the server for, or null, and how big
+    // a message to the server has to be before it's compressed
+    private CBGNCompression compression;
+    private int compressionThreshold;
+
+    // whether messages wait for flush() before being written, and how many
+    // bytes may be batched up before writing anyway
+    private boolean batching;
+    private int batchThreshold;
+
+    // the largest datagram this client accepts
+    private int maxDatagramSize;
+
+    // whether this client says hello to get a session token even when it has
+    // nothing else to negotiate, and whether the server has bound its UDP
+    // address to that session
+    private boolean udpBinding;
+    private volatile boolean udpBound;
+
+    private static final int BIND_ATTEMPTS = 20;
+    private static final long BIND_INTERVAL = 250;
+
     // a listener this client will provide callbacks to when appropriate.
     protected CBGNClientListener listener;
 
@@ -61,6 +113,16 @@ public final class CBGNClient implements Runnable {
         this.tcpPort = tcpPort;
         this.udpPort = udpPort;
         this.serverUDPPort = serverUDPPort;
+        this.executor = CBGNThreadPerTaskExecutor.INSTANCE;
+        this.codec = CBGNCodec.JSON;
+        this.keyDictionary = true;
+        this.compressionThreshold = CBGNConnection.DEFAULT_COMPRESSION_THRESHOLD;
+        this.batchThreshold = CBGNServer.DEFAULT_BATCH_THRESHOLD;
+        this.maxDatagramSize = CBGNConnection.DEFAULT_MAX_DATAGRAM_SIZE;
+        this.sequenced = new CBGNSequencedStreams();
+        this.snapshots = new CBGNSnapshotReceiver();
+        this.heartbeat = new CBGNHeartbeat();
+        this.reliableTicker = new CBGNReliableTicker();
     }
 
     /**
@@ -75,6 +137,195 @@ public final class CBGNClient implements Runnable {
         this.listener = listener;
     }
 
+    /**
+     * Sets whether this client queues the messages it receives instead of
+     * handing them to its listener. With the event queue on, messages and
+     * the connection closing become CBGNEvents on the queue returned by
+     * getEventQueue(), for the game to take off from its own thread. This
+     * must be set before the client is run.
+     *
+     * @param eventQueue true to queue events instead of calling the listener
+     */
+    public void setEventQueue(boolean eventQueue) {
+        this.events = eventQueue ? new CBGNEventQueue() : null;
+    }
+
+    /**
+     * Returns the queue received events are put on, or null if this client
+     * hands them to its listener instead.
+     *
+     * @return the event queue, or null
+     */
+    public CBGNEventQueue getEventQueue() {
+        return events;
+    }
+
+    /**
+     * Sets the Executor this client runs its TCP and UDP connections on. By
+     * default each connection is started on a new Thread; passing an executor
+     * that runs tasks on virtual threads lets many clients share one process
+     * cheaply. This must be set before the client is run.
+     *
+     * @param executor the Executor to run connections on
+     */
+    public void setExecutor(Executor executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("Executor cannot be null.");
+        }
+        this.executor = executor;
+    }
+
+    /**
+     * Sets the codec this client asks the server to use for TCP messages. The
+     * default is JSON, which every server understands without asking; any
+     * other codec is negotiated when the client connects, and the client falls
+     * back to JSON if the server doesn't have it. This must be set before the
+     * client is run.
+     *
+     * @param codec the codec to ask for
+     */
+    public void setCodec(CBGNCodec codec) {
+        if (codec == null) {
+            throw new IllegalArgumentException("Codec cannot be null.");
+        }
+        this.codec = codec;
+    }
+
+    /**
+     * Sets whether this client asks the server to replace TCP map keys with
+     * short references once they've been sent a few times, in both
+     * directions. It's on by default, and only used if the server agrees.
+     * Asking for them means saying hello when connecting, which servers from
+     * before the handshake never answer; to talk to those without waiting,
+     * turn this off and use JSON without compression. This must be set
+     * before the client is run.
+     *
+     * @param keyDictionary true to ask for key dictionaries
+     */
+    public void setKeyDictionary(boolean keyDictionary) {
+        this.keyDictionary = keyDictionary;
+    }
+
+    /**
+     * Sets the compression this client asks the server for, or null to not
+     * ask for any, which is the default. Once the server agrees, large TCP
+     * messages are compressed in both directions. This must be set before
+     * the client is run.
+     *
+     * @param compression the compression to ask for, or null
+     */
+    public void setCompression(CBGNCompression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Sets whether this client says hello to the server even when it uses
+     * JSON without key dictionaries or compression, which is off by default.
+     * Such a client otherwise skips the handshake, so it works with servers
+     * from before the handshake, but it gets no session token: its UDP
+     * address is never bound, and the server never pings it. Turn this on to
+     * get both from a server that understands the hello; servers older than
+     * the handshake hand the hello to their listener as an ordinary message,
+     * and the client waits for a welcome for up to five seconds before going
+     * on without one. This must be set before the client is run.
+     *
+     * @param udpBinding true to always say hello
+     */
+    public void setUDPBinding(boolean udpBinding) {
+        this.udpBinding = udpBinding;
+    }
+
+    /**
+     * Returns the compression this client is using for TCP messages, or null
+     * if it isn't compressing them. Until the client has connected, this is
+     * the compression it will ask for.
+     *
+     * @return the compression for TCP messages, or null
+     */
+    public CBGNCompression getCompression() {
+        return tcpConn == null ? compression : tcpConn.getCompression();
+    }
+
+    /**
+     * Sets how big a TCP message has to be, in bytes, before this client
+     * compresses it, if compression was agreed on. The default is 1 KiB.
+     *
+     * @param compressionThreshold the smallest message to compress, at least 1
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        if (compressionThreshold < 1) {
+            throw new IllegalArgumentException("Compression threshold must be at least 1.");
+        }
+        this.compressionThreshold = compressionThreshold;
+        if (tcpConn != null) {
+            tcpConn.setCompressionThreshold(compressionThreshold);
+        }
+    }
+
+    /**
+     * Returns the codec this client is using for TCP messages. Until the
+     * client has connected, this is the codec it will ask for.
+     *
+     * @return the codec for TCP messages
+     */
+    public CBGNCodec getCodec() {
+        return tcpConn == null ? codec : tcpConn.getCodec();
+    }
+
+    /**
+     * Sets whether this client batches its TCP output. With batching on,
+     * messages wait until flush() is called (or until more than the batch
+     * threshold is waiting) and are then written to the server together.
+     *
+     * @param batching true to batch output until flush() is called
+     */
+    public void setBatching(boolean batching) {
+        this.batching = batching;
+        if (tcpConn != null) {
+            tcpConn.setBatching(batching, batchThreshold);
+        }
+    }
+
+    /**
+     * Sets how many bytes may be waiting before a batching client writes them
+     * without waiting for flush(). The default is 16 KiB.
+     *
+     * @param batchThreshold the most bytes to hold back, at least 1
+     */
+    public void setBatchThreshold(int batchThreshold) {
+        if (batchThreshold < 1) {
+            throw new IllegalArgumentException("Batch threshold must be at least 1.");
+        }
+        this.batchThreshold = batchThreshold;
+        if (tcpConn != null) {
+            tcpConn.setBatching(batching, batchThreshold);
+        }
+    }
+
+    /**
+     * Sets the largest datagram this client accepts over UDP; bigger ones are
+     * dropped. The default is 1472 bytes, the most that fits in a single
+     * Ethernet frame. This must be set before the client is run.
+     *
+     * @param maxDatagramSize the size in bytes, from 1 to 65507
+     */
+    public void setMaxDatagramSize(int maxDatagramSize) {
+        if (maxDatagramSize < 1 || maxDatagramSize > CBGNConnection.MAX_DATAGRAM_SIZE) {
+            throw new IllegalArgumentException("Maximum datagram size must be from 1 to " + CBGNConnection.MAX_DATAGRAM_SIZE + ".");
+        }
+        this.maxDatagramSize = maxDatagramSize;
+    }
+
+    /**
+     * Writes every TCP message sent since the last flush to the server. This
+     * only does anything if batching is on.
+     */
+    public void flush() {
+        if (tcpConn != null) {
+            tcpConn.flush();
+        }
+    }
+
     /**
      * Starts the TCP and UDP parts of the CBGNClient, opening a socket and
      * communicating as appropriate.
@@ -83,13 +334,63 @@ public final class CBGNClient implements Runnable {
     public final void run() {
         try {
             tcpSocket = new Socket(address.getHostAddress(), getTcpPort());
+            if (batching) {
+                tcpSocket.setTcpNoDelay(true);
+            }
             adapter = new CBGNClientConnectionAdapter(this);
-            tcpConn = new CBGNConnection(adapter, tcpSocket);
-            new Thread(tcpConn).start();
+            CBGNConnection conn = new CBGNConnection(adapter, tcpSocket);
+            // a JSON client with nothing to negotiate stays silent, as it
+            // always has, unless it wants a session token
+            if (udpBinding || codec != CBGNCodec.JSON || keyDictionary || compression != null) {
+                conn.handshake(codec, keyDictionary, compression);
+            }
+            conn.setBatching(batching, batchThreshold);
+            conn.setCompressionThreshold(compressionThreshold);
+            tcpConn = conn;
+            executor.execute(tcpConn);
             
-            udpSocket = new DatagramSocket(udpPort);
-            udpConn = new CBGNConnection(adapter, udpSocket);
-            new Thread(udpConn).start();
+            udpChannel = DatagramChannel.open();
+            udpChannel.socket().bind(new InetSocketAddress(udpPort));
+            udpConn = new CBGNConnection(adapter, udpChannel);
+            udpConn.setMaxDatagramSize(maxDatagramSize);
+            reliable = new CBGNReliableChannel(reliableTicker) {
+                @Override
+                protected void transmit(HashMap<String, String> datagram) throws IOException {
+                    udpConn.sendUDPMessage(address, getServerUDPPort(), datagram);
+                }
+
+                @Override
+                protected void overflowed(boolean first) {
+                    // sendReliableUDPMessage throws instead
+                }
+
+                @Override
+                protected void gaveUp() {
+                    Logger.getLogger(CBGNClient.class.getName()).log(Level.WARNING,
+                            "The server stopped acknowledging reliable UDP messages, disconnecting.");
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                tcpConn.close("Reliable UDP timed out");
+                            } catch (IOException e) {
+                                Logger.getLogger(CBGNClient.class.getName()).log(Level.WARNING, null, e);
+                            }
+                        }
+                    });
+                }
+            };
+            executor.execute(udpConn);
+            executor.execute(reliableTicker);
+
+            if (tcpConn.getSessionToken() != null) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        bindUDP();
+                    }
+                });
+            }
         } catch (UnknownHostException e) {
             Logger.getLogger(CBGNClient.class.getName()).log(Level.SEVERE, null, e);
         } catch (IOException | IllegalArgumentException e) {
@@ -97,6 +398,166 @@ public final class CBGNClient implements Runnable {
         }
     }
 
+    // handles a reliable message or ack from the server, passing on whatever
+    // is now ready in order
+    void onReliableDatagram(HashMap<String, String> data) {
+        ArrayList<HashMap<String, String>> delivered = new ArrayList<>(1);
+        reliable.receive(data, delivered);
+        for (HashMap<String, String> message : delivered) {
+            handOn(CBGNEvent.Type.RELIABLE_UDP_MESSAGE, message);
+        }
+    }
+
+    // handles a message from the server on a sequenced stream, passing it on
+    // unless a newer one has already arrived
+    void onSequencedDatagram(HashMap<String, String> data) {
+        HashMap<String, String> message = sequenced.receive(data);
+        if (message != null) {
+            handOn(CBGNEvent.Type.UDP_MESSAGE, message);
+        }
+    }
+
+    // handles a state snapshot from the server, acknowledging it so later
+    // ones can be sent as deltas against it, and passing on the full state
+    // unless a newer snapshot has already been passed on
+    void onSnapshotDatagram(HashMap<String, String> data) {
+        int number = snapshots.receive(data);
+        if (number < 0) {
+            return;
+        }
+        HashMap<String, String> ack = new HashMap<>();
+        ack.put(CBGNProtocol.CONTROL, CBGNProtocol.SNAPSHOT_ACK);
+        ack.put(CBGNProtocol.SEQ, Integer.toString(number));
+        try {
+            udpConn.sendUDPMessage(address, getServerUDPPort(), ack);
+        } catch (IOException e) {
+            Logger.getLogger(CBGNClient.class.getName()).log(Level.WARNING, null, e);
+        }
+        HashMap<String, String> state = snapshots.take(number);
+        if (state != null) {
+            handOn(CBGNEvent.Type.UDP_MESSAGE, state);
+        }
+    }
+
+    /**
+     * Hands a received message to the listener, or puts it on the event queue
+     * if there is one.
+     *
+     * @param type MESSAGE, UDP_MESSAGE or RELIABLE_UDP_MESSAGE
+     * @param data the message
+     */
+    void handOn(CBGNEvent.Type type, HashMap<String, String> data) {
+        if (events != null) {
+            events.add(new CBGNEvent(type, 0, data, null));
+            return;
+        }
+        switch (type) {
+            case MESSAGE:
+                listener.onClientMessage(data);
+                break;
+            case UDP_MESSAGE:
+                listener.onClientUDPMessage(data);
+                break;
+            case RELIABLE_UDP_MESSAGE:
+                listener.onClientReliableUDPMessage(data);
+                break;
+            default:
+                throw new IllegalArgumentException("Not a message event: " + type);
+        }
+    }
+
+    /**
+     * Tells the listener the connection closed, or puts that on the event
+     * queue if there is one.
+     *
+     * @param reason why the connection closed
+     */
+    void handOnClosed(String reason) {
+        reliableTicker.stop();
+        if (events != null) {
+            events.add(new CBGNEvent(CBGNEvent.Type.CLOSED, 0, null, reason));
+        } else {
+            listener.onClientConnectionClosed(new CBGNException(reason));
+        }
+    }
+
+    // tells the server which address this client's datagrams come from, so
+    // that it can tell them apart from other clients on the same host or
+    // behind the same NAT. Datagrams can be lost, so the bind is resent until
+    // the server confirms it over TCP.
+    private void bindUDP() {
+        HashMap<String, String> bind = new HashMap<>();
+        bind.put(CBGNProtocol.CONTROL, CBGNProtocol.BIND);
+        bind.put(CBGNProtocol.TOKEN, tcpConn.getSessionToken());
+        try {
+            for (int i = 0; i < BIND_ATTEMPTS && !udpBound; i++) {
+                udpConn.sendUDPMessage(address, getServerUDPPort(), bind);
+                Thread.sleep(BIND_INTERVAL);
+            }
+        } catch (IOException e) {
+            Logger.getLogger(CBGNClient.class.getName()).log(Level.SEVERE, null, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!udpBound) {
+            Logger.getLogger(CBGNClient.class.getName()).log(Level.WARNING,
+                    "The server never confirmed this client's UDP address.");
+        }
+    }
+
+    /**
+     * Returns whether the server has confirmed which address this client's
+     * UDP datagrams come from. Until it has, UDP from the server is sent to
+     * this client's host on the server's broadcast port. A client that never
+     * said hello is never bound; see setUDPBinding().
+     *
+     * @return true once this client's UDP address is bound
+     */
+    public boolean isUDPBound() {
+        return udpBound;
+    }
+
+    // called when the server confirms this client's UDP address
+    void onUDPBound() {
+        udpBound = true;
+    }
+
+    // answers the server's ping straight away, even when batching, since
+    // the time it waits is counted in the round trip
+    void onPing(HashMap<String, String> ping) {
+        heartbeat.pinged(ping);
+        try {
+            tcpConn.sendMessage(CBGNHeartbeat.pong(ping));
+            tcpConn.flush();
+        } catch (IOException e) {
+            // the connection is closing; its reading side will notice
+        }
+    }
+
+    /**
+     * Returns the smoothed round trip time to the server, as the server
+     * measured it from its heartbeat. It's updated with each ping, so about
+     * once a second by default. A client that never said hello isn't pinged,
+     * so this stays at -1 for it.
+     *
+     * @return the round trip time in milliseconds, or -1 if the server
+     * hasn't measured it yet
+     */
+    public float getRoundTripTime() {
+        return heartbeat.getRoundTripTime();
+    }
+
+    /**
+     * Returns how much the round trip time to the server varies from one
+     * heartbeat to the next.
+     *
+     * @return the jitter in milliseconds, or -1 if the server hasn't
+     * measured it yet
+     */
+    public float getJitter() {
+        return heartbeat.getJitter();
+    }
+
     /**
      * Sends the passed HashMap of data to the server.
      *
@@ -104,7 +565,7 @@ public final class CBGNClient implements Runnable {
      * @throws java.io.IOException if there's a problem sending the message
      */
     public void sendMessage(HashMap<String, String> data) throws IOException {
-        tcpConn.sendMessage(new GameEvent(data).toString());
+        tcpConn.sendMessage(data);
     }
 
     /**
@@ -114,7 +575,38 @@ public final class CBGNClient implements Runnable {
      * @throws java.io.IOException if there's a problem sending the message
      */
     public void sendUDPMessage(HashMap<String, String> data) throws IOException {
-        udpConn.sendUDPMessage(address, getServerUDPPort(), new GameEvent(data).toString());
+        udpConn.sendUDPMessage(address, getServerUDPPort(), data);
+    }
+
+    /**
+     * Sends the passed HashMap of data to the server over UDP as the next
+     * message on the passed stream. The server drops it if it has already had
+     * a newer message on the same stream from this client, so it's suited to
+     * state where only the latest value matters, like positions.
+     *
+     * @param stream the name of the stream
+     * @param data the data to be sent to the server
+     * @throws java.io.IOException if there's a problem sending the message
+     */
+    public void sendSequencedUDPMessage(String stream, HashMap<String, String> data) throws IOException {
+        udpConn.sendUDPMessage(address, getServerUDPPort(), sequenced.wrap(stream, data));
+    }
+
+    /**
+     * Sends the passed HashMap of data to the server reliably over UDP. It
+     * arrives exactly once and after every reliable message sent before it,
+     * without waiting on TCP traffic. At most 256 reliable messages can be
+     * waiting for the server to acknowledge them; past that, sending fails
+     * until some are.
+     *
+     * @param data the data to be sent to the server
+     * @throws java.io.IOException if there's a problem sending the message,
+     * or too many are still unacknowledged
+     */
+    public void sendReliableUDPMessage(HashMap<String, String> data) throws IOException {
+        if (!reliable.send(data)) {
+            throw new IOException("Too many reliable UDP messages are waiting to be acknowledged.");
+        }
     }
 
     /**
@@ -152,16 +644,36 @@ class CBGNClientConnectionAdapter extends CBGNConnectionListener {
 
     @Override
     protected void onMessage(CBGNConnection conn, HashMap<String, String> data) {
-        client.listener.onClientMessage(data);
+        client.handOn(CBGNEvent.Type.MESSAGE, data);
     }
 
     @Override
     protected void onUDPMessage(CBGNConnection conn, HashMap<String, String> data) {
-        client.listener.onClientUDPMessage(data);
+        client.handOn(CBGNEvent.Type.UDP_MESSAGE, data);
     }
 
     @Override
     protected void onConnectionClosed(CBGNConnection conn, String reason) {
-        client.listener.onClientConnectionClosed(new CBGNException(reason));
+        client.handOnClosed(reason);
+    }
+
+    @Override
+    protected void onControlMessage(CBGNConnection conn, String type, HashMap<String, String> data) {
+        if (CBGNProtocol.BOUND.equals(type)) {
+            client.onUDPBound();
+        } else if (CBGNProtocol.PING.equals(type)) {
+            client.onPing(data);
+        }
+    }
+
+    @Override
+    protected void onUDPControlMessage(CBGNConnection conn, SocketAddress source, String type, HashMap<String, String> data) {
+        if (CBGNProtocol.RELIABLE.equals(type) || CBGNProtocol.ACK.equals(type)) {
+            client.onReliableDatagram(data);
+        } else if (CBGNProtocol.SEQUENCED.equals(type)) {
+            client.onSequencedDatagram(data);
+        } else if (CBGNProtocol.SNAPSHOT.equals(type)) {
+            client.onSnapshotDatagram(data);
+        }
     }
 }
@@ -31,6 +31,15 @@ public interface CBGNClientListener {
      */
     public void onClientUDPMessage(HashMap<String, String> data);
 
+    /**
+     * Called by the client when it receives a message the server sent
+     * reliably over UDP. These arrive exactly once and in the order the
+     * server sent them.
+     *
+     * @param data the data received from the server
+     */
+    public void onClientReliableUDPMessage(HashMap<String, String> data);
+
     /**
      * Called when the client's connection is closed for some reason. The reason
      * is detailed in the parameters.
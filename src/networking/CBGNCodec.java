@@ -0,0 +1,66 @@
+package networking;
+
+import error.CBGNException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * The CBGNCodec class turns the String, String maps sent between servers and
+ * clients into framed bytes on a TCP stream and back again. Every connection
+ * starts out with the JSON codec; a client can ask for a different one when it
+ * connects, and the server switches over if it has a codec registered under
+ * the same name.
+ *
+ * Codecs are shared between connections, so implementations must not keep
+ * per-message state in fields.
+ *
+ * @author Chris
+ */
+public abstract class CBGNCodec {
+
+    /**
+     * The default codec, one JSON object per line. This is what every
+     * connection speaks before (and unless) another codec is negotiated.
+     */
+    public static final CBGNCodec JSON = new CBGNJSONCodec();
+
+    /**
+     * A compact binary codec, a varint length followed by a table of
+     * length-prefixed UTF-8 keys and values.
+     */
+    public static final CBGNCodec BINARY = new CBGNBinaryCodec();
+
+    /**
+     * Returns the name this codec is negotiated by. Both ends of a connection
+     * must agree on what a name means.
+     *
+     * @return the name of this codec
+     */
+    public abstract String getName();
+
+    /**
+     * Writes the passed data to the passed stream as a single frame. A frame
+     * must never start with a zero byte, since that marks a compressed frame.
+     *
+     * @param data the data to encode
+     * @param out the stream to write the frame to
+     * @throws IOException if writing to the stream fails
+     */
+    public abstract void encode(Map<String, String> data, OutputStream out) throws IOException;
+
+    /**
+     * Reads a single frame from the passed buffer into the passed map. If the
+     * buffer doesn't hold a complete frame yet, nothing is consumed and false
+     * is returned so the caller can read more. A complete frame that can't be
+     * decoded is consumed before the exception is thrown, so the caller can
+     * carry on with the next one.
+     *
+     * @param in the buffer to read from, positioned at the start of a frame
+     * @param data the map to put the decoded data into
+     * @return true if a frame was read, false if more bytes are needed
+     * @throws CBGNException if the frame is malformed
+     */
+    public abstract boolean decode(ByteBuffer in, Map<String, String> data) throws CBGNException;
+}
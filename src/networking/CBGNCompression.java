@@ -0,0 +1,41 @@
+package networking;
+
+/**
+ * The CBGNCompression class is a way of compressing large TCP messages that a
+ * client and server can agree on by name when the client connects. Once both
+ * ends agree, messages at least as big as the sender's compression threshold
+ * are compressed, as long as that makes them smaller; smaller messages are
+ * sent exactly as before.
+ *
+ * A compressed message is written as a zero byte, the varint length of the
+ * compressed bytes and then the compressed bytes themselves, which hold one
+ * complete frame in the connection's codec. Codecs never start a frame with a
+ * zero byte, so the receiving end can tell the two apart.
+ *
+ * Compressions are shared between connections; the state for each connection
+ * lives in the CBGNCompressor it hands out.
+ *
+ * @author Chris
+ */
+public abstract class CBGNCompression {
+
+    /**
+     * Deflate, as built into the JDK, without the zlib header.
+     */
+    public static final CBGNCompression DEFLATE = new CBGNDeflateCompression();
+
+    /**
+     * Returns the name this compression is negotiated by. Both ends of a
+     * connection must agree on what a name means.
+     *
+     * @return the name of this compression
+     */
+    public abstract String getName();
+
+    /**
+     * Returns a new compressor for a single connection.
+     *
+     * @return a compressor holding one connection's state
+     */
+    public abstract CBGNCompressor newCompressor();
+}
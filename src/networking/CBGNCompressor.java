@@ -0,0 +1,76 @@
+package networking;
+
+import error.CBGNException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * The CBGNCompressor class compresses and decompresses the messages of a
+ * single connection, so it can hold on to whatever state that takes from one
+ * message to the next instead of allocating it every time. Compressing only
+ * happens while the connection's write lock is held and decompressing only on
+ * its reading thread, but the two may happen at the same time.
+ *
+ * @author Chris
+ */
+public abstract class CBGNCompressor {
+
+    // the compressed bytes of the frame being written, before they're framed
+    private final CBGNOutputBuffer scratch = new CBGNOutputBuffer(1024);
+
+    /**
+     * Compresses the passed bytes, writing the result to the passed stream.
+     *
+     * @param in the array holding the bytes to compress
+     * @param off the index of the first byte
+     * @param len the number of bytes
+     * @param out the stream to write the compressed bytes to
+     * @throws IOException if compressing or writing fails
+     */
+    public abstract void compress(byte[] in, int off, int len, OutputStream out) throws IOException;
+
+    /**
+     * Decompresses the passed bytes. The buffer returned may be reused by the
+     * next call.
+     *
+     * @param in the array holding the bytes to decompress
+     * @param off the index of the first byte
+     * @param len the number of bytes
+     * @param limit the most bytes the result may hold
+     * @return a buffer holding the decompressed bytes
+     * @throws CBGNException if the bytes are corrupt or decompress to more
+     * than the limit
+     */
+    public abstract ByteBuffer decompress(byte[] in, int off, int len, int limit) throws CBGNException;
+
+    /**
+     * Releases whatever this compressor holds on to. It isn't used again
+     * afterwards.
+     */
+    public void end() {
+    }
+
+    /**
+     * Writes the passed frame to the passed buffer as a compressed frame, if
+     * compressing it makes it smaller.
+     *
+     * @param frame the frame to compress, which must be backed by an array
+     * @param out the buffer to write the compressed frame to
+     * @return true if the compressed frame was written, false if compressing
+     * didn't help and out was left alone
+     * @throws IOException if compressing fails
+     */
+    final boolean compressFrame(ByteBuffer frame, CBGNOutputBuffer out) throws IOException {
+        scratch.reset();
+        compress(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining(), scratch);
+        int length = scratch.size();
+        if (1 + CBGNBinaryCodec.varintLength(length) + length >= frame.remaining()) {
+            return false;
+        }
+        out.write(0);
+        CBGNBinaryCodec.writeVarint(length, out);
+        scratch.writeTo(out);
+        return true;
+    }
+}
@@ -1,18 +1,27 @@
 package networking;
 
-import java.io.BufferedReader;
+import error.CBGNException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
 
 /**
  *
@@ -23,17 +32,147 @@ class CBGNConnection implements Runnable {
     // the socket for this Connection
     protected Socket clientSocket;
     protected DatagramSocket udpSocket;
-    private PrintStream out;
-    private BufferedReader in;
+    private DatagramChannel udpChannel;
+    private OutputStream out;
+    private InputStream in;
     // the name of this Connection. For now it's just the toString() of its socket
     public String name;
+    // the ID a server gave this Connection when it was registered, and the
+    // address its UDP datagrams come from and are sent to
+    private volatile int id;
+    private volatile SocketAddress udpAddress;
+    // the secret that ties this Connection's UDP datagrams to it. The server
+    // makes one up when it registers the Connection and sends it to the
+    // client in the welcome.
+    private volatile String sessionToken;
+    // the reliable UDP channel to this Connection's peer, if it has one
+    private volatile CBGNReliableChannel reliableChannel;
+    // the sequenced UDP streams received from this Connection's peer
+    private volatile CBGNSequencedStreams sequencedStreams;
+    // turns the state snapshots sent to this Connection's peer into deltas
+    private volatile CBGNSnapshotSender snapshotSender;
+    // measures the round trip time to this Connection's peer
+    private volatile CBGNHeartbeat heartbeat;
+    // when anything was last received from the peer, from System.nanoTime()
+    private volatile long lastHeard;
 
     // a listener for this connection, typically the thing (server, client) that 
     // created this connection in the first place.
     private CBGNConnectionListener listener;
 
-    // an internal parser we store so we don't have to continuously instantiate one
-    private JSONParser parser;
+    // the codec TCP messages are framed with. Every connection starts out on
+    // JSON; it only changes during the hello/welcome handshake, while holding
+    // the write lock.
+    private volatile CBGNCodec codec;
+    // the codec a client asked for in its hello and is waiting to hear back
+    // on. Connections driven by a selector loop read the welcome on the
+    // loop's thread, so this is volatile.
+    private volatile CBGNCodec pendingCodec;
+    // whether a client asked for the key dictionary in its hello
+    private boolean pendingKeys;
+
+    // the dictionary keys sent to the peer are replaced from, and how many of
+    // its IDs the peer has been told about. Both are null/0 unless the
+    // handshake agreed on a dictionary, and are guarded by the write lock.
+    private CBGNKeyDictionary sendKeys;
+    private int definedKeys;
+    // the keys the peer has defined; only used by the reading thread
+    private CBGNKeyDictionary receiveKeys;
+
+    // the compression a client asked for in its hello
+    private CBGNCompression pendingCompression;
+    // the compression agreed on in the handshake, or null, and this
+    // Connection's state for it. Frames at least compressionThreshold bytes
+    // long are compressed when sent; compressed frames are accepted whenever
+    // a compressor is set. Guarded by the write lock, except that the
+    // reading thread also reads the compressor.
+    private CBGNCompression compression;
+    private volatile CBGNCompressor compressor;
+    private int compressionThreshold;
+    // holds compressed frames while they're written
+    private CBGNOutputBuffer compressBuffer;
+
+    // received bytes that haven't been decoded into messages yet. Between
+    // reads the buffer is left ready to be read into.
+    private ByteBuffer readBuffer;
+
+    // held while encoding and writing, so messages don't interleave
+    private final Object writeLock;
+    // messages are encoded here before being written, so that each one goes
+    // out in a single write. Only touched while holding the write lock.
+    private CBGNOutputBuffer outputBuffer;
+
+    // frames waiting to be written, oldest first. On a channel these are
+    // flushed by the selector loop, otherwise by a writer task on the writer
+    // executor. Guarded by the write lock.
+    private ArrayDeque<ByteBuffer> outbound;
+    private int outboundCapacity;
+    private CBGNOverflowPolicy overflowPolicy;
+    // runs the writer task; when this is null, blocking writes happen on the
+    // sending thread instead of going through the queue
+    private Executor writerExecutor;
+    private boolean writerStarted;
+    // set when the queue first overflows, and cleared once it drains, so the
+    // listener hears about each backlog once
+    private boolean overflowing;
+    // the number of bytes left to write in the outbound queue
+    private int queuedBytes;
+
+    // whether queued frames wait for an explicit flush (or for the queue to
+    // pass the batch threshold) before they're written
+    private boolean batching;
+    private int batchThreshold;
+    // queued frames are copied together here so a batch goes out in a single
+    // write. Only used by whoever is draining the queue.
+    private final CBGNOutputBuffer batchBuffer;
+    // the frames of a gathering write on a channel
+    private ByteBuffer[] gather;
+
+    // the non-blocking channel for this Connection, if it's driven by a
+    // CBGNSelectorLoop instead of its own thread
+    private SocketChannel channel;
+    private CBGNSelectorLoop loop;
+    private SelectionKey key;
+
+    private volatile boolean closed;
+
+    // the rooms this Connection is in, replaced whenever it joins or leaves
+    private volatile CBGNRoom[] rooms;
+
+    // the server metrics this Connection counts into, or null if it isn't a
+    // server's, and its own counts. The received counts are only written by
+    // the reading thread and the sent counts only while holding the write
+    // lock.
+    private volatile CBGNMetrics metrics;
+    private volatile long messagesIn;
+    private volatile long bytesIn;
+    private volatile long messagesOut;
+    private volatile long bytesOut;
+    private volatile long messagesDropped;
+
+    // the initial size of the read buffer, and how large it may grow to hold a
+    // single message
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int MAX_MESSAGE_SIZE = 1 << 20;
+    private static final int OUTPUT_BUFFER_SIZE = 1024;
+    // the most bytes copied into a single write, and the most frames handed
+    // to a single gathering write
+    private static final int MAX_BATCH_WRITE = 1 << 16;
+    private static final int MAX_GATHER = 64;
+
+    // how long a client waits for the server to answer its hello
+    private static final int HANDSHAKE_TIMEOUT = 5000;
+
+    // messages smaller than this many bytes aren't compressed by default
+    static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+
+    // the largest datagram received by default, which fits in a single
+    // Ethernet frame, and the largest a UDP datagram can be at all
+    static final int DEFAULT_MAX_DATAGRAM_SIZE = 1472;
+    static final int MAX_DATAGRAM_SIZE = 65507;
+
+    // the largest datagram this Connection accepts; bigger ones are dropped
+    private int maxDatagramSize;
 
     /**
      * Creates a Connection around the passed Socket.
@@ -51,29 +190,61 @@ class CBGNConnection implements Runnable {
         this.listener = listener;
         this.clientSocket = socket;
         this.name = clientSocket.toString();
+        this.codec = CBGNCodec.JSON;
+        this.readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        this.writeLock = new Object();
+        this.outputBuffer = new CBGNOutputBuffer(OUTPUT_BUFFER_SIZE);
+        this.outbound = new ArrayDeque<>();
+        this.batchBuffer = new CBGNOutputBuffer(OUTPUT_BUFFER_SIZE);
+        this.outboundCapacity = Integer.MAX_VALUE;
+        this.overflowPolicy = CBGNOverflowPolicy.DISCONNECT;
+        this.compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+        this.rooms = new CBGNRoom[0];
+        this.lastHeard = System.nanoTime();
+    }
 
-        parser = new JSONParser();
+    /**
+     * Creates a Connection around the passed SocketChannel. Connections
+     * created this way are not run on their own thread, instead they're
+     * registered with a CBGNSelectorLoop which reads and writes for them.
+     *
+     * @param listener
+     * @param channel
+     */
+    public CBGNConnection(CBGNConnectionListener listener, SocketChannel channel) {
+        this(listener, channel == null ? null : channel.socket());
+        this.channel = channel;
     }
 
     /**
-     * Creates a Connection around the passed Socket.
+     * Creates a Connection around the passed DatagramChannel. The channel
+     * must be in blocking mode; it's read by this Connection's own task.
      *
-     * @param server
-     * @param socket
+     * @param listener
+     * @param channel
      */
-    public CBGNConnection(CBGNConnectionListener listener, DatagramSocket socket) {
-        System.out.println("Creating CBGNConnection UDP");
+    public CBGNConnection(CBGNConnectionListener listener, DatagramChannel channel) {
         if (listener == null) {
             throw new IllegalArgumentException("Cannot create a CBGNConnection with a null listener.");
         }
-        if (socket == null) {
-            throw new IllegalArgumentException("Cannot create a CBGNConnection with a null UDP socket.");
+        if (channel == null) {
+            throw new IllegalArgumentException("Cannot create a CBGNConnection with a null UDP channel.");
         }
         this.listener = listener;
-        this.udpSocket = socket;
+        this.udpChannel = channel;
+        this.udpSocket = channel.socket();
         this.name = udpSocket.toString();
-
-        parser = new JSONParser();
+        Logger.getLogger(CBGNConnection.class.getName()).log(Level.FINE, "Created UDP connection {0}.", this.name);
+        this.maxDatagramSize = DEFAULT_MAX_DATAGRAM_SIZE;
+        this.writeLock = new Object();
+        this.outputBuffer = new CBGNOutputBuffer(OUTPUT_BUFFER_SIZE);
+        this.outbound = new ArrayDeque<>();
+        this.batchBuffer = new CBGNOutputBuffer(OUTPUT_BUFFER_SIZE);
+        this.outboundCapacity = Integer.MAX_VALUE;
+        this.overflowPolicy = CBGNOverflowPolicy.DISCONNECT;
+        this.compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+        this.rooms = new CBGNRoom[0];
+        this.lastHeard = System.nanoTime();
     }
 
     /**
@@ -84,36 +255,25 @@ class CBGNConnection implements Runnable {
         try {
             if (clientSocket != null) {
                 // do a TCP connection
-                out = new PrintStream(clientSocket.getOutputStream(), true);
-                in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+                openStreams();
 
-                String inputLine;
-
-                while ((inputLine = in.readLine()) != null) {
-                    listener.onMessage(this, dataFromJSON(inputLine));
+                while (readFromStream()) {
+                    dispatchFrames();
                 }
+                // the other end closed the socket, as the selector engine
+                // notices in readFromChannel()
+                close();
             }
-            if (udpSocket != null) {
+            if (udpChannel != null) {
                 // do a UDP connection instead
-                DatagramPacket p = new DatagramPacket(new byte[512], 0, 512);
-
-                do {
-                    try {
-                        udpSocket.receive(p);
-                        listener.onUDPMessage(this, dataFromJSON(new String(p.getData())));
-                    } catch (NullPointerException e) {
-                        // this means the connection was killed, we should handle this through the listener.
-                        // either way this socket is done, so we're done.
-                        // listener.onConnectionClosed();
-                        System.out.println("Connection is dead :( :" + e.getMessage());
-                        break;
-                    }
-                } while (true);
+                receiveDatagrams();
             }
         } catch (IOException e) {
-            Logger.getLogger(CBGNConnection.class.getName()).log(Level.SEVERE, null, e);
+            // closing the socket from another thread ends up here too
+            if (!closed) {
+                Logger.getLogger(CBGNConnection.class.getName()).log(Level.SEVERE, null, e);
+            }
             try {
-                System.out.println("Server closed");
                 close();
             } catch (IOException ex) {
                 // blargh I am ded
@@ -122,54 +282,850 @@ class CBGNConnection implements Runnable {
         }
     }
 
+    // sets up the blocking streams for a TCP connection, if that hasn't
+    // happened yet
+    private void openStreams() throws IOException {
+        synchronized (writeLock) {
+            if (out == null) {
+                out = clientSocket.getOutputStream();
+                in = clientSocket.getInputStream();
+            }
+        }
+    }
+
+    // blocks until more bytes arrive on the socket, returning false once the
+    // other end has closed it
+    private boolean readFromStream() throws IOException {
+        int read = in.read(readBuffer.array(), readBuffer.arrayOffset() + readBuffer.position(), readBuffer.remaining());
+        if (read < 0) {
+            return false;
+        }
+        readBuffer.position(readBuffer.position() + read);
+        return true;
+    }
+
+    // decodes every complete frame in the read buffer and passes it on, then
+    // makes room for more. The codec is looked up for every frame, since a
+    // frame may be the handshake that changes it.
+    private void dispatchFrames() throws IOException {
+        lastHeard = System.nanoTime();
+        readBuffer.flip();
+        try {
+            while (readBuffer.hasRemaining()) {
+                HashMap<String, String> data = new HashMap<>();
+                CBGNKeyDictionary keys = receiveKeys;
+                Map<String, String> target = keys == null ? data : keys.decoding(data);
+                CBGNMetrics counting = metrics;
+                int frameStart = readBuffer.position();
+                long decodeStart = counting == null ? 0 : System.nanoTime();
+                try {
+                    if (compressor != null && readBuffer.get(readBuffer.position()) == 0) {
+                        if (!decodeCompressed(target)) {
+                            break;
+                        }
+                    } else if (!codec.decode(readBuffer, target)) {
+                        break;
+                    }
+                } catch (CBGNException e) {
+                    Logger.getLogger(CBGNConnection.class.getName()).log(Level.WARNING, "Connection " + this.name + " dropped a message.", e);
+                    continue;
+                }
+                if (keys != null && keys.sawUndefined()) {
+                    // its definition was dropped on the other end, so the
+                    // message is dropped too
+                    Logger.getLogger(CBGNConnection.class.getName()).log(Level.WARNING,
+                            "Connection {0} dropped a message using an undefined key.", this.name);
+                    continue;
+                }
+                messagesIn++;
+                bytesIn += readBuffer.position() - frameStart;
+                if (counting != null) {
+                    counting.messageIn(readBuffer.position() - frameStart, System.nanoTime() - decodeStart);
+                }
+                if (CBGNTrace.sample()) {
+                    CBGNTrace.packet("tcp.in", clientSocket.getRemoteSocketAddress(),
+                            readBuffer.position() - frameStart, data.get(CBGNProtocol.CONTROL));
+                }
+                dispatch(data);
+            }
+        } finally {
+            readBuffer.compact();
+        }
+
+        // a single message didn't fit, so make room for the rest of it
+        if (!readBuffer.hasRemaining()) {
+            if (readBuffer.capacity() >= MAX_MESSAGE_SIZE) {
+                throw new IOException("Connection " + this.name + " sent a message larger than " + MAX_MESSAGE_SIZE + " bytes.");
+            }
+            ByteBuffer larger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+            readBuffer.flip();
+            larger.put(readBuffer);
+            readBuffer = larger;
+        }
+    }
+
+    // reads a compressed frame from the read buffer and decodes the frame
+    // inside it, returning false if the compressed frame isn't complete yet.
+    // Like a codec, a complete frame is consumed even if it can't be decoded.
+    private boolean decodeCompressed(Map<String, String> data) throws CBGNException, IOException {
+        int start = readBuffer.position();
+        readBuffer.get();
+        int length = CBGNBinaryCodec.readVarint(readBuffer);
+        if (length < 0 || readBuffer.remaining() < length) {
+            if (length >= MAX_MESSAGE_SIZE) {
+                throw new IOException("Connection " + this.name + " sent a message larger than " + MAX_MESSAGE_SIZE + " bytes.");
+            }
+            readBuffer.position(start);
+            return false;
+        }
+        int offset = readBuffer.arrayOffset() + readBuffer.position();
+        readBuffer.position(readBuffer.position() + length);
+        ByteBuffer frame = compressor.decompress(readBuffer.array(), offset, length, MAX_MESSAGE_SIZE);
+        if (!codec.decode(frame, data) || frame.hasRemaining()) {
+            throw new CBGNException("Compressed message didn't hold exactly one frame.");
+        }
+        return true;
+    }
+
+    // hands a decoded message to the listener, unless it's a control message
+    private void dispatch(HashMap<String, String> data) {
+        String control = data.get(CBGNProtocol.CONTROL);
+        if (control == null) {
+            listener.onMessage(this, data);
+        } else if (CBGNProtocol.WELCOME.equals(control) && pendingCodec != null) {
+            // frames after the welcome are already in the codec we asked for,
+            // unless the server didn't have it and kept us on JSON
+            synchronized (writeLock) {
+                if (pendingCodec.getName().equals(data.get(CBGNProtocol.CODEC))) {
+                    codec = pendingCodec;
+                }
+                if (pendingKeys && "1".equals(data.get(CBGNProtocol.DICTIONARY))) {
+                    sendKeys = new CBGNKeyDictionary();
+                    receiveKeys = new CBGNKeyDictionary();
+                }
+                if (pendingCompression != null && pendingCompression.getName().equals(data.get(CBGNProtocol.COMPRESSION))) {
+                    compress(pendingCompression);
+                }
+                sessionToken = data.get(CBGNProtocol.TOKEN);
+                pendingCodec = null;
+                pendingKeys = false;
+                pendingCompression = null;
+            }
+        } else if (CBGNProtocol.KEYS.equals(control)) {
+            if (receiveKeys != null) {
+                for (Map.Entry<String, String> entry : data.entrySet()) {
+                    if (entry.getValue() != null && !CBGNProtocol.CONTROL.equals(entry.getKey())) {
+                        receiveKeys.define(CBGNKeyDictionary.parseId(entry.getKey(), 0), entry.getValue());
+                    }
+                }
+            }
+        } else {
+            listener.onControlMessage(this, control, data);
+        }
+    }
+
     /**
+     * Asks the server at the other end of this Connection to switch to the
+     * passed codec, and optionally to use key dictionaries, and waits for it
+     * to answer. This is called by a client before the Connection is run. If
+     * the server doesn't have the codec, or doesn't answer in time, the
+     * Connection stays on JSON, and keys are only replaced and messages only
+     * compressed if the server agrees to it.
      *
+     * @param preferred the codec to ask for
+     * @param dictionary true to ask for key dictionaries
+     * @param compression the compression to ask for, or null for none
+     * @throws IOException if the connection fails during the handshake
+     */
+    void handshake(CBGNCodec preferred, boolean dictionary, CBGNCompression compression) throws IOException {
+        openStreams();
+        sayHello(preferred, dictionary, compression);
+
+        clientSocket.setSoTimeout(HANDSHAKE_TIMEOUT);
+        try {
+            while (pendingCodec != null) {
+                if (!readFromStream()) {
+                    throw new IOException("Connection " + this.name + " was closed during the handshake.");
+                }
+                dispatchFrames();
+            }
+        } catch (SocketTimeoutException e) {
+            Logger.getLogger(CBGNConnection.class.getName()).log(Level.WARNING,
+                    "Connection {0} got no answer to its hello, staying on JSON.", this.name);
+            pendingCodec = null;
+            pendingKeys = false;
+            pendingCompression = null;
+        } finally {
+            clientSocket.setSoTimeout(0);
+        }
+    }
+
+    /**
+     * Sends the hello that starts a client's handshake without waiting for
+     * the answer, for connections driven by a selector loop. The welcome is
+     * handled whenever it's read, and getSessionToken() returns the session
+     * token from then on.
      *
-     * @param json
-     * @return
+     * @param preferred the codec to ask for
+     * @param dictionary true to ask for key dictionaries
+     * @param compression the compression to ask for, or null for none
+     * @throws IOException if the hello can't be sent
      */
-    private HashMap<String, String> dataFromJSON(String json) {
-        json = json.trim();
+    void sayHello(CBGNCodec preferred, boolean dictionary, CBGNCompression compression) throws IOException {
+        HashMap<String, String> hello = new HashMap<>();
+        hello.put(CBGNProtocol.CONTROL, CBGNProtocol.HELLO);
+        hello.put(CBGNProtocol.CODEC, preferred.getName());
+        if (dictionary) {
+            hello.put(CBGNProtocol.DICTIONARY, "1");
+        }
+        if (compression != null) {
+            hello.put(CBGNProtocol.COMPRESSION, compression.getName());
+        }
+        // every client that says hello answers pings
+        hello.put(CBGNProtocol.HEARTBEAT, "1");
+        pendingKeys = dictionary;
+        pendingCompression = compression;
+        // set last, since it's what tells the reading thread to expect a
+        // welcome
+        pendingCodec = preferred;
+        sendMessage(hello);
+    }
 
-        if (json.equals("")) {
-            return new HashMap<>();
+    /**
+     * Answers a client's hello, switching this Connection over to the passed
+     * codec. The welcome itself is the last message sent in the old codec,
+     * and carries this Connection's session token if it has one. If a
+     * dictionary is passed, keys are replaced from it from then on, and the
+     * client is expected to do the same; likewise for compression.
+     *
+     * @param accepted the codec to use from now on
+     * @param keys the dictionary to replace sent keys from, usually shared
+     * with the server's other connections, or null for none
+     * @param compression the compression to use from now on, or null for none
+     * @throws IOException if the welcome can't be sent
+     */
+    void acceptCodec(CBGNCodec accepted, CBGNKeyDictionary keys, CBGNCompression compression) throws IOException {
+        HashMap<String, String> welcome = new HashMap<>();
+        welcome.put(CBGNProtocol.CONTROL, CBGNProtocol.WELCOME);
+        welcome.put(CBGNProtocol.CODEC, accepted.getName());
+        if (sessionToken != null) {
+            welcome.put(CBGNProtocol.TOKEN, sessionToken);
+        }
+        if (keys != null) {
+            welcome.put(CBGNProtocol.DICTIONARY, "1");
+            // called while dispatching the hello, so nothing the client sends
+            // after it has been decoded yet
+            receiveKeys = new CBGNKeyDictionary();
         }
+        if (compression != null) {
+            welcome.put(CBGNProtocol.COMPRESSION, compression.getName());
+        }
+        synchronized (writeLock) {
+            sendMessage(welcome);
+            codec = accepted;
+            sendKeys = keys;
+            if (compression != null) {
+                compress(compression);
+            }
+            // the client is waiting on this, so it can't sit in a batch
+            startWriting();
+        }
+    }
+
+    // starts compressing with the passed compression. Must be called while
+    // holding the write lock.
+    private void compress(CBGNCompression compression) {
+        this.compression = compression;
+        this.compressBuffer = new CBGNOutputBuffer(OUTPUT_BUFFER_SIZE);
+        this.compressor = compression.newCompressor();
+    }
 
+    /**
+     * Sets how big a message has to be, in bytes, before it's compressed, if
+     * compression was agreed on. The default is 1 KiB.
+     *
+     * @param threshold the smallest message to compress, at least 1
+     */
+    void setCompressionThreshold(int threshold) {
+        if (threshold < 1) {
+            throw new IllegalArgumentException("Compression threshold must be at least 1.");
+        }
+        synchronized (writeLock) {
+            this.compressionThreshold = threshold;
+        }
+    }
+
+    /**
+     * Returns the compression this Connection agreed on with its peer, or
+     * null if its messages aren't compressed.
+     *
+     * @return this Connection's compression, or null
+     */
+    CBGNCompression getCompression() {
+        synchronized (writeLock) {
+            return compression;
+        }
+    }
+
+    /**
+     * Returns the codec this Connection is currently framing messages with.
+     *
+     * @return this Connection's codec
+     */
+    CBGNCodec getCodec() {
+        return codec;
+    }
+
+    // receives datagrams until the channel is closed. Every datagram is
+    // received into the same direct buffer, one byte bigger than the largest
+    // datagram allowed so that datagrams the channel had to cut short can be
+    // spotted and dropped.
+    private void receiveDatagrams() throws IOException {
+        ByteBuffer datagram = ByteBuffer.allocateDirect(maxDatagramSize + 1);
+        while (true) {
+            datagram.clear();
+            SocketAddress source = udpChannel.receive(datagram);
+            datagram.flip();
+            if (datagram.remaining() > maxDatagramSize) {
+                Logger.getLogger(CBGNConnection.class.getName()).log(Level.WARNING,
+                        "Dropped a datagram from {0} bigger than {1,number,#} bytes.", new Object[]{source, maxDatagramSize});
+                continue;
+            }
+            CBGNMetrics counting = metrics;
+            int size = datagram.remaining();
+            long decodeStart = counting == null ? 0 : System.nanoTime();
+            HashMap<String, String> data = dataFromDatagram(datagram);
+            if (counting != null) {
+                counting.datagramIn(size, System.nanoTime() - decodeStart);
+            }
+            String control = data == null ? null : data.get(CBGNProtocol.CONTROL);
+            if (CBGNTrace.sample()) {
+                CBGNTrace.packet("udp.in", source, size, control);
+            }
+            if (control == null) {
+                listener.onUDPMessage(this, source, data);
+            } else {
+                listener.onUDPControlMessage(this, source, control, data);
+            }
+        }
+    }
+
+    // parses the JSON in the received part of the buffer, or returns null if
+    // it isn't a valid message
+    private HashMap<String, String> dataFromDatagram(ByteBuffer datagram) {
+        HashMap<String, String> data = new HashMap<>();
         try {
-            return (HashMap<String, String>) parser.parse(json);
-        } catch (ParseException | ClassCastException ex) {
-            Logger.getLogger(CBGNConnection.class.getName()).log(Level.SEVERE, null, ex);
+            CBGNJSONCodec.readObject(datagram, datagram.position(), datagram.limit(), data);
+            return data;
+        } catch (CBGNException ex) {
+            // anyone can send us a datagram, so garbage isn't worth more
+            // than a FINE
+            Logger.getLogger(CBGNConnection.class.getName()).log(Level.FINE, "Dropped a datagram that isn't a message.", ex);
             return null;
         }
     }
 
     /**
-     * Prints the passed message to this Connection's output stream
+     * Sets the largest datagram this Connection accepts. Bigger datagrams are
+     * dropped. This must be set before the Connection is run.
+     *
+     * @param maxDatagramSize the size in bytes, from 1 to 65507
+     */
+    void setMaxDatagramSize(int maxDatagramSize) {
+        if (maxDatagramSize < 1 || maxDatagramSize > MAX_DATAGRAM_SIZE) {
+            throw new IllegalArgumentException("Maximum datagram size must be from 1 to " + MAX_DATAGRAM_SIZE + ".");
+        }
+        this.maxDatagramSize = maxDatagramSize;
+    }
+
+    /**
+     * Registers this Connection's channel with the passed selector. This is
+     * called on the selector loop's thread.
+     *
+     * @param loop the loop that now drives this Connection
+     * @param selector the loop's selector
+     * @throws IOException if the channel can't be made non-blocking
+     */
+    void attach(CBGNSelectorLoop loop, Selector selector) throws IOException {
+        channel.configureBlocking(false);
+        synchronized (writeLock) {
+            this.loop = loop;
+            this.key = channel.register(selector, SelectionKey.OP_READ, this);
+            if (!outbound.isEmpty()) {
+                loop.enableWrites(key);
+            }
+        }
+    }
+
+    /**
+     * Reads whatever is available on this Connection's channel and passes
+     * every complete message on to the listener. This is called on the
+     * selector loop's thread when the channel is readable.
+     *
+     * @throws IOException if the read fails or a message is too large
+     */
+    void readFromChannel() throws IOException {
+        if (channel.read(readBuffer) < 0) {
+            close();
+            return;
+        }
+        dispatchFrames();
+    }
+
+    /**
+     * Bounds this Connection's outbound queue. Once the queue holds the passed
+     * number of messages, the passed policy decides what happens to the next
+     * one. If a writer executor is passed, a blocking Connection queues its
+     * messages and writes them from a single task on that executor, which
+     * runs until the Connection closes, instead of on the sending thread, and the executor is also used to disconnect a slow
+     * Connection without blocking the sender.
+     *
+     * @param writerExecutor the executor to write and disconnect on
+     * @param capacity the most messages to queue
+     * @param policy what to do with messages past the capacity
+     */
+    void setOutboundQueue(Executor writerExecutor, int capacity, CBGNOverflowPolicy policy) {
+        synchronized (writeLock) {
+            this.writerExecutor = writerExecutor;
+            this.outboundCapacity = capacity;
+            this.overflowPolicy = policy;
+        }
+    }
+
+    /**
+     * Sets whether this Connection batches its output. A batching Connection
+     * queues every message until flush() is called, or until the queue holds
+     * at least the passed number of bytes or reaches the outbound capacity,
+     * and then writes the whole queue with as few writes as it can.
+     *
+     * @param batching true to batch output
+     * @param threshold the queued byte count that triggers a write on its own
+     */
+    void setBatching(boolean batching, int threshold) {
+        synchronized (writeLock) {
+            this.batching = batching;
+            this.batchThreshold = threshold;
+        }
+        if (!batching) {
+            flush();
+        }
+    }
+
+    /**
+     * Starts writing everything in the outbound queue. For a batching
+     * Connection this marks the end of a batch; otherwise there's nothing
+     * waiting on it and this does nothing.
+     */
+    void flush() {
+        synchronized (writeLock) {
+            try {
+                startWriting();
+            } catch (IOException e) {
+                Logger.getLogger(CBGNConnection.class.getName()).log(Level.WARNING, "Connection " + this.name + " failed to flush.", e);
+                outbound.clear();
+                queuedBytes = 0;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of messages waiting to be written.
+     *
+     * @return the length of the outbound queue
+     */
+    int getOutboundQueueSize() {
+        synchronized (writeLock) {
+            return outbound.size();
+        }
+    }
+
+    /**
+     * Writes as much pending output as the channel will take, gathering
+     * queued frames into as few writes as possible. This is called on the
+     * selector loop's thread when the channel is writable.
+     *
+     * @throws IOException if the write fails
+     */
+    void flushToChannel() throws IOException {
+        synchronized (writeLock) {
+            if (gather == null) {
+                gather = new ByteBuffer[MAX_GATHER];
+            }
+            while (!outbound.isEmpty()) {
+                int count = 0;
+                for (ByteBuffer frame : outbound) {
+                    gather[count++] = frame;
+                    if (count == gather.length) {
+                        break;
+                    }
+                }
+                queuedBytes -= (int) channel.write(gather, 0, count);
+                boolean full = gather[count - 1].hasRemaining();
+                Arrays.fill(gather, 0, count, null);
+                while (!outbound.isEmpty() && !outbound.peek().hasRemaining()) {
+                    outbound.poll();
+                }
+                if (full) {
+                    // the socket didn't take everything, wait to be told it's
+                    // writable again
+                    return;
+                }
+            }
+            overflowing = false;
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    // starts the queue on its way: on a channel by asking the selector loop
+    // for writes, otherwise by waking the writer, starting it the first
+    // time, or with no writer executor by writing the queue right here. Must be called while holding
+    // the write lock.
+    private void startWriting() throws IOException {
+        if (outbound.isEmpty()) {
+            return;
+        }
+        if (channel != null) {
+            if (key != null) {
+                loop.enableWrites(key);
+            }
+        } else if (writerExecutor != null) {
+            if (!writerStarted) {
+                writerStarted = true;
+                writerExecutor.execute(writer);
+            } else {
+                writeLock.notify();
+            }
+        } else if (out != null) {
+            while (fillBatch()) {
+                batchBuffer.writeTo(out);
+            }
+            overflowing = false;
+        }
+    }
+
+    // moves queued frames into the batch buffer, up to the largest single
+    // write, and returns false if the queue was already empty. Must be called
+    // while holding the write lock.
+    private boolean fillBatch() {
+        batchBuffer.reset();
+        ByteBuffer frame;
+        while (batchBuffer.size() < MAX_BATCH_WRITE && (frame = outbound.poll()) != null) {
+            queuedBytes -= frame.remaining();
+            batchBuffer.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+        }
+        return batchBuffer.size() > 0;
+    }
+
+    // writes queued frames to the socket's stream a batch at a time, and
+    // waits for more once the queue is empty, for as long as the Connection
+    // is open. Each Connection has one of these, started the first time it
+    // has something to write, so a slow socket only ever blocks its own.
+    private final Runnable writer = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    synchronized (writeLock) {
+                        while (!fillBatch()) {
+                            overflowing = false;
+                            if (closed) {
+                                return;
+                            }
+                            writeLock.wait();
+                        }
+                    }
+                    batchBuffer.writeTo(out);
+                }
+            } catch (IOException e) {
+                synchronized (writeLock) {
+                    outbound.clear();
+                    queuedBytes = 0;
+                }
+                closeQuietly();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    };
+
+    /**
+     * Encodes the passed data with this Connection's codec and writes it to
+     * this Connection's output stream
+     *
+     * @param data the data to send
+     * @throws IOException if there is an exception handing the write
+     */
+    public void sendMessage(HashMap<String, String> data) throws IOException {
+        CBGNOverflowPolicy overflow;
+        synchronized (writeLock) {
+            CBGNMetrics counting = metrics;
+            long encodeStart = counting == null ? 0 : System.nanoTime();
+            Map<String, String> encoded = data;
+            CBGNOverflowPolicy defining = null;
+            if (sendKeys != null && !data.containsKey(CBGNProtocol.CONTROL)) {
+                int[] max = {-1};
+                encoded = sendKeys.encode(data, max);
+                defining = defineKeys(max[0]);
+            }
+            outputBuffer.reset();
+            codec.encode(encoded, outputBuffer);
+            ByteBuffer frame = outputBuffer.asByteBuffer();
+            if (compressor != null && frame.remaining() >= compressionThreshold) {
+                compressBuffer.reset();
+                if (compressor.compressFrame(frame, compressBuffer)) {
+                    frame = compressBuffer.asByteBuffer();
+                }
+            }
+            if (counting != null) {
+                counting.encoded(System.nanoTime() - encodeStart);
+            }
+            overflow = writeFrame(frame, false);
+            if (overflow == null) {
+                overflow = defining;
+            }
+        }
+        if (overflow != null) {
+            overflowed(overflow);
+        }
+    }
+
+    /**
+     * Writes the passed event to this Connection's output stream, reusing the
+     * event's frame for this Connection's codec if it's already been encoded
+     * for another connection.
      *
-     * @param message
+     * @param event the event to send
      * @throws IOException if there is an exception handing the write
      */
-    public void sendMessage(String message) throws IOException {
-        if (out == null) {
+    void sendEvent(GameEvent event) throws IOException {
+        CBGNOverflowPolicy overflow;
+        synchronized (writeLock) {
+            CBGNMetrics counting = metrics;
+            long encodeStart = counting == null ? 0 : System.nanoTime();
+            CBGNOverflowPolicy defining = null;
+            ByteBuffer frame;
+            if (sendKeys != null && !event.isControl()) {
+                frame = event.encode(codec, sendKeys);
+                defining = defineKeys(event.getMaxKeyId());
+            } else {
+                frame = event.encode(codec);
+            }
+            if (compressor != null && frame.remaining() >= compressionThreshold) {
+                frame = event.compress(frame, compression, compressor);
+            }
+            if (counting != null) {
+                counting.encoded(System.nanoTime() - encodeStart);
+            }
+            overflow = writeFrame(frame, true);
+            if (overflow == null) {
+                overflow = defining;
+            }
+        }
+        if (overflow != null) {
+            overflowed(overflow);
+        }
+    }
+
+    // writes an encoded frame to the channel or stream, or queues it for the
+    // writer. Frames that aren't shared are only valid until the next write,
+    // so they're copied if they have to wait. Must be called while holding
+    // the write lock; returns the overflow policy that was applied if this
+    // frame started a backlog.
+    private CBGNOverflowPolicy writeFrame(ByteBuffer frame, boolean shared) throws IOException {
+        if (closed) {
+            throw new IOException("Connection " + this.name + " could not send message to a closed connection.");
+        }
+        messagesOut++;
+        bytesOut += frame.remaining();
+        CBGNMetrics counting = metrics;
+        if (counting != null) {
+            counting.messageOut(frame.remaining());
+        }
+        if (CBGNTrace.sample()) {
+            CBGNTrace.packet("tcp.out", clientSocket.getRemoteSocketAddress(), frame.remaining(), null);
+        }
+        if (channel != null) {
+            if (!batching && outbound.isEmpty() && key != null) {
+                channel.write(frame);
+                if (!frame.hasRemaining()) {
+                    return null;
+                }
+            }
+        } else if (out == null) {
             throw new IOException("Connection " + this.name + " could not send message to null OutputStream.");
+        } else if (!batching && writerExecutor == null) {
+            out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+            out.flush();
+            return null;
         }
-        out.println(message);
-        out.flush();
+
+        if (batching && outbound.size() >= outboundCapacity) {
+            // a batch has filled the queue before its flush; write what's
+            // there rather than treat a burst as a slow connection
+            if (channel != null && key != null) {
+                flushToChannel();
+            }
+            startWriting();
+        }
+        CBGNOverflowPolicy overflow = enqueue(shared ? frame : copy(frame));
+        if (!batching || queuedBytes >= batchThreshold) {
+            startWriting();
+        }
+        return overflow;
+    }
+
+    // tells the peer about every key ID up to the passed one it hasn't been
+    // told about yet. Must be called while holding the write lock, before the
+    // message that uses them is encoded; returns the overflow policy that was
+    // applied if this started a backlog.
+    private CBGNOverflowPolicy defineKeys(int maxId) throws IOException {
+        if (maxId < definedKeys) {
+            return null;
+        }
+        HashMap<String, String> definitions = new HashMap<>((maxId - definedKeys + 2) * 2);
+        definitions.put(CBGNProtocol.CONTROL, CBGNProtocol.KEYS);
+        for (int i = definedKeys; i <= maxId; i++) {
+            definitions.put(Integer.toString(i, Character.MAX_RADIX), sendKeys.key(i));
+        }
+        definedKeys = maxId + 1;
+        outputBuffer.reset();
+        codec.encode(definitions, outputBuffer);
+        return writeFrame(outputBuffer.asByteBuffer(), false);
+    }
+
+    // adds a frame to the outbound queue, applying the overflow policy if
+    // it's full. Must be called while holding the write lock.
+    private CBGNOverflowPolicy enqueue(ByteBuffer frame) {
+        if (outbound.size() < outboundCapacity) {
+            outbound.add(frame);
+            queuedBytes += frame.remaining();
+            return null;
+        }
+
+        // the dropped frame may have been key definitions, so they're all
+        // sent again before the next message that uses one
+        definedKeys = 0;
+        messagesDropped++;
+        CBGNMetrics counting = metrics;
+        if (counting != null) {
+            counting.messageDropped();
+        }
+        switch (overflowPolicy) {
+            case DROP_OLDEST:
+                // a frame that's partly written has to finish, or the stream
+                // would be corrupted, so drop the one behind it instead. If
+                // it's the only one queued, the new frame is dropped.
+                ByteBuffer head = outbound.poll();
+                if (head.position() > 0) {
+                    if (outbound.isEmpty()) {
+                        outbound.addFirst(head);
+                        break;
+                    }
+                    ByteBuffer dropped = outbound.poll();
+                    outbound.addFirst(head);
+                    head = dropped;
+                }
+                queuedBytes -= head.remaining();
+                outbound.add(frame);
+                queuedBytes += frame.remaining();
+                break;
+            case DROP_NEWEST:
+            case DISCONNECT:
+                // the new frame is dropped
+                break;
+        }
+
+        if (overflowing) {
+            return null;
+        }
+        overflowing = true;
+        return overflowPolicy;
+    }
+
+    /**
+     * Counts a reliable UDP message refused because too many before it are
+     * still unacknowledged, and applies the overflow policy if it's the
+     * first of a backlog. Whatever the policy, the refused message is the
+     * one dropped; dropping an older one would leave the peer waiting for it
+     * forever.
+     *
+     * @param first true if this is the first message refused since the last
+     * one was sent
+     */
+    void reliableOverflowed(boolean first) {
+        synchronized (writeLock) {
+            messagesDropped++;
+        }
+        CBGNMetrics counting = metrics;
+        if (counting != null) {
+            counting.messageDropped();
+        }
+        if (first) {
+            overflowed(overflowPolicy);
+        }
+    }
+
+    // tells the listener a backlog started, and disconnects if that's the
+    // policy. The close happens on the writer executor so the sending thread
+    // isn't the one tearing the Connection down.
+    private void overflowed(CBGNOverflowPolicy policy) {
+        listener.onOutboundOverflow(this, policy);
+        if (policy == CBGNOverflowPolicy.DISCONNECT) {
+            Runnable closer = new Runnable() {
+                @Override
+                public void run() {
+                    closeQuietly();
+                }
+            };
+            if (writerExecutor == null) {
+                closer.run();
+            } else {
+                writerExecutor.execute(closer);
+            }
+        }
+    }
+
+    private static ByteBuffer copy(ByteBuffer frame) {
+        ByteBuffer copy = ByteBuffer.allocate(frame.remaining());
+        copy.put(frame);
+        copy.flip();
+        return copy;
     }
 
     /**
      * Sends a UDP message to the passed address using this Connection's
      * underlying UDP socket.
      *
-     * @param message
-     * @throws IOException
+     * @param addr the address to send to
+     * @param port the port to send to
+     * @param data the data to send
+     * @throws IOException if the datagram can't be sent
+     */
+    public void sendUDPMessage(InetAddress addr, int port, HashMap<String, String> data) throws IOException {
+        byte[] payload = new GameEvent(data).toDatagram();
+        sendUDPPacket(new DatagramPacket(payload, 0, payload.length, addr, port));
+    }
+
+    /**
+     * Sends an already-built datagram using this Connection's underlying UDP
+     * socket. Broadcasts build one packet around an encoded event and
+     * readdress it for every recipient.
+     *
+     * @param packet the packet to send
+     * @throws IOException if the datagram can't be sent
      */
-    public void sendUDPMessage(InetAddress addr, int port, String message) throws IOException {
+    void sendUDPPacket(DatagramPacket packet) throws IOException {
         if (udpSocket == null) {
             throw new IOException("Trying to send UDP over a TCP connection. Check that you're sending UDP from a UDP connection.");
         }
-        System.out.println("Sending to address " + addr.toString() + ":" + port);
-        udpSocket.send(new DatagramPacket(message.getBytes(), 0, message.getBytes().length, addr, port));
+        udpSocket.send(packet);
+        if (CBGNTrace.sample()) {
+            CBGNTrace.packet("udp.out", packet.getSocketAddress(), packet.getLength(), null);
+        }
+        CBGNMetrics counting = metrics;
+        if (counting != null) {
+            counting.datagramOut(packet.getLength());
+        }
     }
 
     /**
@@ -179,12 +1135,243 @@ class CBGNConnection implements Runnable {
      * @throws IOException if closing the socket fails
      */
     public void close() throws IOException {
-        listener.onConnectionClosed(this, "Quit");
+        close("Quit");
+    }
+
+    /**
+     * Closes this Connection, telling the listener why.
+     *
+     * @param reason why the Connection was closed
+     * @throws IOException if closing the socket fails
+     */
+    void close(String reason) throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        CBGNHeartbeat beat = heartbeat;
+        if (beat != null && beat.getTimeout() != null) {
+            beat.getTimeout().cancel();
+        }
+        listener.onConnectionClosed(this, reason);
+        synchronized (writeLock) {
+            outbound.clear();
+            queuedBytes = 0;
+            // lets the writer finish
+            writeLock.notify();
+        }
+        if (key != null) {
+            key.cancel();
+        }
         if (clientSocket != null) {
             clientSocket.close();
         }
         if (udpSocket != null) {
             udpSocket.close();
         }
+        if (compressor != null) {
+            compressor.end();
+        }
+    }
+
+    /**
+     * Returns the ID a server gave this Connection, or 0 if it hasn't been
+     * registered.
+     *
+     * @return this Connection's ID
+     */
+    int getId() {
+        return id;
+    }
+
+    void setId(int id) {
+        this.id = id;
+    }
+
+    /**
+     * Returns the address this Connection's UDP datagrams come from and are
+     * sent to, or null if it isn't known.
+     *
+     * @return this Connection's UDP address
+     */
+    SocketAddress getUDPAddress() {
+        return udpAddress;
+    }
+
+    void setUDPAddress(SocketAddress udpAddress) {
+        this.udpAddress = udpAddress;
+    }
+
+    /**
+     * Returns the session token that binds this Connection's UDP datagrams
+     * to it, or null if it doesn't have one. On a client this is only set
+     * once the server's welcome has arrived.
+     *
+     * @return this Connection's session token
+     */
+    String getSessionToken() {
+        return sessionToken;
+    }
+
+    void setSessionToken(String sessionToken) {
+        this.sessionToken = sessionToken;
+    }
+
+    /**
+     * Returns the reliable UDP channel to this Connection's peer, or null if
+     * it doesn't have one.
+     *
+     * @return this Connection's reliable channel
+     */
+    CBGNReliableChannel getReliableChannel() {
+        return reliableChannel;
+    }
+
+    void setReliableChannel(CBGNReliableChannel reliableChannel) {
+        this.reliableChannel = reliableChannel;
+    }
+
+    /**
+     * Returns the sequenced UDP streams received from this Connection's peer,
+     * or null if it doesn't track any.
+     *
+     * @return this Connection's sequenced streams
+     */
+    CBGNSequencedStreams getSequencedStreams() {
+        return sequencedStreams;
+    }
+
+    void setSequencedStreams(CBGNSequencedStreams sequencedStreams) {
+        this.sequencedStreams = sequencedStreams;
+    }
+
+    /**
+     * Returns the snapshot sender for this Connection's peer, or null if it
+     * isn't sent snapshots.
+     *
+     * @return this Connection's snapshot sender
+     */
+    CBGNSnapshotSender getSnapshotSender() {
+        return snapshotSender;
+    }
+
+    void setSnapshotSender(CBGNSnapshotSender snapshotSender) {
+        this.snapshotSender = snapshotSender;
+    }
+
+    /**
+     * Returns the heartbeat measuring the round trip time to this
+     * Connection's peer, or null if there isn't one.
+     *
+     * @return the heartbeat
+     */
+    CBGNHeartbeat getHeartbeat() {
+        return heartbeat;
+    }
+
+    void setHeartbeat(CBGNHeartbeat heartbeat) {
+        this.heartbeat = heartbeat;
+    }
+
+    /**
+     * Records that something was just received from this Connection's peer.
+     * TCP reads record themselves; this is for UDP datagrams, which arrive
+     * on a different Connection.
+     */
+    void heard() {
+        lastHeard = System.nanoTime();
+    }
+
+    /**
+     * Returns when anything was last received from this Connection's peer.
+     *
+     * @return the time, from System.nanoTime()
+     */
+    long getLastHeard() {
+        return lastHeard;
+    }
+
+    /**
+     * Sets the server metrics this Connection counts what it sends and
+     * receives into, on top of its own counts.
+     *
+     * @param metrics the server's metrics
+     */
+    void setMetrics(CBGNMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Returns what this Connection has sent and received so far.
+     *
+     * @return a snapshot of this Connection's metrics
+     */
+    CBGNConnectionMetrics snapshotMetrics() {
+        CBGNHeartbeat beat = heartbeat;
+        return new CBGNConnectionMetrics(id, messagesIn, messagesOut, messagesDropped, bytesIn, bytesOut,
+                getOutboundQueueSize(), beat == null ? -1 : beat.getRoundTripTime(), beat == null ? -1 : beat.getJitter());
+    }
+
+    /**
+     * Returns whether this Connection has been closed.
+     *
+     * @return true once close() has been called
+     */
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Returns the rooms this Connection is in. The array is a snapshot and
+     * must not be modified.
+     *
+     * @return the rooms this Connection is in
+     */
+    CBGNRoom[] getRooms() {
+        return rooms;
+    }
+
+    /**
+     * Records that this Connection has joined the passed room.
+     *
+     * @param room the room joined
+     */
+    synchronized void joined(CBGNRoom room) {
+        for (CBGNRoom r : rooms) {
+            if (r == room) {
+                return;
+            }
+        }
+        CBGNRoom[] updated = Arrays.copyOf(rooms, rooms.length + 1);
+        updated[rooms.length] = room;
+        rooms = updated;
+    }
+
+    /**
+     * Records that this Connection has left the passed room.
+     *
+     * @param room the room left
+     */
+    synchronized void left(CBGNRoom room) {
+        for (int i = 0; i < rooms.length; i++) {
+            if (rooms[i] == room) {
+                CBGNRoom[] updated = new CBGNRoom[rooms.length - 1];
+                System.arraycopy(rooms, 0, updated, 0, i);
+                System.arraycopy(rooms, i + 1, updated, i, rooms.length - i - 1);
+                rooms = updated;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Closes this Connection, logging rather than throwing if that fails.
+     */
+    void closeQuietly() {
+        try {
+            close();
+        } catch (IOException e) {
+            Logger.getLogger(CBGNConnection.class.getName()).log(Level.SEVERE, null, e);
+        }
     }
 }
@@ -1,5 +1,6 @@
 package networking;
 
+import java.net.SocketAddress;
 import java.util.HashMap;
 
 /**
@@ -25,6 +26,19 @@ abstract class CBGNConnectionListener {
      */
     protected abstract void onUDPMessage(CBGNConnection conn, HashMap<String, String> data);
 
+    /**
+     * Called when a Connection receives a GameEvent over UDP, along with the
+     * address it came from. By default this just calls onUDPMessage without
+     * the address.
+     *
+     * @param conn the Connection the datagram arrived on
+     * @param source the address the datagram came from
+     * @param data the data in the datagram
+     */
+    protected void onUDPMessage(CBGNConnection conn, SocketAddress source, HashMap<String, String> data) {
+        onUDPMessage(conn, data);
+    }
+
     /**
      * Called when the connection is closed. The reason string is (supposed to
      * be) a human-readable reason why the connection was closed, such as "you
@@ -33,4 +47,38 @@ abstract class CBGNConnectionListener {
      * @param reason the reason for the connection loss, if appropriate
      */
     protected abstract void onConnectionClosed(CBGNConnection conn, String reason);
+
+    /**
+     * Called when a Connection receives a control message it doesn't handle
+     * itself. Control messages are never passed to onMessage.
+     *
+     * @param conn the Connection the message arrived on
+     * @param type the type of control message
+     * @param data the whole control message, including its type
+     */
+    protected void onControlMessage(CBGNConnection conn, String type, HashMap<String, String> data) {
+    }
+
+    /**
+     * Called when a Connection receives a control message over UDP. Control
+     * messages are never passed to onUDPMessage.
+     *
+     * @param conn the Connection the datagram arrived on
+     * @param source the address the datagram came from
+     * @param type the type of control message
+     * @param data the whole control message, including its type
+     */
+    protected void onUDPControlMessage(CBGNConnection conn, SocketAddress source, String type, HashMap<String, String> data) {
+    }
+
+    /**
+     * Called when a Connection's outbound queue fills up because the other
+     * end isn't reading fast enough. This is called once per backlog, not
+     * once per dropped message.
+     *
+     * @param conn the Connection that can't keep up
+     * @param policy what the Connection is doing about it
+     */
+    protected void onOutboundOverflow(CBGNConnection conn, CBGNOverflowPolicy policy) {
+    }
 }
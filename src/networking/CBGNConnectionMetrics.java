@@ -0,0 +1,107 @@
+package networking;
+
+/**
+ * The CBGNConnectionMetrics class holds what one connection has sent and
+ * received, as of when it was taken from the server's getConnectionMetrics().
+ * It doesn't change afterwards; take another to see what's changed.
+ *
+ * @author Chris
+ */
+public final class CBGNConnectionMetrics {
+
+    private final int connectionId;
+    private final long messagesIn;
+    private final long messagesOut;
+    private final long messagesDropped;
+    private final long bytesIn;
+    private final long bytesOut;
+    private final int outboundQueueSize;
+    private final float roundTripTime;
+    private final float jitter;
+
+    CBGNConnectionMetrics(int connectionId, long messagesIn, long messagesOut, long messagesDropped,
+            long bytesIn, long bytesOut, int outboundQueueSize, float roundTripTime, float jitter) {
+        this.connectionId = connectionId;
+        this.messagesIn = messagesIn;
+        this.messagesOut = messagesOut;
+        this.messagesDropped = messagesDropped;
+        this.bytesIn = bytesIn;
+        this.bytesOut = bytesOut;
+        this.outboundQueueSize = outboundQueueSize;
+        this.roundTripTime = roundTripTime;
+        this.jitter = jitter;
+    }
+
+    /**
+     * @return the ID of the connection these metrics are for
+     */
+    public int getConnectionId() {
+        return connectionId;
+    }
+
+    /**
+     * @return the number of TCP messages received from the connection
+     */
+    public long getMessagesIn() {
+        return messagesIn;
+    }
+
+    /**
+     * @return the number of TCP messages sent or queued to the connection
+     */
+    public long getMessagesOut() {
+        return messagesOut;
+    }
+
+    /**
+     * @return the number of TCP messages to the connection dropped because
+     * its outbound queue was full
+     */
+    public long getMessagesDropped() {
+        return messagesDropped;
+    }
+
+    /**
+     * @return the number of TCP bytes received from the connection
+     */
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    /**
+     * @return the number of TCP bytes sent or queued to the connection
+     */
+    public long getBytesOut() {
+        return bytesOut;
+    }
+
+    /**
+     * @return the number of TCP messages waiting to be written to the
+     * connection
+     */
+    public int getOutboundQueueSize() {
+        return outboundQueueSize;
+    }
+
+    /**
+     * Returns the smoothed round trip time to the connection's client,
+     * measured by the server's heartbeat.
+     *
+     * @return the round trip time in milliseconds, or -1 if it hasn't been
+     * measured yet
+     */
+    public float getRoundTripTime() {
+        return roundTripTime;
+    }
+
+    /**
+     * Returns how much the round trip time to the connection's client varies
+     * from one heartbeat to the next.
+     *
+     * @return the jitter in milliseconds, or -1 if it hasn't been measured
+     * yet
+     */
+    public float getJitter() {
+        return jitter;
+    }
+}
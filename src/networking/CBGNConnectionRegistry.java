@@ -0,0 +1,197 @@
+package networking;
+
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The CBGNConnectionRegistry class keeps track of a server's connections. The
+ * accept loop adds to it, reader threads remove from it as connections close,
+ * and broadcasts walk it from whichever thread is sending, so every part of
+ * it is safe to use from any thread.
+ *
+ * Each connection gets an integer ID when it's added that's never reused, and
+ * can be found by that ID, by its TCP socket or by the address its UDP
+ * datagrams come from. Broadcasts iterate a snapshot array that's only
+ * rebuilt after connections come or go.
+ *
+ * @author Chris
+ */
+final class CBGNConnectionRegistry {
+
+    private final AtomicInteger nextId;
+
+    private final ConcurrentHashMap<Integer, CBGNConnection> byId;
+    private final ConcurrentHashMap<Socket, CBGNConnection> bySocket;
+    private final ConcurrentHashMap<SocketAddress, CBGNConnection> byUDPAddress;
+
+    // every connection, or null if one has come or gone since it was last
+    // built. Only built or cleared while holding the lock, so a stale array
+    // can never be published over a newer change.
+    private volatile CBGNConnection[] snapshot;
+    private final Object lock;
+
+    /**
+     * Creates a new, empty CBGNConnectionRegistry.
+     */
+    CBGNConnectionRegistry() {
+        this.nextId = new AtomicInteger(1);
+        this.byId = new ConcurrentHashMap<>();
+        this.bySocket = new ConcurrentHashMap<>();
+        this.byUDPAddress = new ConcurrentHashMap<>();
+        this.lock = new Object();
+    }
+
+    /**
+     * Adds the passed connection, giving it a new ID.
+     *
+     * @param conn the connection to add
+     * @param udpAddress where the connection's UDP datagrams come from and
+     * should be sent to
+     * @return the connection's ID
+     */
+    int add(CBGNConnection conn, SocketAddress udpAddress) {
+        int id = nextId.getAndIncrement();
+        conn.setId(id);
+        conn.setUDPAddress(udpAddress);
+        synchronized (lock) {
+            byId.put(id, conn);
+            bySocket.put(conn.clientSocket, conn);
+            if (udpAddress != null) {
+                byUDPAddress.put(udpAddress, conn);
+            }
+            snapshot = null;
+        }
+        return id;
+    }
+
+    /**
+     * Removes the connection for the passed socket.
+     *
+     * @param socket the connection's TCP socket
+     * @return the connection removed, or null if it wasn't registered
+     */
+    CBGNConnection remove(Socket socket) {
+        synchronized (lock) {
+            CBGNConnection conn = bySocket.remove(socket);
+            if (conn == null) {
+                return null;
+            }
+            byId.remove(conn.getId());
+            SocketAddress udpAddress = conn.getUDPAddress();
+            if (udpAddress != null) {
+                byUDPAddress.remove(udpAddress, conn);
+            }
+            snapshot = null;
+            return conn;
+        }
+    }
+
+    /**
+     * Changes the address the passed connection's UDP datagrams come from and
+     * should be sent to. Nothing happens if the connection isn't registered.
+     *
+     * @param conn the connection
+     * @param udpAddress its new UDP address
+     */
+    void bindUDPAddress(CBGNConnection conn, SocketAddress udpAddress) {
+        synchronized (lock) {
+            if (byId.get(conn.getId()) != conn) {
+                return;
+            }
+            SocketAddress old = conn.getUDPAddress();
+            if (old != null) {
+                byUDPAddress.remove(old, conn);
+            }
+            conn.setUDPAddress(udpAddress);
+            if (udpAddress != null) {
+                byUDPAddress.put(udpAddress, conn);
+            }
+        }
+    }
+
+    /**
+     * Returns the connection with the passed ID.
+     *
+     * @param id the connection's ID
+     * @return the connection, or null if there isn't one
+     */
+    CBGNConnection get(int id) {
+        return byId.get(id);
+    }
+
+    /**
+     * Returns the connection for the passed TCP socket.
+     *
+     * @param socket the connection's socket
+     * @return the connection, or null if there isn't one
+     */
+    CBGNConnection get(Socket socket) {
+        return socket == null ? null : bySocket.get(socket);
+    }
+
+    /**
+     * Returns the connection with the passed session token. Tokens start with
+     * the connection's ID, so this is a single lookup.
+     *
+     * @param token a session token, as handed out by the server
+     * @return the connection, or null if the token doesn't match one
+     */
+    CBGNConnection getByToken(String token) {
+        if (token == null) {
+            return null;
+        }
+        int dot = token.indexOf('.');
+        if (dot <= 0) {
+            return null;
+        }
+        int id;
+        try {
+            id = Integer.parseInt(token.substring(0, dot));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        CBGNConnection conn = byId.get(id);
+        return conn != null && token.equals(conn.getSessionToken()) ? conn : null;
+    }
+
+    /**
+     * Returns the connection whose UDP datagrams come from the passed address.
+     *
+     * @param address the address a datagram came from
+     * @return the connection, or null if there isn't one
+     */
+    CBGNConnection getByUDPAddress(SocketAddress address) {
+        return address == null ? null : byUDPAddress.get(address);
+    }
+
+    /**
+     * Returns every registered connection. The array must not be modified;
+     * it's a snapshot and won't change as connections come and go.
+     *
+     * @return the registered connections
+     */
+    CBGNConnection[] snapshot() {
+        CBGNConnection[] current = snapshot;
+        if (current == null) {
+            synchronized (lock) {
+                current = snapshot;
+                if (current == null) {
+                    current = byId.values().toArray(new CBGNConnection[0]);
+                    snapshot = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Returns the number of registered connections.
+     *
+     * @return the number of connections
+     */
+    int size() {
+        return byId.size();
+    }
+}
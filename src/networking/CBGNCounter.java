@@ -0,0 +1,74 @@
+package networking;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The CBGNCounter class is a running total that many threads can add to at
+ * once without fighting over it. Each thread adds to one of several stripes,
+ * picked by its thread ID, and the stripes are spread a cache line apart so
+ * that threads on different cores don't keep stealing the same line from
+ * each other. Reading the total adds up every stripe, so it's the slow side.
+ *
+ * @author Chris
+ */
+final class CBGNCounter {
+
+    // the number of stripes, a power of two, and how many longs apart they
+    // sit (8 longs is a 64 byte cache line)
+    private static final int STRIPES = stripes();
+    private static final int SPACING = 8;
+
+    private final AtomicLongArray cells;
+
+    /**
+     * Creates a new CBGNCounter at 0.
+     */
+    CBGNCounter() {
+        this.cells = new AtomicLongArray(STRIPES * SPACING);
+    }
+
+    /**
+     * Adds the passed amount to the total.
+     *
+     * @param amount the amount to add
+     */
+    void add(long amount) {
+        cells.addAndGet(stripe(), amount);
+    }
+
+    /**
+     * Adds one to the total.
+     */
+    void increment() {
+        cells.incrementAndGet(stripe());
+    }
+
+    /**
+     * Returns the total. Additions made while this runs may or may not be
+     * counted.
+     *
+     * @return the total
+     */
+    long sum() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * SPACING);
+        }
+        return sum;
+    }
+
+    // returns the index of the calling thread's stripe
+    private static int stripe() {
+        long id = Thread.currentThread().getId();
+        // thread IDs are handed out in order, so mix the bits a little
+        int hash = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+        return ((hash >>> 16) & (STRIPES - 1)) * SPACING;
+    }
+
+    // twice the number of cores, rounded up to a power of two, so that a
+    // couple of threads landing on the same stripe doesn't matter much
+    private static int stripes() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        return Math.min(64, Integer.highestOneBit(Math.max(1, cores * 2 - 1)) << 1);
+    }
+}
@@ -0,0 +1,108 @@
+package networking;
+
+import error.CBGNException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The CBGNDeflateCompression class compresses messages with the JDK's
+ * Deflater. Every connection gets one Deflater and one Inflater, which are
+ * reset between messages rather than replaced, since each one holds native
+ * memory.
+ *
+ * @author Chris
+ */
+final class CBGNDeflateCompression extends CBGNCompression {
+
+    @Override
+    public String getName() {
+        return "deflate";
+    }
+
+    @Override
+    public CBGNCompressor newCompressor() {
+        return new Compressor();
+    }
+
+    private static final class Compressor extends CBGNCompressor {
+
+        // the deflater is only used under the connection's write lock and the
+        // inflater by its reading thread, but either may be ended by close()
+        private final Deflater deflater;
+        private final Inflater inflater;
+        private final byte[] chunk;
+        private byte[] inflated;
+        private boolean ended;
+
+        Compressor() {
+            this.deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            this.inflater = new Inflater(true);
+            this.chunk = new byte[4096];
+            this.inflated = new byte[4096];
+        }
+
+        @Override
+        public void compress(byte[] in, int off, int len, OutputStream out) throws IOException {
+            synchronized (deflater) {
+                if (ended) {
+                    throw new IOException("Compressor has been ended.");
+                }
+                deflater.reset();
+                deflater.setInput(in, off, len);
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(chunk);
+                    out.write(chunk, 0, n);
+                }
+            }
+        }
+
+        @Override
+        public ByteBuffer decompress(byte[] in, int off, int len, int limit) throws CBGNException {
+            synchronized (inflater) {
+                if (ended) {
+                    throw new CBGNException("Compressor has been ended.");
+                }
+                inflater.reset();
+                inflater.setInput(in, off, len);
+                int size = 0;
+                try {
+                    while (!inflater.finished()) {
+                        if (size == inflated.length) {
+                            if (size >= limit) {
+                                throw new CBGNException("Compressed message is larger than " + limit + " bytes.");
+                            }
+                            inflated = Arrays.copyOf(inflated, Math.min(limit, size * 2));
+                        }
+                        int n = inflater.inflate(inflated, size, inflated.length - size);
+                        if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                            throw new CBGNException("Compressed message is truncated.");
+                        }
+                        size += n;
+                    }
+                } catch (DataFormatException e) {
+                    throw new CBGNException("Compressed message is corrupt: " + e.getMessage());
+                }
+                return ByteBuffer.wrap(inflated, 0, size);
+            }
+        }
+
+        @Override
+        public void end() {
+            synchronized (deflater) {
+                synchronized (inflater) {
+                    if (!ended) {
+                        ended = true;
+                        deflater.end();
+                        inflater.end();
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package networking;
+
+import java.util.HashMap;
+
+/**
+ * The CBGNEvent class is something a server or client received, queued for
+ * the game's own thread to pick up instead of being handed to a listener.
+ * Each one says what happened, which connection it happened on and carries
+ * the message, if there was one.
+ *
+ * @author Chris
+ */
+public final class CBGNEvent {
+
+    /**
+     * What a CBGNEvent is about. Each type stands for the listener method
+     * that would have been called instead.
+     */
+    public enum Type {
+
+        /**
+         * A client connected to the server.
+         */
+        CONNECTED,
+        /**
+         * A message arrived over TCP.
+         */
+        MESSAGE,
+        /**
+         * A message arrived over plain or sequenced UDP, or a state snapshot
+         * arrived.
+         */
+        UDP_MESSAGE,
+        /**
+         * A message arrived over reliable UDP.
+         */
+        RELIABLE_UDP_MESSAGE,
+        /**
+         * The connection closed.
+         */
+        CLOSED,
+        /**
+         * The connection couldn't keep up with what was sent to it, and the
+         * overflow policy named by getReason() was applied.
+         */
+        SLOW
+    }
+
+    private final Type type;
+    private final int connectionId;
+    private final HashMap<String, String> data;
+    private final String reason;
+
+    /**
+     * Creates a new CBGNEvent.
+     *
+     * @param type what the event is about
+     * @param connectionId the ID of the connection it happened on
+     * @param data the message received, or null
+     * @param reason why the connection closed, for CLOSED events, or the
+     * overflow policy's name, for SLOW events
+     */
+    CBGNEvent(Type type, int connectionId, HashMap<String, String> data, String reason) {
+        this.type = type;
+        this.connectionId = connectionId;
+        this.data = data;
+        this.reason = reason;
+    }
+
+    /**
+     * Returns what this event is about.
+     *
+     * @return this event's type
+     */
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Returns the ID of the connection this event happened on, as handed out
+     * by the server. It's 0 for events on a client, which only has the one
+     * connection, and for UDP messages from an address that isn't bound to a
+     * connection yet.
+     *
+     * @return the connection's ID
+     */
+    public int getConnectionId() {
+        return connectionId;
+    }
+
+    /**
+     * Returns the message received, or null if this event isn't about a
+     * message.
+     *
+     * @return the message, or null
+     */
+    public HashMap<String, String> getData() {
+        return data;
+    }
+
+    /**
+     * Returns why the connection closed for a CLOSED event, or the name of
+     * the overflow policy applied for a SLOW event, or null for anything
+     * else.
+     *
+     * @return the reason, or null
+     */
+    public String getReason() {
+        return reason;
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + connectionId + (data == null ? "" : " " + data) + (reason == null ? "" : " " + reason);
+    }
+}
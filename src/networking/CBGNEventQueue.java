@@ -0,0 +1,84 @@
+package networking;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The CBGNEventQueue class holds the events a server or client received until
+ * the game's thread picks them up. Any number of reading threads add to it
+ * without locking, and a single game thread is expected to take them off with
+ * poll or drain, so game state never has to be shared with the reading
+ * threads. The queue is unbounded, so it has to be drained regularly.
+ *
+ * @author Chris
+ */
+public final class CBGNEventQueue {
+
+    private final ConcurrentLinkedQueue<CBGNEvent> events;
+
+    /**
+     * Creates a new, empty CBGNEventQueue.
+     */
+    CBGNEventQueue() {
+        this.events = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * Adds an event to the back of the queue.
+     *
+     * @param event the event to add
+     */
+    void add(CBGNEvent event) {
+        events.add(event);
+    }
+
+    /**
+     * Takes the oldest event off the queue.
+     *
+     * @return the oldest event, or null if the queue is empty
+     */
+    public CBGNEvent poll() {
+        return events.poll();
+    }
+
+    /**
+     * Moves every event in the queue to the passed collection, oldest first.
+     *
+     * @param into the collection to add the events to
+     * @return the number of events moved
+     */
+    public int drain(Collection<? super CBGNEvent> into) {
+        return drain(into, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Moves up to the passed number of events from the queue to the passed
+     * collection, oldest first, so that a flood of events can be spread over
+     * several frames.
+     *
+     * @param into the collection to add the events to
+     * @param max the most events to move
+     * @return the number of events moved
+     */
+    public int drain(Collection<? super CBGNEvent> into, int max) {
+        if (into == null) {
+            throw new IllegalArgumentException("Collection to drain into cannot be null.");
+        }
+        int moved = 0;
+        CBGNEvent event;
+        while (moved < max && (event = events.poll()) != null) {
+            into.add(event);
+            moved++;
+        }
+        return moved;
+    }
+
+    /**
+     * Returns whether the queue has no events in it.
+     *
+     * @return true if there's nothing to take
+     */
+    public boolean isEmpty() {
+        return events.isEmpty();
+    }
+}
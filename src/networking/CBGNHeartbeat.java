@@ -0,0 +1,169 @@
+package networking;
+
+import java.util.HashMap;
+
+/**
+ * The CBGNHeartbeat class measures the round trip time to one peer from
+ * pings and the pongs that answer them. The server sends a ping carrying its
+ * own clock, the client sends the same value straight back, and the
+ * difference is one sample. Samples are smoothed the way TCP smooths its
+ * round trip time, and jitter is the smoothed difference between
+ * consecutive samples, as in RTP.
+ *
+ * The server's pings also carry what it has measured so far, so the client
+ * side of a heartbeat knows its round trip time without measuring it again.
+ *
+ * @author Chris
+ */
+final class CBGNHeartbeat {
+
+    // in microseconds, or -1 until the first sample
+    private volatile long roundTripTime;
+    private volatile long jitter;
+    private long lastSample;
+
+    // the timer that sends the next ping, on the server side
+    private volatile CBGNTimingWheel.Timeout timeout;
+
+    // whether the peer said it answers pings
+    private volatile boolean answersPings;
+
+    /**
+     * Creates a new CBGNHeartbeat with nothing measured.
+     */
+    CBGNHeartbeat() {
+        this.roundTripTime = -1;
+        this.lastSample = -1;
+    }
+
+    /**
+     * Builds the next ping.
+     *
+     * @param now the current time in microseconds, on the sender's clock
+     * @return the ping to send
+     */
+    HashMap<String, String> ping(long now) {
+        HashMap<String, String> ping = new HashMap<>();
+        ping.put(CBGNProtocol.CONTROL, CBGNProtocol.PING);
+        ping.put(CBGNProtocol.SENT, Long.toString(now));
+        long rtt = roundTripTime;
+        if (rtt >= 0) {
+            ping.put(CBGNProtocol.RTT, Long.toString(rtt));
+            ping.put(CBGNProtocol.JITTER, Long.toString(jitter));
+        }
+        return ping;
+    }
+
+    /**
+     * Builds the answer to a ping.
+     *
+     * @param ping the ping received
+     * @return the pong to send back
+     */
+    static HashMap<String, String> pong(HashMap<String, String> ping) {
+        HashMap<String, String> pong = new HashMap<>();
+        pong.put(CBGNProtocol.CONTROL, CBGNProtocol.PONG);
+        String sent = ping.get(CBGNProtocol.SENT);
+        if (sent != null) {
+            pong.put(CBGNProtocol.SENT, sent);
+        }
+        return pong;
+    }
+
+    /**
+     * Takes a sample from a pong answering one of this side's pings.
+     *
+     * @param pong the pong received
+     * @param now the current time in microseconds, on the same clock the
+     * ping was sent with
+     * @return the sample in microseconds, or -1 if the pong didn't hold one
+     */
+    synchronized long pong(HashMap<String, String> pong, long now) {
+        long sent = parse(pong.get(CBGNProtocol.SENT));
+        if (sent < 0 || now < sent) {
+            return -1;
+        }
+        long sample = now - sent;
+        if (lastSample < 0) {
+            roundTripTime = sample;
+            jitter = sample / 2;
+        } else {
+            roundTripTime += (sample - roundTripTime) / 8;
+            jitter += (Math.abs(sample - lastSample) - jitter) / 16;
+        }
+        lastSample = sample;
+        return sample;
+    }
+
+    /**
+     * Takes the round trip time and jitter the peer measured from a ping it
+     * sent.
+     *
+     * @param ping the ping received
+     */
+    void pinged(HashMap<String, String> ping) {
+        long rtt = parse(ping.get(CBGNProtocol.RTT));
+        long measuredJitter = parse(ping.get(CBGNProtocol.JITTER));
+        if (rtt >= 0 && measuredJitter >= 0) {
+            jitter = measuredJitter;
+            roundTripTime = rtt;
+        }
+    }
+
+    /**
+     * Returns the smoothed round trip time.
+     *
+     * @return the round trip time in milliseconds, or -1 if it hasn't been
+     * measured yet
+     */
+    float getRoundTripTime() {
+        long rtt = roundTripTime;
+        return rtt < 0 ? -1 : rtt / 1000f;
+    }
+
+    /**
+     * Returns how much the round trip time varies from one sample to the
+     * next.
+     *
+     * @return the jitter in milliseconds, or -1 if it hasn't been measured
+     * yet
+     */
+    float getJitter() {
+        return roundTripTime < 0 ? -1 : jitter / 1000f;
+    }
+
+    /**
+     * Returns whether the peer said in its hello that it answers pings.
+     * Peers that didn't would hand a ping to their listener as an ordinary
+     * message, so they're never pinged.
+     *
+     * @return true if the peer can be pinged
+     */
+    boolean answersPings() {
+        return answersPings;
+    }
+
+    void setAnswersPings(boolean answersPings) {
+        this.answersPings = answersPings;
+    }
+
+    CBGNTimingWheel.Timeout getTimeout() {
+        return timeout;
+    }
+
+    void setTimeout(CBGNTimingWheel.Timeout timeout) {
+        this.timeout = timeout;
+    }
+
+    // parses a non-negative number from a control message, or returns -1
+    private static long parse(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package networking;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The CBGNInterestGrid class tracks the area each connection is interested in
+ * and finds the connections interested in a point. The world is split into
+ * square cells, and a connection is listed in every cell its area touches, so
+ * finding who cares about a point only looks at the connections in that
+ * point's cell.
+ *
+ * Cells work best when they're about as wide as a typical area of interest;
+ * much smaller cells make moving expensive, much bigger ones make each lookup
+ * check more connections.
+ *
+ * @author Chris
+ */
+final class CBGNInterestGrid {
+
+    private final float cellSize;
+
+    // the most cells one area of interest may cover, so a huge radius can't
+    // make an update list millions of cells while holding the lock
+    static final int MAX_CELLS = 4096;
+
+    // cell coordinates stay well inside the range of an int, so stepping
+    // through a range of them can't overflow
+    private static final long MAX_CELL = 1 << 30;
+
+    // the connections listed in each cell, keyed by the cell's packed
+    // coordinates
+    private final HashMap<Long, ArrayList<Interest>> cells;
+    private final IdentityHashMap<CBGNConnection, Interest> interests;
+
+    // lookups happen on every broadcast while updates only happen when
+    // someone moves, so lookups share the lock
+    private final ReentrantReadWriteLock lock;
+
+    /**
+     * Creates a new, empty CBGNInterestGrid.
+     *
+     * @param cellSize the width of each cell, greater than 0
+     */
+    CBGNInterestGrid(float cellSize) {
+        if (!(cellSize > 0)) {
+            throw new IllegalArgumentException("Cell size must be greater than 0.");
+        }
+        this.cellSize = cellSize;
+        this.cells = new HashMap<>();
+        this.interests = new IdentityHashMap<>();
+        this.lock = new ReentrantReadWriteLock();
+    }
+
+    /**
+     * Returns the width of each cell in this grid.
+     *
+     * @return the cell size
+     */
+    float getCellSize() {
+        return cellSize;
+    }
+
+    /**
+     * Sets the area the passed connection is interested in to a circle, moving
+     * it between cells if needed.
+     *
+     * @param conn the connection
+     * @param x the x coordinate of the circle's centre
+     * @param y the y coordinate of the circle's centre
+     * @param radius the radius of the circle, at least 0
+     * @throws IllegalArgumentException if the position or radius isn't
+     * finite, the radius is negative, or the circle covers more than
+     * MAX_CELLS cells
+     */
+    void update(CBGNConnection conn, float x, float y, float radius) {
+        if (!(radius >= 0) || !finite(x) || !finite(y) || !finite(radius)) {
+            throw new IllegalArgumentException("Position and radius must be finite and radius must be at least 0.");
+        }
+        long minX = cell((double) x - radius), minY = cell((double) y - radius);
+        long maxX = cell((double) x + radius), maxY = cell((double) y + radius);
+        if (minX < -MAX_CELL || minY < -MAX_CELL || maxX > MAX_CELL || maxY > MAX_CELL) {
+            throw new IllegalArgumentException("Area of interest is too far from the origin for a cell size of " + cellSize + ".");
+        }
+        if ((maxX - minX + 1) * (maxY - minY + 1) > MAX_CELLS) {
+            throw new IllegalArgumentException("Area of interest covers more than " + MAX_CELLS
+                    + " cells; use a bigger cell size or a smaller radius.");
+        }
+
+        lock.writeLock().lock();
+        try {
+            Interest interest = interests.get(conn);
+            if (interest == null) {
+                interest = new Interest(conn);
+                interests.put(conn, interest);
+            } else if (interest.minX != minX || interest.minY != minY
+                    || interest.maxX != maxX || interest.maxY != maxY) {
+                unlist(interest);
+            } else {
+                // still in the same cells, only the circle has changed
+                interest.set(x, y, radius);
+                return;
+            }
+            interest.set(x, y, radius);
+            interest.minX = (int) minX;
+            interest.minY = (int) minY;
+            interest.maxX = (int) maxX;
+            interest.maxY = (int) maxY;
+            list(interest);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes the passed connection from this grid. If it isn't in the grid,
+     * nothing happens.
+     *
+     * @param conn the connection
+     */
+    void remove(CBGNConnection conn) {
+        lock.writeLock().lock();
+        try {
+            Interest interest = interests.remove(conn);
+            if (interest != null) {
+                unlist(interest);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds every connection whose area of interest contains the passed point
+     * to the passed collection.
+     *
+     * @param x the x coordinate of the point
+     * @param y the y coordinate of the point
+     * @param out the collection to add interested connections to
+     */
+    void query(float x, float y, Collection<CBGNConnection> out) {
+        if (!finite(x) || !finite(y)) {
+            return;
+        }
+        lock.readLock().lock();
+        try {
+            ArrayList<Interest> listed = cells.get(key((int) cell(x), (int) cell(y)));
+            if (listed == null) {
+                return;
+            }
+            for (int i = 0; i < listed.size(); i++) {
+                Interest interest = listed.get(i);
+                float dx = x - interest.x, dy = y - interest.y;
+                if (dx * dx + dy * dy <= interest.radius * interest.radius) {
+                    out.add(interest.conn);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of connections in this grid.
+     *
+     * @return the number of connections with an area of interest
+     */
+    int size() {
+        lock.readLock().lock();
+        try {
+            return interests.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // adds the interest to every cell in its range
+    private void list(Interest interest) {
+        for (int cx = interest.minX; cx <= interest.maxX; cx++) {
+            for (int cy = interest.minY; cy <= interest.maxY; cy++) {
+                Long key = key(cx, cy);
+                ArrayList<Interest> listed = cells.get(key);
+                if (listed == null) {
+                    listed = new ArrayList<>(4);
+                    cells.put(key, listed);
+                }
+                listed.add(interest);
+            }
+        }
+    }
+
+    // removes the interest from every cell in its range, dropping empty cells
+    private void unlist(Interest interest) {
+        for (int cx = interest.minX; cx <= interest.maxX; cx++) {
+            for (int cy = interest.minY; cy <= interest.maxY; cy++) {
+                Long key = key(cx, cy);
+                ArrayList<Interest> listed = cells.get(key);
+                if (listed == null) {
+                    continue;
+                }
+                for (int i = 0; i < listed.size(); i++) {
+                    if (listed.get(i) == interest) {
+                        // order doesn't matter, so swap the last one in
+                        int last = listed.size() - 1;
+                        listed.set(i, listed.get(last));
+                        listed.remove(last);
+                        break;
+                    }
+                }
+                if (listed.isEmpty()) {
+                    cells.remove(key);
+                }
+            }
+        }
+    }
+
+    // returns the cell a coordinate falls in
+    private long cell(double coordinate) {
+        return (long) Math.floor(coordinate / cellSize);
+    }
+
+    private static boolean finite(float value) {
+        return !Float.isNaN(value) && !Float.isInfinite(value);
+    }
+
+    // packs a cell's coordinates into a single key
+    private static Long key(int cx, int cy) {
+        return ((long) cx << 32) | (cy & 0xFFFFFFFFL);
+    }
+
+    // a connection's area of interest and the range of cells it's listed in
+    private static final class Interest {
+
+        final CBGNConnection conn;
+        float x, y, radius;
+        int minX, minY, maxX, maxY;
+
+        Interest(CBGNConnection conn) {
+            this.conn = conn;
+        }
+
+        void set(float x, float y, float radius) {
+            this.x = x;
+            this.y = y;
+            this.radius = radius;
+        }
+    }
+}
@@ -0,0 +1,405 @@
+package networking;
+
+import error.CBGNException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * The CBGNJSONCodec class writes each message as a JSON object on its own
+ * line, the way CBGN has always talked. Messages are always flat String,
+ * String maps, so rather than going through a general JSON library this codec
+ * writes straight to the output stream and parses straight out of the read
+ * buffer into the message's map.
+ *
+ * Values that aren't strings (numbers, true and false) are accepted from
+ * other JSON writers and passed on as their literal text; nested objects and
+ * arrays are not.
+ *
+ * @author Chris
+ */
+final class CBGNJSONCodec extends CBGNCodec {
+
+    private static final byte[] HEX = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+    private static final byte[] NULL = {'n', 'u', 'l', 'l'};
+
+    // every thread decoding keeps its own reader, so strings with escapes in
+    // them can be unescaped into the same scratch space every time
+    private static final ThreadLocal<Reader> READER = new ThreadLocal<Reader>() {
+        @Override
+        protected Reader initialValue() {
+            return new Reader();
+        }
+    };
+
+    @Override
+    public String getName() {
+        return "json";
+    }
+
+    @Override
+    public void encode(Map<String, String> data, OutputStream out) throws IOException {
+        writeObject(data, out);
+        out.write('\n');
+    }
+
+    @Override
+    public boolean decode(ByteBuffer in, Map<String, String> data) throws CBGNException {
+        int start = in.position();
+        int newline = -1;
+        for (int i = start; i < in.limit(); i++) {
+            if (in.get(i) == '\n') {
+                newline = i;
+                break;
+            }
+        }
+        if (newline < 0) {
+            return false;
+        }
+
+        // the line is consumed either way, so a bad message doesn't stop the
+        // ones after it
+        in.position(newline + 1);
+        READER.get().parse(in, start, newline, data);
+        return true;
+    }
+
+    /**
+     * Writes the passed data to the passed stream as a single JSON object,
+     * without a trailing newline.
+     *
+     * @param data the data to write
+     * @param out the stream to write to
+     * @throws IOException if writing fails
+     */
+    static void writeObject(Map<String, String> data, OutputStream out) throws IOException {
+        out.write('{');
+        boolean first = true;
+        for (Map.Entry<String, String> entry : data.entrySet()) {
+            if (!first) {
+                out.write(',');
+            }
+            first = false;
+            writeString(String.valueOf(entry.getKey()), out);
+            out.write(':');
+            if (entry.getValue() == null) {
+                out.write(NULL);
+            } else {
+                writeString(entry.getValue(), out);
+            }
+        }
+        out.write('}');
+    }
+
+    /**
+     * Parses the passed range of the buffer as a single JSON object into the
+     * passed map. A range holding nothing but whitespace is an empty message.
+     *
+     * @param in the buffer to parse from
+     * @param start the index of the first byte of the object
+     * @param end the index just past the last byte of the object
+     * @param data the map to put the parsed data into
+     * @throws CBGNException if the range isn't a flat JSON object
+     */
+    static void readObject(ByteBuffer in, int start, int end, Map<String, String> data) throws CBGNException {
+        READER.get().parse(in, start, end, data);
+    }
+
+    private static void writeString(String s, OutputStream out) throws IOException {
+        out.write('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    out.write('\\');
+                    out.write('"');
+                    break;
+                case '\\':
+                    out.write('\\');
+                    out.write('\\');
+                    break;
+                case '\n':
+                    out.write('\\');
+                    out.write('n');
+                    break;
+                case '\r':
+                    out.write('\\');
+                    out.write('r');
+                    break;
+                case '\t':
+                    out.write('\\');
+                    out.write('t');
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.write('\\');
+                        out.write('u');
+                        out.write('0');
+                        out.write('0');
+                        out.write(HEX[c >> 4]);
+                        out.write(HEX[c & 0xF]);
+                    } else {
+                        i = CBGNUTF8.write(s, i, out);
+                    }
+            }
+        }
+        out.write('"');
+    }
+
+    // a cursor over the bytes of one JSON object
+    private static final class Reader {
+
+        private final StringBuilder scratch = new StringBuilder();
+        private ByteBuffer in;
+        private int pos, end;
+
+        void parse(ByteBuffer in, int start, int end, Map<String, String> data) throws CBGNException {
+            this.in = in;
+            this.pos = start;
+            this.end = end;
+            try {
+                skipWhitespace();
+                if (pos == end) {
+                    return;
+                }
+                expect('{');
+                skipWhitespace();
+                if (peek() == '}') {
+                    pos++;
+                } else {
+                    while (true) {
+                        skipWhitespace();
+                        if (peek() != '"') {
+                            throw error("expected a key");
+                        }
+                        String key = readKey();
+                        skipWhitespace();
+                        expect(':');
+                        skipWhitespace();
+                        data.put(key, readValue());
+                        skipWhitespace();
+                        if (peek() == ',') {
+                            pos++;
+                        } else {
+                            expect('}');
+                            break;
+                        }
+                    }
+                }
+                skipWhitespace();
+                if (pos != end) {
+                    throw error("unexpected data after the object");
+                }
+            } finally {
+                this.in = null;
+            }
+        }
+
+        private String readValue() throws CBGNException {
+            int c = peek();
+            if (c == '"') {
+                return readString();
+            }
+            if (c == '{' || c == '[') {
+                throw error("nested objects and arrays aren't supported");
+            }
+            int start = pos;
+            while (pos < end) {
+                c = in.get(pos);
+                if (c == ',' || c == '}' || c == ' ' || c == '\t' || c == '\r' || c == '\n') {
+                    break;
+                }
+                pos++;
+            }
+            if (pos == start) {
+                throw error("expected a value");
+            }
+            String literal = CBGNUTF8.read(in, start, pos - start);
+            return "null".equals(literal) ? null : literal;
+        }
+
+        // reads a key starting at its opening quote. Keys without escapes go
+        // through the key cache, so repeated keys aren't decoded every time.
+        private String readKey() throws CBGNException {
+            int start = pos + 1;
+            for (int i = start; i < end; i++) {
+                byte b = in.get(i);
+                if (b == '"') {
+                    pos = i + 1;
+                    return CBGNUTF8.readKey(in, start, i - start);
+                }
+                if (b == '\\') {
+                    break;
+                }
+            }
+            return readString();
+        }
+
+        // reads a string starting at its opening quote. Strings without
+        // escapes are decoded straight from the buffer, the rest are unescaped
+        // into the scratch space first.
+        private String readString() throws CBGNException {
+            int start = ++pos;
+            while (pos < end) {
+                byte b = in.get(pos);
+                if (b == '"') {
+                    String s = CBGNUTF8.read(in, start, pos - start);
+                    pos++;
+                    return s;
+                }
+                if (b == '\\') {
+                    break;
+                }
+                pos++;
+            }
+            if (pos == end) {
+                throw error("unterminated string");
+            }
+
+            scratch.setLength(0);
+            appendUtf8(start, pos);
+            while (pos < end) {
+                byte b = in.get(pos);
+                if (b == '"') {
+                    pos++;
+                    return scratch.toString();
+                }
+                if (b == '\\') {
+                    pos++;
+                    appendEscape();
+                } else {
+                    int run = pos;
+                    while (pos < end && in.get(pos) != '"' && in.get(pos) != '\\') {
+                        pos++;
+                    }
+                    appendUtf8(run, pos);
+                }
+            }
+            throw error("unterminated string");
+        }
+
+        private void appendEscape() throws CBGNException {
+            if (pos >= end) {
+                throw error("unterminated escape");
+            }
+            byte b = in.get(pos++);
+            switch (b) {
+                case '"':
+                case '\\':
+                case '/':
+                    scratch.append((char) b);
+                    break;
+                case 'b':
+                    scratch.append('\b');
+                    break;
+                case 'f':
+                    scratch.append('\f');
+                    break;
+                case 'n':
+                    scratch.append('\n');
+                    break;
+                case 'r':
+                    scratch.append('\r');
+                    break;
+                case 't':
+                    scratch.append('\t');
+                    break;
+                case 'u':
+                    if (end - pos < 4) {
+                        throw error("truncated unicode escape");
+                    }
+                    int c = 0;
+                    for (int i = 0; i < 4; i++) {
+                        int digit = Character.digit(in.get(pos++), 16);
+                        if (digit < 0) {
+                            throw error("bad unicode escape");
+                        }
+                        c = (c << 4) | digit;
+                    }
+                    scratch.append((char) c);
+                    break;
+                default:
+                    throw error("bad escape");
+            }
+        }
+
+        // decodes the UTF-8 bytes in the range onto the scratch space.
+        // Malformed sequences become U+FFFD.
+        private void appendUtf8(int from, int to) {
+            int i = from;
+            while (i < to) {
+                int b = in.get(i) & 0xFF;
+                int extra;
+                int cp;
+                if (b < 0x80) {
+                    scratch.append((char) b);
+                    i++;
+                    continue;
+                } else if (b >= 0xF0 && b < 0xF8) {
+                    extra = 3;
+                    cp = b & 0x07;
+                } else if (b >= 0xE0) {
+                    extra = 2;
+                    cp = b & 0x0F;
+                } else if (b >= 0xC0) {
+                    extra = 1;
+                    cp = b & 0x1F;
+                } else {
+                    scratch.append('\uFFFD');
+                    i++;
+                    continue;
+                }
+                if (i + extra >= to) {
+                    scratch.append('\uFFFD');
+                    i = to;
+                    continue;
+                }
+                boolean valid = true;
+                for (int j = 1; j <= extra; j++) {
+                    int next = in.get(i + j) & 0xFF;
+                    if ((next & 0xC0) != 0x80) {
+                        valid = false;
+                        break;
+                    }
+                    cp = (cp << 6) | (next & 0x3F);
+                }
+                if (valid && cp <= Character.MAX_CODE_POINT) {
+                    scratch.appendCodePoint(cp);
+                    i += extra + 1;
+                } else {
+                    scratch.append('\uFFFD');
+                    i++;
+                }
+            }
+        }
+
+        private int peek() throws CBGNException {
+            if (pos >= end) {
+                throw error("unexpected end of message");
+            }
+            return in.get(pos);
+        }
+
+        private void expect(char c) throws CBGNException {
+            if (peek() != c) {
+                throw error("expected '" + c + "'");
+            }
+            pos++;
+        }
+
+        private void skipWhitespace() {
+            while (pos < end) {
+                byte b = in.get(pos);
+                if (b != ' ' && b != '\t' && b != '\r' && b != '\n') {
+                    return;
+                }
+                pos++;
+            }
+        }
+
+        private CBGNException error(String reason) {
+            return new CBGNException("Could not parse JSON message: " + reason + " at byte " + pos + ".");
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package networking;
+
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The CBGNKeyDictionary class replaces map keys with short references once
+ * both ends know them. The sending side gives a key an ID once it has sent
+ * it a few times, and sends it as a reference like "~a" (a tilde followed by
+ * the ID in base 36) from then on. Before the first message that uses a
+ * reference, the connection sends the receiving side a control message
+ * defining it. Keys shorter than three characters, like "x" and "y", gain
+ * nothing from this and are never replaced.
+ *
+ * IDs are never taken back, so at most MAX_KEYS keys get one, and keys seen
+ * after that are sent as they are. Only counting keys that keep coming up
+ * stops keys that are sent once or twice, such as ones made up by a client
+ * and passed on by the server, from using up the IDs meant for the keys a
+ * game sends in every message.
+ *
+ * Keys that really do start with a tilde are sent with the tilde doubled.
+ *
+ * A server shares one sending dictionary between all its connections, so a
+ * broadcast still encodes to the same bytes for everyone; each connection
+ * only tracks how many IDs it has defined for its peer. The receiving side
+ * is per connection, and always returns the same String for the same key.
+ *
+ * Dictionaries only work over an ordered, reliable stream, so they're only
+ * used for TCP.
+ *
+ * @author Chris
+ */
+final class CBGNKeyDictionary {
+
+    // the character that starts a reference
+    static final char REF = '~';
+
+    // the most keys given IDs; keys seen after that are sent as they are
+    static final int MAX_KEYS = 4096;
+
+    // keys this short are always sent as they are
+    private static final int MIN_KEY_LENGTH = 3;
+
+    // how many times a key has to be sent before it's given an ID
+    private static final int PROMOTE_AFTER = 4;
+
+    // the most keys counted towards an ID at once; the counts start over
+    // when there are more, so rare keys are forgotten
+    private static final int MAX_CANDIDATES = 1024;
+
+    // sending: the ID of each key, the key for each ID and each ID's reference
+    private final ConcurrentHashMap<String, Integer> ids;
+    private volatile String[] keys;
+    private volatile String[] refs;
+    private volatile int size;
+
+    // sending: how many times each key without an ID has been sent, guarded
+    // by this
+    private final HashMap<String, Integer> candidates;
+
+    // receiving: the key for each ID the peer has defined, and the view
+    // codecs decode into
+    private String[] defined;
+    private Decoding decoding;
+
+    /**
+     * Creates a new, empty CBGNKeyDictionary.
+     */
+    CBGNKeyDictionary() {
+        this.ids = new ConcurrentHashMap<>();
+        this.candidates = new HashMap<>();
+        this.keys = new String[64];
+        this.refs = new String[64];
+        this.defined = new String[64];
+    }
+
+    /**
+     * Returns a copy of the passed data with every key that has an ID, or has
+     * now been sent often enough to be given one, replaced by its reference.
+     *
+     * @param data the data to send
+     * @param maxId set to the highest ID used, or left alone if none were
+     * @return the data to encode
+     */
+    HashMap<String, String> encode(Map<String, String> data, int[] maxId) {
+        HashMap<String, String> encoded = new HashMap<>(data.size() * 2);
+        for (Map.Entry<String, String> entry : data.entrySet()) {
+            String key = entry.getKey();
+            if (key != null && key.length() >= MIN_KEY_LENGTH && key.charAt(0) != REF) {
+                int id = idFor(key);
+                if (id >= 0) {
+                    key = refs[id];
+                    if (id > maxId[0]) {
+                        maxId[0] = id;
+                    }
+                }
+            } else if (key != null && !key.isEmpty() && key.charAt(0) == REF) {
+                key = REF + key;
+            }
+            encoded.put(key, entry.getValue());
+        }
+        return encoded;
+    }
+
+    /**
+     * Returns the key with the passed ID, as defined by this side.
+     *
+     * @param id the ID
+     * @return the key
+     */
+    String key(int id) {
+        return keys[id];
+    }
+
+    // returns the ID for the passed key, giving it one if it has been sent
+    // often enough and there's room, or -1
+    private int idFor(String key) {
+        Integer id = ids.get(key);
+        if (id != null) {
+            return id;
+        }
+        if (size >= MAX_KEYS) {
+            return -1;
+        }
+        synchronized (this) {
+            id = ids.get(key);
+            if (id != null) {
+                return id;
+            }
+            if (size >= MAX_KEYS) {
+                candidates.clear();
+                return -1;
+            }
+            Integer seen = candidates.get(key);
+            int count = seen == null ? 1 : seen + 1;
+            if (count < PROMOTE_AFTER) {
+                if (seen == null && candidates.size() >= MAX_CANDIDATES) {
+                    candidates.clear();
+                }
+                candidates.put(key, count);
+                return -1;
+            }
+            candidates.remove(key);
+            int next = size;
+            if (next == keys.length) {
+                keys = Arrays.copyOf(keys, next * 2);
+                refs = Arrays.copyOf(refs, next * 2);
+            }
+            keys[next] = key;
+            refs[next] = REF + Integer.toString(next, Character.MAX_RADIX);
+            size = next + 1;
+            // published last, so anyone who finds the ID finds its key too
+            ids.put(key, next);
+            return next;
+        }
+    }
+
+    /**
+     * Records a key the peer has defined. Only called by the connection's
+     * reading thread.
+     *
+     * @param id the key's ID
+     * @param key the key
+     */
+    void define(int id, String key) {
+        if (id < 0 || id >= MAX_KEYS) {
+            return;
+        }
+        if (id >= defined.length) {
+            defined = Arrays.copyOf(defined, Math.min(MAX_KEYS, Math.max(id + 1, defined.length * 2)));
+        }
+        defined[id] = key;
+    }
+
+    /**
+     * Turns a received key back into the key the peer meant. Only called by
+     * the connection's reading thread.
+     *
+     * @param key the key as received
+     * @return the key it stands for, or null if it's a reference the peer
+     * hasn't defined
+     */
+    String decode(String key) {
+        if (key == null || key.isEmpty() || key.charAt(0) != REF) {
+            return key;
+        }
+        if (key.length() > 1 && key.charAt(1) == REF) {
+            return key.substring(1);
+        }
+        int id = parseId(key, 1);
+        return id >= 0 && id < defined.length ? defined[id] : null;
+    }
+
+    /**
+     * Returns a map that decodes keys as they're put into the passed one, so
+     * a codec can decode straight into it. The same view is reused for every
+     * message, so only the connection's reading thread may call this.
+     *
+     * @param target the map to fill
+     * @return a map to hand to the codec
+     */
+    Map<String, String> decoding(Map<String, String> target) {
+        if (decoding == null) {
+            decoding = new Decoding(this);
+        }
+        decoding.target = target;
+        decoding.undefined = false;
+        return decoding;
+    }
+
+    /**
+     * Returns whether the last message decoded through decoding() used a
+     * reference the peer hasn't defined. That only happens if the definition
+     * was dropped along the way, and the message can't be trusted.
+     *
+     * @return true if the last message had an undefined reference
+     */
+    boolean sawUndefined() {
+        return decoding != null && decoding.undefined;
+    }
+
+    /**
+     * Parses an ID written in base 36, as in a reference or a definition.
+     *
+     * @param s the string holding the ID
+     * @param start the index the ID starts at
+     * @return the ID, or -1 if it isn't one
+     */
+    static int parseId(String s, int start) {
+        if (start >= s.length() || s.length() - start > 4) {
+            return -1;
+        }
+        int id = 0;
+        for (int i = start; i < s.length(); i++) {
+            int digit = Character.digit(s.charAt(i), Character.MAX_RADIX);
+            if (digit < 0) {
+                return -1;
+            }
+            id = id * Character.MAX_RADIX + digit;
+        }
+        return id;
+    }
+
+    // a write-through view that decodes keys on the way into its target
+    private static final class Decoding extends AbstractMap<String, String> {
+
+        private final CBGNKeyDictionary dictionary;
+        Map<String, String> target;
+        boolean undefined;
+
+        Decoding(CBGNKeyDictionary dictionary) {
+            this.dictionary = dictionary;
+        }
+
+        @Override
+        public String put(String key, String value) {
+            String decoded = dictionary.decode(key);
+            if (decoded == null) {
+                undefined = true;
+                return null;
+            }
+            return target.put(decoded, value);
+        }
+
+        @Override
+        public Set<Map.Entry<String, String>> entrySet() {
+            return target.entrySet();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package networking;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The CBGNLatencyHistogram class counts latency samples into buckets so that
+ * percentiles can be read off without keeping every sample. Values up to
+ * SUB_BUCKETS are counted exactly; above that, every power of two is split
+ * into SUB_BUCKETS equal buckets, so a percentile is never off by more than
+ * about 3%. Recording is a single atomic increment, so any number of threads
+ * can record at once.
+ *
+ * @author Chris
+ */
+final class CBGNLatencyHistogram {
+
+    // how many buckets each power of two is split into
+    private static final int SUB_BUCKETS = 32;
+    private static final int SUB_BITS = 5;
+
+    // enough buckets for any positive long
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts;
+
+    /**
+     * Creates a new, empty CBGNLatencyHistogram.
+     */
+    CBGNLatencyHistogram() {
+        this.counts = new AtomicLongArray(BUCKETS);
+    }
+
+    /**
+     * Counts one sample. Negative samples are counted as 0.
+     *
+     * @param value the sample, in whatever unit the caller uses
+     */
+    void record(long value) {
+        counts.incrementAndGet(bucket(Math.max(0, value)));
+    }
+
+    /**
+     * Returns the count in every bucket, optionally emptying the histogram at
+     * the same time. Samples recorded while this runs land either in this
+     * snapshot or the next one, never both.
+     *
+     * @param reset true to empty the histogram
+     * @return the count in every bucket
+     */
+    long[] snapshot(boolean reset) {
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = reset ? counts.getAndSet(i, 0) : counts.get(i);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Returns the value below which the passed fraction of the samples in a
+     * snapshot fall.
+     *
+     * @param snapshot a snapshot from snapshot()
+     * @param fraction the fraction, such as 0.99 for the 99th percentile
+     * @return the highest value in the bucket holding that percentile, or 0
+     * if the snapshot is empty
+     */
+    static long percentile(long[] snapshot, double fraction) {
+        long total = 0;
+        for (long count : snapshot) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * fraction));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return bucketValue(i);
+            }
+        }
+        return bucketValue(snapshot.length - 1);
+    }
+
+    /**
+     * Returns the number of samples in a snapshot.
+     *
+     * @param snapshot a snapshot from snapshot()
+     * @return the number of samples
+     */
+    static long count(long[] snapshot) {
+        long total = 0;
+        for (long count : snapshot) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * Returns the highest value counted in the passed bucket.
+     *
+     * @param bucket the index of a bucket
+     * @return the highest value it holds
+     */
+    static long bucketValue(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long low = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return low + (1L << shift) - 1;
+    }
+
+    // returns the bucket a non-negative value is counted in
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        // how far the value has to be shifted to fit in SUB_BITS + 1 bits
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BITS - 1;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+}
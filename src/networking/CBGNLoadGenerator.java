@@ -0,0 +1,678 @@
+package networking;
+
+import error.CBGNException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The CBGNLoadGenerator class is a headless load test. It connects thousands
+ * of simulated clients to a server, has each of them send TCP and UDP
+ * messages at a steady rate, and reports the throughput the server sustains,
+ * the latency of each client's messages coming back to it, and how many
+ * clients failed to connect, finish their handshake, bind their UDP address
+ * or stay connected.
+ *
+ * A simulated client speaks the same protocol as a CBGNClient, but its TCP
+ * connection is driven by a few shared selector loops and its UDP socket by
+ * one shared selector, rather than each client running its own threads, so
+ * a single process can hold as many clients as it has file descriptors.
+ *
+ * Every message carries the index of the client that sent it and the time it
+ * was sent. The server echoes messages to everyone in the sender's rooms, so
+ * latency is measured when a client gets its own message back, and every
+ * message delivered counts toward throughput.
+ *
+ * Without --host, the test starts its own selector-engine server on
+ * loopback, and --room-size splits the clients into rooms so that echoes
+ * don't go to every client. Run it with --help for every option.
+ *
+ * @author Chris
+ */
+public final class CBGNLoadGenerator {
+
+    // message keys, picked so they don't clash with a game's own
+    private static final String CLIENT = "lt.c";
+    private static final String SENT = "lt.t";
+    private static final String PADDING = "lt.p";
+
+    // how often the drivers hand out send credit, in milliseconds
+    private static final long DRIVE_INTERVAL = 10;
+
+    // how long a client gets to connect and to hear back on its hello
+    private static final int CONNECT_TIMEOUT = 5000;
+    private static final long HANDSHAKE_TIMEOUT = TimeUnit.SECONDS.toNanos(5);
+
+    // the same schedule CBGNClient binds its UDP address on
+    private static final int BIND_ATTEMPTS = 20;
+    private static final long BIND_INTERVAL = TimeUnit.MILLISECONDS.toNanos(250);
+
+    private static final String USAGE = "Usage: java networking.CBGNLoadGenerator [options]\n"
+            + "  --host <name>       server to test; without it a server is started here\n"
+            + "  --port <n>          server TCP port (default 2776)\n"
+            + "  --udp-port <n>      server UDP port (default 2777)\n"
+            + "  --clients <n>       simulated clients (default 1000)\n"
+            + "  --rate <n>          messages each client sends a second (default 5)\n"
+            + "  --udp <fraction>    fraction of messages sent over UDP (default 0.5)\n"
+            + "  --size <bytes>      padding added to each message (default 64)\n"
+            + "  --duration <s>      how long to send for once every client is up (default 30)\n"
+            + "  --ramp <s>          how long to take connecting the clients (default 5)\n"
+            + "  --interval <s>      how often to report (default 5)\n"
+            + "  --loops <n>         selector loops driving the clients' TCP (default: cores)\n"
+            + "  --codec <name>      json or binary (default json)\n"
+            + "  --room-size <n>     clients per room on a local server; 0 for one room (default 16)";
+
+    // options
+    private String host;
+    private int port = 2776;
+    private int udpPort = 2777;
+    private int clients = 1000;
+    private double rate = 5;
+    private double udpFraction = 0.5;
+    private int size = 64;
+    private int duration = 30;
+    private int ramp = 5;
+    private int interval = 5;
+    private int loops = Runtime.getRuntime().availableProcessors();
+    private CBGNCodec codec = CBGNCodec.JSON;
+    private int roomSize = 16;
+
+    private CBGNServer server;
+    private InetSocketAddress tcpAddress;
+    private InetSocketAddress udpAddress;
+    private String padding;
+
+    private CBGNSelectorLoop[] selectorLoops;
+    private Selector udpSelector;
+    private final ConcurrentLinkedQueue<SimulatedClient> udpRegistrations = new ConcurrentLinkedQueue<>();
+    private final List<SimulatedClient> connected = new ArrayList<>();
+    private volatile boolean stopping;
+
+    // counted over the whole run, and as of the last report
+    private final AtomicLong sentTCP = new AtomicLong();
+    private final AtomicLong sentUDP = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private long reportedSent;
+    private long reportedDelivered;
+
+    // latencies in microseconds, since the last report and since every
+    // client was up
+    private final CBGNLatencyHistogram tcpLatency = new CBGNLatencyHistogram();
+    private final CBGNLatencyHistogram udpLatency = new CBGNLatencyHistogram();
+    private final CBGNLatencyHistogram tcpTotal = new CBGNLatencyHistogram();
+    private final CBGNLatencyHistogram udpTotal = new CBGNLatencyHistogram();
+
+    private final AtomicLong connectFailures = new AtomicLong();
+    private final AtomicLong handshakeFailures = new AtomicLong();
+    private final AtomicLong bindFailures = new AtomicLong();
+    private final AtomicLong closedEarly = new AtomicLong();
+
+    /**
+     * Runs a load test with the passed options.
+     *
+     * @param args the command line options
+     */
+    public static void main(String[] args) {
+        CBGNLoadGenerator generator = new CBGNLoadGenerator();
+        try {
+            generator.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        try {
+            generator.run();
+        } catch (IOException | InterruptedException e) {
+            Logger.getLogger(CBGNLoadGenerator.class.getName()).log(Level.SEVERE, null, e);
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    // reads the command line options into the fields above
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if ("--help".equals(option)) {
+                System.out.println(USAGE);
+                System.exit(0);
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing a value for " + option + ".");
+            }
+            String value = args[++i];
+            try {
+                switch (option) {
+                    case "--host":
+                        host = value;
+                        break;
+                    case "--port":
+                        port = Integer.parseInt(value);
+                        break;
+                    case "--udp-port":
+                        udpPort = Integer.parseInt(value);
+                        break;
+                    case "--clients":
+                        clients = Integer.parseInt(value);
+                        break;
+                    case "--rate":
+                        rate = Double.parseDouble(value);
+                        break;
+                    case "--udp":
+                        udpFraction = Double.parseDouble(value);
+                        break;
+                    case "--size":
+                        size = Integer.parseInt(value);
+                        break;
+                    case "--duration":
+                        duration = Integer.parseInt(value);
+                        break;
+                    case "--ramp":
+                        ramp = Integer.parseInt(value);
+                        break;
+                    case "--interval":
+                        interval = Integer.parseInt(value);
+                        break;
+                    case "--loops":
+                        loops = Integer.parseInt(value);
+                        break;
+                    case "--codec":
+                        codec = "binary".equals(value) ? CBGNCodec.BINARY : "json".equals(value) ? CBGNCodec.JSON : null;
+                        if (codec == null) {
+                            throw new IllegalArgumentException("Codec must be json or binary.");
+                        }
+                        break;
+                    case "--room-size":
+                        roomSize = Integer.parseInt(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + option + ".");
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bad value for " + option + ": " + value);
+            }
+        }
+        if (clients < 1 || rate < 0 || udpFraction < 0 || udpFraction > 1 || size < 0
+                || duration < 1 || ramp < 0 || interval < 1 || loops < 1 || roomSize < 0) {
+            throw new IllegalArgumentException("Option out of range.");
+        }
+    }
+
+    // connects the clients, drives them for the test's duration and reports
+    private void run() throws IOException, InterruptedException {
+        if (host == null) {
+            startServer();
+        }
+        String address = host == null ? "127.0.0.1" : host;
+        tcpAddress = new InetSocketAddress(address, port);
+        udpAddress = new InetSocketAddress(address, udpPort);
+        char[] pad = new char[size];
+        Arrays.fill(pad, 'x');
+        padding = new String(pad);
+
+        selectorLoops = new CBGNSelectorLoop[loops];
+        for (int i = 0; i < loops; i++) {
+            selectorLoops[i] = new CBGNSelectorLoop();
+            startDaemon(selectorLoops[i], "CBGNLoadGenerator-loop-" + i);
+        }
+        udpSelector = Selector.open();
+        startDaemon(new Runnable() {
+            @Override
+            public void run() {
+                receiveDatagrams();
+            }
+        }, "CBGNLoadGenerator-udp");
+        startDaemon(new Runnable() {
+            @Override
+            public void run() {
+                drive();
+            }
+        }, "CBGNLoadGenerator-driver");
+
+        System.out.println("Connecting " + clients + " clients to " + tcpAddress + " over " + ramp + "s"
+                + (host == null && roomSize > 0 ? ", " + roomSize + " to a room" : "") + ".");
+        long start = System.nanoTime();
+        long nextReport = start + TimeUnit.SECONDS.toNanos(interval);
+        long rampNanos = TimeUnit.SECONDS.toNanos(ramp);
+        for (int i = 0; i < clients; i++) {
+            long due = start + rampNanos * i / clients;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            connect(i);
+            if (System.nanoTime() - nextReport >= 0) {
+                report(start, interval);
+                nextReport += TimeUnit.SECONDS.toNanos(interval);
+            }
+        }
+
+        // only traffic once every client is up counts toward the totals
+        tcpTotal.snapshot(true);
+        udpTotal.snapshot(true);
+        long sentBefore = sentTCP.get() + sentUDP.get();
+        long deliveredBefore = delivered.get();
+        long measured = System.nanoTime();
+        long end = measured + TimeUnit.SECONDS.toNanos(duration);
+        while (true) {
+            long wait = Math.min(end, nextReport) - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            if (System.nanoTime() - nextReport >= 0) {
+                report(start, interval);
+                nextReport += TimeUnit.SECONDS.toNanos(interval);
+            }
+            if (System.nanoTime() - end >= 0) {
+                break;
+            }
+        }
+        stopping = true;
+        double seconds = (System.nanoTime() - measured) / 1e9;
+        long[] tcp = tcpTotal.snapshot(false);
+        long[] udp = udpTotal.snapshot(false);
+        System.out.println("Finished after " + duration + "s with every client up:");
+        System.out.println(String.format("  sent %.0f/s, delivered %.0f/s",
+                (sentTCP.get() + sentUDP.get() - sentBefore) / seconds, (delivered.get() - deliveredBefore) / seconds));
+        System.out.println("  tcp " + latencies(tcp));
+        System.out.println("  udp " + latencies(udp));
+        if (server != null) {
+            CBGNMetrics metrics = server.getMetrics();
+            System.out.println(String.format("  server encode p99 %.1fus, decode p99 %.1fus, broadcast p99 %.1fus, dropped %d",
+                    metrics.getEncodeTime(0.99) / 1000.0, metrics.getDecodeTime(0.99) / 1000.0,
+                    metrics.getBroadcastTime(0.99) / 1000.0, metrics.getMessagesDropped()));
+        }
+        System.out.println("  " + status());
+    }
+
+    // starts a selector-engine server on this machine and waits for it to
+    // take connections
+    private void startServer() throws IOException, InterruptedException {
+        server = new CBGNServer(port, udpPort, udpPort + 1);
+        server.registerListener(new QuietServerListener());
+        server.setSelectorEngine(true);
+        startDaemon(server, "CBGNLoadGenerator-server");
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CONNECT_TIMEOUT);
+        while (true) {
+            try {
+                new Socket("127.0.0.1", port).close();
+                return;
+            } catch (IOException e) {
+                if (System.nanoTime() - deadline >= 0) {
+                    throw e;
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    // opens one client's sockets and sends its hello
+    private void connect(int index) {
+        SimulatedClient client = new SimulatedClient(index);
+        try {
+            SocketChannel channel = SocketChannel.open();
+            channel.socket().setTcpNoDelay(true);
+            channel.socket().connect(tcpAddress, CONNECT_TIMEOUT);
+            client.udp = DatagramChannel.open();
+            client.udp.bind(new InetSocketAddress(0));
+            client.udp.configureBlocking(false);
+            client.tcp = new CBGNConnection(client, channel);
+            client.connectedAt = System.nanoTime();
+            // the hello is queued before the loop can write, so it goes first
+            client.tcp.sayHello(codec, true, null);
+            selectorLoops[index % selectorLoops.length].register(client.tcp);
+        } catch (IOException e) {
+            connectFailures.incrementAndGet();
+            client.close();
+            return;
+        }
+        udpRegistrations.add(client);
+        udpSelector.wakeup();
+        synchronized (connected) {
+            connected.add(client);
+        }
+    }
+
+    // hands out send credit to every client that's up, and moves the others
+    // along their handshake and bind
+    private void drive() {
+        Random random = new Random();
+        double credit = rate * DRIVE_INTERVAL / 1000.0;
+        ArrayList<SimulatedClient> snapshot = new ArrayList<>();
+        while (!stopping) {
+            long now = System.nanoTime();
+            snapshot.clear();
+            synchronized (connected) {
+                snapshot.addAll(connected);
+            }
+            for (SimulatedClient client : snapshot) {
+                if (client.failed) {
+                    continue;
+                }
+                if (client.tcp.getSessionToken() == null) {
+                    if (now - client.connectedAt > HANDSHAKE_TIMEOUT) {
+                        client.fail(handshakeFailures);
+                    }
+                    continue;
+                }
+                if (!client.bound) {
+                    client.bind(now);
+                    continue;
+                }
+                client.credit += credit;
+                while (client.credit >= 1) {
+                    client.credit -= 1;
+                    client.send(random.nextDouble() < udpFraction);
+                }
+            }
+            long wait = TimeUnit.MILLISECONDS.toNanos(DRIVE_INTERVAL) - (System.nanoTime() - now);
+            if (wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    // receives every client's datagrams on one selector until the test ends
+    private void receiveDatagrams() {
+        ByteBuffer datagram = ByteBuffer.allocateDirect(CBGNConnection.MAX_DATAGRAM_SIZE + 1);
+        HashMap<String, String> data = new HashMap<>();
+        try {
+            while (!stopping) {
+                udpSelector.select();
+                SimulatedClient pending;
+                while ((pending = udpRegistrations.poll()) != null) {
+                    pending.udp.register(udpSelector, SelectionKey.OP_READ, pending);
+                }
+                Iterator<SelectionKey> keys = udpSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    SimulatedClient client = (SimulatedClient) key.attachment();
+                    while (true) {
+                        datagram.clear();
+                        if (client.udp.receive(datagram) == null) {
+                            break;
+                        }
+                        datagram.flip();
+                        data.clear();
+                        try {
+                            CBGNJSONCodec.readObject(datagram, datagram.position(), datagram.limit(), data);
+                        } catch (CBGNException e) {
+                            continue;
+                        }
+                        if (data.get(CBGNProtocol.CONTROL) == null) {
+                            client.received(data, udpLatency, udpTotal);
+                        }
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (!stopping) {
+                Logger.getLogger(CBGNLoadGenerator.class.getName()).log(Level.SEVERE, null, e);
+            }
+        }
+    }
+
+    // prints what happened since the last report
+    private void report(long start, int seconds) {
+        long[] tcp = tcpLatency.snapshot(true);
+        long[] udp = udpLatency.snapshot(true);
+        long elapsed = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start);
+        long sent = sentTCP.get() + sentUDP.get();
+        long received = delivered.get();
+        System.out.println(String.format("%4ds  %s  sent %.0f/s, delivered %.0f/s  tcp %s  udp %s",
+                elapsed, status(), (double) (sent - reportedSent) / seconds, (double) (received - reportedDelivered) / seconds,
+                latencies(tcp), latencies(udp)));
+        reportedSent = sent;
+        reportedDelivered = received;
+    }
+
+    // describes how many clients are up and how many have failed
+    private String status() {
+        int up = 0;
+        int bound = 0;
+        synchronized (connected) {
+            for (SimulatedClient client : connected) {
+                if (!client.failed && client.tcp.getSessionToken() != null) {
+                    up++;
+                    if (client.bound) {
+                        bound++;
+                    }
+                }
+            }
+        }
+        return "up " + up + "/" + clients + ", bound " + bound + ", failed connect " + connectFailures.get()
+                + " handshake " + handshakeFailures.get() + " bind " + bindFailures.get() + " closed " + closedEarly.get();
+    }
+
+    // describes the latencies in a histogram snapshot, in milliseconds
+    private static String latencies(long[] snapshot) {
+        if (CBGNLatencyHistogram.count(snapshot) == 0) {
+            return "-";
+        }
+        return String.format("p50 %.2fms p99 %.2fms p99.9 %.2fms",
+                CBGNLatencyHistogram.percentile(snapshot, 0.5) / 1000.0,
+                CBGNLatencyHistogram.percentile(snapshot, 0.99) / 1000.0,
+                CBGNLatencyHistogram.percentile(snapshot, 0.999) / 1000.0);
+    }
+
+    private static void startDaemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // one simulated player. It listens to its own TCP connection, which is
+    // driven by one of the selector loops.
+    private final class SimulatedClient extends CBGNConnectionListener {
+
+        final int index;
+        final String name;
+        CBGNConnection tcp;
+        DatagramChannel udp;
+        long connectedAt;
+        double credit;
+
+        // set by the driver, except bound which the loop sets
+        volatile boolean bound;
+        volatile boolean failed;
+        private int bindAttempts;
+        private long lastBind;
+        private boolean joined;
+
+        SimulatedClient(int index) {
+            this.index = index;
+            this.name = Integer.toString(index);
+        }
+
+        // sends the next bind, or gives up once CBGNClient would have
+        void bind(long now) {
+            if (!joined && server != null && roomSize > 0) {
+                joinRoom();
+            }
+            if (bindAttempts > 0 && now - lastBind < BIND_INTERVAL) {
+                return;
+            }
+            if (bindAttempts == BIND_ATTEMPTS) {
+                fail(bindFailures);
+                return;
+            }
+            HashMap<String, String> bind = new HashMap<>();
+            bind.put(CBGNProtocol.CONTROL, CBGNProtocol.BIND);
+            bind.put(CBGNProtocol.TOKEN, tcp.getSessionToken());
+            sendDatagram(new GameEvent(bind).toDatagram());
+            bindAttempts++;
+            lastBind = now;
+        }
+
+        // puts this client in its room on the local server, going by the
+        // connection ID at the start of its session token
+        private void joinRoom() {
+            joined = true;
+            String token = tcp.getSessionToken();
+            try {
+                int id = Integer.parseInt(token.substring(0, token.indexOf('.')));
+                server.joinRoom("load" + index / roomSize, server.getSocket(id));
+            } catch (NumberFormatException | IndexOutOfBoundsException e) {
+                Logger.getLogger(CBGNLoadGenerator.class.getName()).log(Level.WARNING,
+                        "Client {0} got a session token without an ID.", name);
+            }
+        }
+
+        void send(boolean overUDP) {
+            HashMap<String, String> data = new HashMap<>();
+            data.put(CLIENT, name);
+            data.put(SENT, Long.toString(System.nanoTime()));
+            data.put(PADDING, padding);
+            if (overUDP) {
+                sendDatagram(new GameEvent(data).toDatagram());
+                sentUDP.incrementAndGet();
+            } else {
+                try {
+                    tcp.sendMessage(data);
+                    sentTCP.incrementAndGet();
+                } catch (IOException e) {
+                    fail(closedEarly);
+                }
+            }
+        }
+
+        private void sendDatagram(byte[] payload) {
+            try {
+                // a full send buffer drops the datagram, as the network might
+                udp.send(ByteBuffer.wrap(payload), udpAddress);
+            } catch (IOException e) {
+                fail(closedEarly);
+            }
+        }
+
+        // counts a message delivered to this client, and its latency if it's
+        // this client's own
+        void received(HashMap<String, String> data, CBGNLatencyHistogram interval, CBGNLatencyHistogram total) {
+            delivered.incrementAndGet();
+            String sent = data.get(SENT);
+            if (sent != null && name.equals(data.get(CLIENT))) {
+                try {
+                    long micros = (System.nanoTime() - Long.parseLong(sent)) / 1000;
+                    interval.record(micros);
+                    total.record(micros);
+                } catch (NumberFormatException e) {
+                    // not one of ours
+                }
+            }
+        }
+
+        // counts this client as failed and drops it
+        void fail(AtomicLong counter) {
+            if (failed) {
+                return;
+            }
+            failed = true;
+            counter.incrementAndGet();
+            close();
+        }
+
+        void close() {
+            try {
+                if (tcp != null) {
+                    tcp.close();
+                }
+                if (udp != null) {
+                    udp.close();
+                }
+            } catch (IOException e) {
+                // it's being dropped either way
+            }
+        }
+
+        @Override
+        protected void onMessage(CBGNConnection conn, HashMap<String, String> data) {
+            received(data, tcpLatency, tcpTotal);
+        }
+
+        @Override
+        protected void onUDPMessage(CBGNConnection conn, HashMap<String, String> data) {
+        }
+
+        @Override
+        protected void onControlMessage(CBGNConnection conn, String type, HashMap<String, String> data) {
+            if (CBGNProtocol.BOUND.equals(type)) {
+                bound = true;
+            } else if (CBGNProtocol.PING.equals(type)) {
+                // otherwise the server closes quiet clients as timed out
+                try {
+                    tcp.sendMessage(CBGNHeartbeat.pong(data));
+                } catch (IOException e) {
+                    fail(closedEarly);
+                }
+            }
+        }
+
+        @Override
+        protected void onConnectionClosed(CBGNConnection conn, String reason) {
+            if (!stopping && !failed) {
+                failed = true;
+                closedEarly.incrementAndGet();
+            }
+        }
+    }
+
+    // a server listener for the local server that ignores everything
+    private static final class QuietServerListener implements CBGNServerListener {
+
+        @Override
+        public void onBegin() {
+        }
+
+        @Override
+        public void onConnection(String name) {
+        }
+
+        @Override
+        public void onMessage(HashMap<String, String> data) {
+        }
+
+        @Override
+        public void onUDPMessage(HashMap<String, String> data) {
+        }
+
+        @Override
+        public void onReliableUDPMessage(HashMap<String, String> data) {
+        }
+
+        @Override
+        public void onConnectionClosed(Socket socket, CBGNException reason) {
+        }
+
+        @Override
+        public void onSlowConnection(Socket socket, CBGNOverflowPolicy policy) {
+        }
+
+        @Override
+        public void onStopped(CBGNException except) {
+        }
+    }
+}
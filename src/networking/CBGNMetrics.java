@@ -0,0 +1,377 @@
+package networking;
+
+import java.lang.management.ManagementFactory;
+import java.util.Hashtable;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The CBGNMetrics class counts what a server sends and receives, and times
+ * encoding, decoding and broadcasting, so that a server that's falling behind
+ * can be looked into while it runs. Every server has one, from getMetrics().
+ *
+ * Counters are striped, so the threads reading and writing connections don't
+ * contend on them, and times are kept in histograms with a few percent of
+ * precision rather than as every sample. Both cost a handful of nanoseconds
+ * per message. Reading a metric is the slow side, and is meant to happen
+ * every few seconds, not every message.
+ *
+ * The same metrics can be read over JMX once registerMBean() has been called.
+ * Metrics for a single connection come from the server's
+ * getConnectionMetrics().
+ *
+ * @author Chris
+ */
+public final class CBGNMetrics implements CBGNMetricsMBean {
+
+    private final CBGNServer server;
+
+    private final CBGNCounter connectionsAccepted;
+    private final CBGNCounter messagesIn;
+    private final CBGNCounter messagesOut;
+    private final CBGNCounter messagesDropped;
+    private final CBGNCounter bytesIn;
+    private final CBGNCounter bytesOut;
+    private final CBGNCounter datagramsIn;
+    private final CBGNCounter datagramsOut;
+    private final CBGNCounter datagramBytesIn;
+    private final CBGNCounter datagramBytesOut;
+
+    // in nanoseconds
+    private final CBGNLatencyHistogram encodeTime;
+    private final CBGNLatencyHistogram decodeTime;
+    private final CBGNLatencyHistogram broadcastTime;
+    private final CBGNLatencyHistogram roundTripTime;
+
+    // the name these metrics are registered under over JMX, or null
+    private ObjectName objectName;
+
+    /**
+     * Creates a new CBGNMetrics for the passed server, with everything at 0.
+     *
+     * @param server the server whose connections are measured
+     */
+    CBGNMetrics(CBGNServer server) {
+        this.server = server;
+        this.connectionsAccepted = new CBGNCounter();
+        this.messagesIn = new CBGNCounter();
+        this.messagesOut = new CBGNCounter();
+        this.messagesDropped = new CBGNCounter();
+        this.bytesIn = new CBGNCounter();
+        this.bytesOut = new CBGNCounter();
+        this.datagramsIn = new CBGNCounter();
+        this.datagramsOut = new CBGNCounter();
+        this.datagramBytesIn = new CBGNCounter();
+        this.datagramBytesOut = new CBGNCounter();
+        this.encodeTime = new CBGNLatencyHistogram();
+        this.decodeTime = new CBGNLatencyHistogram();
+        this.broadcastTime = new CBGNLatencyHistogram();
+        this.roundTripTime = new CBGNLatencyHistogram();
+    }
+
+    /**
+     * Counts a TCP connection accepted.
+     */
+    void connectionAccepted() {
+        connectionsAccepted.increment();
+    }
+
+    /**
+     * Counts a TCP message received.
+     *
+     * @param bytes the size of its frame
+     * @param decodeNanos how long it took to decode
+     */
+    void messageIn(int bytes, long decodeNanos) {
+        messagesIn.increment();
+        bytesIn.add(bytes);
+        decodeTime.record(decodeNanos);
+    }
+
+    /**
+     * Counts a TCP frame sent or queued.
+     *
+     * @param bytes the size of the frame
+     */
+    void messageOut(int bytes) {
+        messagesOut.increment();
+        bytesOut.add(bytes);
+    }
+
+    /**
+     * Counts a TCP frame dropped by a full outbound queue.
+     */
+    void messageDropped() {
+        messagesDropped.increment();
+    }
+
+    /**
+     * Records how long a message took to encode for one connection.
+     *
+     * @param nanos the time taken
+     */
+    void encoded(long nanos) {
+        encodeTime.record(nanos);
+    }
+
+    /**
+     * Counts a UDP datagram received.
+     *
+     * @param bytes the size of the datagram
+     * @param decodeNanos how long it took to decode
+     */
+    void datagramIn(int bytes, long decodeNanos) {
+        datagramsIn.increment();
+        datagramBytesIn.add(bytes);
+        decodeTime.record(decodeNanos);
+    }
+
+    /**
+     * Counts a UDP datagram sent.
+     *
+     * @param bytes the size of the datagram
+     */
+    void datagramOut(int bytes) {
+        datagramsOut.increment();
+        datagramBytesOut.add(bytes);
+    }
+
+    /**
+     * Records how long a broadcast took to hand to every recipient.
+     *
+     * @param nanos the time taken
+     */
+    void broadcast(long nanos) {
+        broadcastTime.record(nanos);
+    }
+
+    /**
+     * Records a round trip time measured by a heartbeat.
+     *
+     * @param nanos the round trip time
+     */
+    void roundTrip(long nanos) {
+        roundTripTime.record(nanos);
+    }
+
+    @Override
+    public int getConnections() {
+        return server.numberOfConnections();
+    }
+
+    @Override
+    public long getConnectionsAccepted() {
+        return connectionsAccepted.sum();
+    }
+
+    @Override
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    @Override
+    public long getMessagesOut() {
+        return messagesOut.sum();
+    }
+
+    @Override
+    public long getMessagesDropped() {
+        return messagesDropped.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getDatagramsIn() {
+        return datagramsIn.sum();
+    }
+
+    @Override
+    public long getDatagramsOut() {
+        return datagramsOut.sum();
+    }
+
+    @Override
+    public long getDatagramBytesIn() {
+        return datagramBytesIn.sum();
+    }
+
+    @Override
+    public long getDatagramBytesOut() {
+        return datagramBytesOut.sum();
+    }
+
+    @Override
+    public int getOutboundQueueDepth() {
+        return server.getOutboundQueueDepth();
+    }
+
+    @Override
+    public int getInboundQueueDepth() {
+        return server.getInboundQueueDepth();
+    }
+
+    /**
+     * Returns the time below which the passed fraction of message encodes
+     * took, per connection. Frames a broadcast reuses count as well, since
+     * they're what most sends cost.
+     *
+     * @param fraction the fraction, such as 0.99 for the 99th percentile
+     * @return the time in nanoseconds, or 0 if nothing has been encoded
+     */
+    public long getEncodeTime(double fraction) {
+        return CBGNLatencyHistogram.percentile(encodeTime.snapshot(false), fraction);
+    }
+
+    /**
+     * Returns the time below which the passed fraction of message decodes
+     * took, over TCP and UDP.
+     *
+     * @param fraction the fraction, such as 0.99 for the 99th percentile
+     * @return the time in nanoseconds, or 0 if nothing has been decoded
+     */
+    public long getDecodeTime(double fraction) {
+        return CBGNLatencyHistogram.percentile(decodeTime.snapshot(false), fraction);
+    }
+
+    /**
+     * Returns the time below which the passed fraction of broadcasts and
+     * echoes took to hand to all of their recipients. Over TCP that's
+     * queueing the message for each of them, not waiting for it to be
+     * written.
+     *
+     * @param fraction the fraction, such as 0.99 for the 99th percentile
+     * @return the time in nanoseconds, or 0 if nothing has been broadcast
+     */
+    public long getBroadcastTime(double fraction) {
+        return CBGNLatencyHistogram.percentile(broadcastTime.snapshot(false), fraction);
+    }
+
+    /**
+     * Returns the round trip time below which the passed fraction of
+     * heartbeats came back, over every connection.
+     *
+     * @param fraction the fraction, such as 0.99 for the 99th percentile
+     * @return the time in nanoseconds, or 0 if nothing has been measured
+     */
+    public long getRoundTripTime(double fraction) {
+        return CBGNLatencyHistogram.percentile(roundTripTime.snapshot(false), fraction);
+    }
+
+    @Override
+    public long getEncodeTimeP50() {
+        return getEncodeTime(0.5);
+    }
+
+    @Override
+    public long getEncodeTimeP99() {
+        return getEncodeTime(0.99);
+    }
+
+    @Override
+    public long getEncodeTimeP999() {
+        return getEncodeTime(0.999);
+    }
+
+    @Override
+    public long getDecodeTimeP50() {
+        return getDecodeTime(0.5);
+    }
+
+    @Override
+    public long getDecodeTimeP99() {
+        return getDecodeTime(0.99);
+    }
+
+    @Override
+    public long getDecodeTimeP999() {
+        return getDecodeTime(0.999);
+    }
+
+    @Override
+    public long getBroadcastTimeP50() {
+        return getBroadcastTime(0.5);
+    }
+
+    @Override
+    public long getBroadcastTimeP99() {
+        return getBroadcastTime(0.99);
+    }
+
+    @Override
+    public long getBroadcastTimeP999() {
+        return getBroadcastTime(0.999);
+    }
+
+    @Override
+    public long getRoundTripTimeP50() {
+        return getRoundTripTime(0.5);
+    }
+
+    @Override
+    public long getRoundTripTimeP99() {
+        return getRoundTripTime(0.99);
+    }
+
+    @Override
+    public long getRoundTripTimeP999() {
+        return getRoundTripTime(0.999);
+    }
+
+    @Override
+    public void reset() {
+        encodeTime.snapshot(true);
+        decodeTime.snapshot(true);
+        broadcastTime.snapshot(true);
+        roundTripTime.snapshot(true);
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server, under
+     * "networking:type=CBGNServer,name=" and the passed name, so they can be
+     * read with JConsole or any other JMX client. Registering again replaces
+     * the earlier registration.
+     *
+     * @param name a name telling this server apart from others in the same
+     * process, such as its port
+     * @throws JMException if the name isn't valid or is already taken
+     */
+    public synchronized void registerMBean(String name) throws JMException {
+        if (name == null) {
+            throw new IllegalArgumentException("MBean name cannot be null.");
+        }
+        unregisterMBean();
+        Hashtable<String, String> properties = new Hashtable<>();
+        properties.put("type", "CBGNServer");
+        properties.put("name", ObjectName.quote(name));
+        ObjectName registered = new ObjectName("networking", properties);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, registered);
+        objectName = registered;
+    }
+
+    /**
+     * Removes these metrics from the platform MBean server, if they were
+     * registered.
+     *
+     * @throws JMException if they can't be removed
+     */
+    public synchronized void unregisterMBean() throws JMException {
+        if (objectName == null) {
+            return;
+        }
+        MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+        if (mbeans.isRegistered(objectName)) {
+            mbeans.unregisterMBean(objectName);
+        }
+        objectName = null;
+    }
+}
@@ -0,0 +1,146 @@
+package networking;
+
+/**
+ * The CBGNMetricsMBean interface is what a server's CBGNMetrics shows over
+ * JMX. Counters are totals since the server was created; divide the change
+ * between two readings by the time between them for a rate. Times are in
+ * nanoseconds, and cover everything recorded since the last reset().
+ *
+ * @author Chris
+ */
+public interface CBGNMetricsMBean {
+
+    /**
+     * @return the number of connections currently open
+     */
+    public int getConnections();
+
+    /**
+     * @return the number of TCP connections accepted
+     */
+    public long getConnectionsAccepted();
+
+    /**
+     * @return the number of TCP messages received
+     */
+    public long getMessagesIn();
+
+    /**
+     * @return the number of TCP messages sent or queued to be sent
+     */
+    public long getMessagesOut();
+
+    /**
+     * @return the number of TCP messages dropped because a connection's
+     * outbound queue was full
+     */
+    public long getMessagesDropped();
+
+    /**
+     * @return the number of TCP bytes received in complete messages
+     */
+    public long getBytesIn();
+
+    /**
+     * @return the number of TCP bytes sent or queued to be sent
+     */
+    public long getBytesOut();
+
+    /**
+     * @return the number of UDP datagrams received
+     */
+    public long getDatagramsIn();
+
+    /**
+     * @return the number of UDP datagrams sent
+     */
+    public long getDatagramsOut();
+
+    /**
+     * @return the number of UDP bytes received
+     */
+    public long getDatagramBytesIn();
+
+    /**
+     * @return the number of UDP bytes sent
+     */
+    public long getDatagramBytesOut();
+
+    /**
+     * @return the number of TCP messages waiting to be written, over every
+     * connection
+     */
+    public int getOutboundQueueDepth();
+
+    /**
+     * @return the number of received messages waiting for the next tick
+     */
+    public int getInboundQueueDepth();
+
+    /**
+     * @return the median time to encode a message for a connection
+     */
+    public long getEncodeTimeP50();
+
+    /**
+     * @return the 99th percentile time to encode a message for a connection
+     */
+    public long getEncodeTimeP99();
+
+    /**
+     * @return the 99.9th percentile time to encode a message for a connection
+     */
+    public long getEncodeTimeP999();
+
+    /**
+     * @return the median time to decode a received message
+     */
+    public long getDecodeTimeP50();
+
+    /**
+     * @return the 99th percentile time to decode a received message
+     */
+    public long getDecodeTimeP99();
+
+    /**
+     * @return the 99.9th percentile time to decode a received message
+     */
+    public long getDecodeTimeP999();
+
+    /**
+     * @return the median time to hand a broadcast to every recipient
+     */
+    public long getBroadcastTimeP50();
+
+    /**
+     * @return the 99th percentile time to hand a broadcast to every recipient
+     */
+    public long getBroadcastTimeP99();
+
+    /**
+     * @return the 99.9th percentile time to hand a broadcast to every
+     * recipient
+     */
+    public long getBroadcastTimeP999();
+
+    /**
+     * @return the median round trip time measured by heartbeats
+     */
+    public long getRoundTripTimeP50();
+
+    /**
+     * @return the 99th percentile round trip time measured by heartbeats
+     */
+    public long getRoundTripTimeP99();
+
+    /**
+     * @return the 99.9th percentile round trip time measured by heartbeats
+     */
+    public long getRoundTripTimeP999();
+
+    /**
+     * Empties the time histograms, so the percentiles only cover what happens
+     * from now on. Counters keep counting.
+     */
+    public void reset();
+}
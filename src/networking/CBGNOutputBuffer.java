@@ -0,0 +1,96 @@
+package networking;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The CBGNOutputBuffer class is a growable byte buffer that codecs encode
+ * into. Unlike ByteArrayOutputStream it isn't synchronized and it hands out
+ * its bytes without copying them, so a connection can keep one around and
+ * reuse it for every message it writes.
+ *
+ * @author Chris
+ */
+final class CBGNOutputBuffer extends OutputStream {
+
+    private byte[] bytes;
+    private int size;
+
+    /**
+     * Creates a new CBGNOutputBuffer with the passed initial capacity.
+     *
+     * @param capacity the number of bytes to make room for up front
+     */
+    CBGNOutputBuffer(int capacity) {
+        bytes = new byte[capacity];
+    }
+
+    @Override
+    public void write(int b) {
+        if (size == bytes.length) {
+            grow(size + 1);
+        }
+        bytes[size++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        if (size + len > bytes.length) {
+            grow(size + len);
+        }
+        System.arraycopy(b, off, bytes, size, len);
+        size += len;
+    }
+
+    /**
+     * Returns the number of bytes written since the last reset.
+     *
+     * @return the number of bytes in this buffer
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Empties this buffer, keeping its capacity for the next message.
+     */
+    void reset() {
+        size = 0;
+    }
+
+    /**
+     * Writes the contents of this buffer to the passed stream.
+     *
+     * @param out the stream to write to
+     * @throws IOException if writing fails
+     */
+    void writeTo(OutputStream out) throws IOException {
+        out.write(bytes, 0, size);
+    }
+
+    /**
+     * Returns a ByteBuffer over the contents of this buffer. The ByteBuffer
+     * shares this buffer's bytes, so it's only valid until the next write or
+     * reset.
+     *
+     * @return a ByteBuffer over this buffer's contents
+     */
+    ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(bytes, 0, size);
+    }
+
+    /**
+     * Returns a copy of the contents of this buffer.
+     *
+     * @return the bytes written since the last reset
+     */
+    byte[] toByteArray() {
+        return Arrays.copyOf(bytes, size);
+    }
+
+    private void grow(int minimum) {
+        bytes = Arrays.copyOf(bytes, Math.max(minimum, bytes.length * 2));
+    }
+}
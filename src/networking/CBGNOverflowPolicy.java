@@ -0,0 +1,29 @@
+package networking;
+
+/**
+ * The CBGNOverflowPolicy enum lists what a server does when one of its
+ * connections can't keep up and its outbound queue fills. Whichever policy is
+ * used, the server's listener hears about it through onSlowConnection, so a
+ * single slow client never stalls the threads sending to everyone else.
+ *
+ * @author Chris
+ */
+public enum CBGNOverflowPolicy {
+
+    /**
+     * Drop the oldest queued message to make room for the new one. This suits
+     * state that's resent often, where only the latest copy matters. A
+     * message that's already partly written is never dropped; if it's the
+     * only one queued, the new message is dropped instead.
+     */
+    DROP_OLDEST,
+    /**
+     * Drop the new message and keep what's already queued.
+     */
+    DROP_NEWEST,
+    /**
+     * Disconnect the slow connection. This is the default, since TCP messages
+     * are usually expected to arrive.
+     */
+    DISCONNECT
+}
@@ -0,0 +1,89 @@
+package networking;
+
+/**
+ * The CBGNProtocol class holds the names CBGN uses for its own control
+ * messages. A control message is an ordinary String, String map with the
+ * CONTROL key set to the message type; connections handle these themselves
+ * and never pass them on to a server or client listener.
+ *
+ * @author Chris
+ */
+final class CBGNProtocol {
+
+    // the key that marks a map as a control message, and holds its type
+    static final String CONTROL = "_cbgn";
+
+    // sent by a client as its first message to ask for a codec
+    static final String HELLO = "hello";
+    // sent by the server in reply to a hello, naming the codec it picked
+    static final String WELCOME = "welcome";
+
+    // the key naming a codec in a hello or welcome
+    static final String CODEC = "codec";
+
+    // the key in a hello or welcome saying the key dictionary is wanted, or
+    // agreed to
+    static final String DICTIONARY = "dict";
+    // the key in a hello or welcome holding the name of the compression
+    // asked for, or agreed to
+    static final String COMPRESSION = "compress";
+    // sent before a message that uses dictionary references the peer hasn't
+    // been told about yet. Every other key is an ID in base 36, and its value
+    // is the key that ID stands for.
+    static final String KEYS = "keys";
+
+    // the key holding a client's session token, handed out in the welcome
+    static final String TOKEN = "token";
+
+    // sent by a client over UDP with its session token, so the server learns
+    // which address the client's datagrams come from
+    static final String BIND = "bind";
+    // sent by the server over TCP once a client's UDP address is bound
+    static final String BOUND = "bound";
+
+    // a message sent over UDP on a reliable channel, and a bare ack sent when
+    // there's no reliable message to carry it
+    static final String RELIABLE = "reliable";
+    static final String ACK = "ack";
+
+    // the keys holding a reliable message's sequence number, the highest
+    // sequence number received from the peer, the bitfield of the ones
+    // received before that, and the number below which everything has been
+    // received
+    static final String SEQ = "_cbgn.seq";
+    static final String ACK_SEQ = "_cbgn.ack";
+    static final String ACK_BITS = "_cbgn.ackbits";
+    static final String ACK_ALL = "_cbgn.ackall";
+
+    // a message sent over UDP on a sequenced stream, and the key naming its
+    // stream. Its sequence number goes under SEQ.
+    static final String SEQUENCED = "sequenced";
+    static final String STREAM = "_cbgn.stream";
+
+    // a state snapshot sent over UDP, in full or as a delta, and the client's
+    // ack for one. The snapshot's number goes under SEQ, and a delta names the
+    // snapshot it's against under BASELINE.
+    static final String SNAPSHOT = "snapshot";
+    static final String SNAPSHOT_ACK = "snapack";
+    static final String BASELINE = "_cbgn.base";
+
+    // sent by the server over TCP every heartbeat, and the client's answer.
+    // A ping carries the server's clock under SENT, which the pong sends
+    // back, and the round trip time and jitter measured so far under RTT and
+    // JITTER, in microseconds.
+    static final String PING = "ping";
+    static final String PONG = "pong";
+    static final String SENT = "_cbgn.sent";
+    static final String RTT = "_cbgn.rtt";
+    static final String JITTER = "_cbgn.jitter";
+    // the key in a hello saying the client answers pings. Clients that don't
+    // say so are never pinged, since they'd hand the ping to their listener.
+    static final String HEARTBEAT = "heartbeat";
+
+    // how often reliable channels check for resends and owed acks, in
+    // milliseconds
+    static final long RELIABLE_TICK = 10;
+
+    private CBGNProtocol() {
+    }
+}
@@ -0,0 +1,380 @@
+package networking;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The CBGNReliableChannel class sends messages over UDP reliably and in order,
+ * to one peer. Each message gets a sequence number and is kept until the peer
+ * acknowledges it, and resent whenever it goes unacknowledged for too long.
+ * Every datagram carries the highest sequence number received from the peer
+ * plus a bitfield of the 32 before it, so one lost ack doesn't cause a resend
+ * and only the messages actually missing are sent again. It also carries the
+ * sequence number below which everything has arrived, which clears resends
+ * that fall too far behind for the bitfield. When there's nothing to send,
+ * acks go out on their own on the next tick.
+ *
+ * Messages the peer sent out of order are held back until the gap is filled,
+ * so a lost message only delays the messages after it on this channel, not
+ * TCP traffic or plain UDP.
+ *
+ * At most MAX_UNACKED messages can be waiting for an ack; past that, new
+ * messages are refused rather than queued. A message that's been sent
+ * MAX_SENDS times without an ack means the peer is gone or can't be reached
+ * over UDP, so the channel gives up, drops everything and tells its owner.
+ * The channel is only on its ticker while it has something to resend or
+ * acknowledge.
+ *
+ * Subclasses decide how a datagram actually gets to the peer, and what
+ * happens when the channel is full or gives up.
+ *
+ * @author Chris
+ */
+abstract class CBGNReliableChannel {
+
+    // how many messages past the next one to deliver are held back, and how
+    // far back the ack bitfield reaches
+    private static final int WINDOW = 256;
+    private static final int ACK_BITS = 32;
+
+    // limits on the retransmit timeout, in milliseconds. It starts at the
+    // initial value and follows twice the smoothed round trip time after that.
+    private static final long MIN_RTO = 30;
+    private static final long INITIAL_RTO = 200;
+    private static final long MAX_RTO = 2000;
+
+    // the most messages waiting for an ack, which is as far ahead as the
+    // peer holds messages anyway
+    static final int MAX_UNACKED = WINDOW;
+
+    // how many times a message is sent before the peer is given up on; with
+    // the backoff that's at least 10 seconds without an ack
+    static final int MAX_SENDS = 10;
+
+    // messages sent but not yet acknowledged, by sequence number
+    private final HashMap<Integer, Pending> unacked;
+    private int nextSeq;
+    // every message before this one has been acknowledged
+    private int oldestUnacked;
+
+    // the highest sequence number received, and which of the ones before it
+    // have been received (bit i is remoteAck - 1 - i)
+    private boolean received;
+    private int remoteAck;
+    private int remoteBits;
+    private boolean ackOwed;
+
+    // messages received ahead of the next one to deliver, by sequence number
+    private final HashMap<Integer, HashMap<String, String>> held;
+    private int nextDeliver;
+
+    private long srtt;
+    private long rto;
+
+    // what resends and acks, and whether this channel is on it
+    private final CBGNReliableTicker ticker;
+    private boolean ticking;
+
+    // whether the last message sent was refused for a full window
+    private boolean full;
+
+    /**
+     * Creates a new CBGNReliableChannel with nothing sent or received.
+     *
+     * @param ticker the ticker to resend and acknowledge on
+     */
+    CBGNReliableChannel(CBGNReliableTicker ticker) {
+        this.unacked = new HashMap<>();
+        this.held = new HashMap<>();
+        this.rto = INITIAL_RTO;
+        this.ticker = ticker;
+    }
+
+    /**
+     * Sends the passed datagram to the peer. Called with this channel locked,
+     * so it should hand the datagram off rather than wait.
+     *
+     * @param datagram the datagram to send
+     * @throws IOException if the datagram can't be sent
+     */
+    protected abstract void transmit(HashMap<String, String> datagram) throws IOException;
+
+    /**
+     * Called when a message is refused because MAX_UNACKED messages are
+     * already waiting for an ack. Called without this channel locked.
+     *
+     * @param first true if this is the first message refused since the last
+     * one that was sent
+     */
+    protected abstract void overflowed(boolean first);
+
+    /**
+     * Called once a message has been sent MAX_SENDS times without an ack.
+     * Everything waiting on this channel has been dropped by then. Called on
+     * the ticker's thread without this channel locked, so anything slow
+     * should be handed off.
+     */
+    protected abstract void gaveUp();
+
+    /**
+     * Sends the passed data to the peer reliably. It's delivered after every
+     * message sent before it on this channel. If MAX_UNACKED messages are
+     * already waiting for an ack, the data isn't sent, and overflowed() is
+     * called instead.
+     *
+     * @param data the data to send
+     * @return false if the data was refused because the window is full
+     * @throws IOException if the first attempt can't be sent
+     */
+    boolean send(HashMap<String, String> data) throws IOException {
+        boolean first;
+        synchronized (this) {
+            if (unacked.size() < MAX_UNACKED) {
+                full = false;
+                Pending pending = new Pending(nextSeq++, new HashMap<>(data));
+                unacked.put(pending.seq, pending);
+                startTicking();
+                transmit(pending, System.currentTimeMillis());
+                return true;
+            }
+            first = !full;
+            full = true;
+        }
+        overflowed(first);
+        return false;
+    }
+
+    /**
+     * Handles a reliable datagram or a bare ack from the peer, adding any
+     * messages that are now ready to be delivered, in order, to the passed
+     * list.
+     *
+     * @param datagram the datagram received
+     * @param deliver the list to add deliverable messages to
+     */
+    synchronized void receive(HashMap<String, String> datagram, List<HashMap<String, String>> deliver) {
+        Integer seq = parse(datagram.remove(CBGNProtocol.SEQ));
+        Integer ack = parse(datagram.remove(CBGNProtocol.ACK_SEQ));
+        Integer bits = parse(datagram.remove(CBGNProtocol.ACK_BITS));
+        Integer all = parse(datagram.remove(CBGNProtocol.ACK_ALL));
+        datagram.remove(CBGNProtocol.CONTROL);
+
+        if (ack != null) {
+            acknowledge(ack, bits == null ? 0 : bits, all == null ? oldestUnacked : all);
+        }
+        if (seq == null) {
+            return;
+        }
+
+        int ahead = seq - nextDeliver;
+        if (ahead >= WINDOW) {
+            // too far ahead to hold on to; leave it unacked so it's resent
+            return;
+        }
+        record(seq);
+        ackOwed = true;
+        startTicking();
+        if (ahead < 0 || held.containsKey(seq)) {
+            // a resend of something we already have
+            return;
+        }
+        held.put(seq, datagram);
+        HashMap<String, String> next;
+        while ((next = held.remove(nextDeliver)) != null) {
+            deliver.add(next);
+            nextDeliver++;
+        }
+    }
+
+    /**
+     * Resends whatever has gone unacknowledged for longer than the retransmit
+     * timeout, and sends a bare ack if one is owed and nothing else carried
+     * it. Called regularly by the ticker while this channel is on it.
+     *
+     * @param now the current time in milliseconds
+     */
+    void tick(long now) {
+        boolean lost = false;
+        synchronized (this) {
+            try {
+                for (Pending pending : unacked.values()) {
+                    // back off on every resend so a dead peer isn't flooded
+                    long timeout = Math.min(rto << Math.min(pending.sends - 1, 4), MAX_RTO);
+                    if (now - pending.sentAt >= timeout) {
+                        if (pending.sends >= MAX_SENDS) {
+                            lost = true;
+                            clear();
+                            break;
+                        }
+                        transmit(pending, now);
+                    }
+                }
+                if (ackOwed) {
+                    HashMap<String, String> ack = new HashMap<>();
+                    ack.put(CBGNProtocol.CONTROL, CBGNProtocol.ACK);
+                    putAck(ack);
+                    transmit(ack);
+                }
+            } catch (IOException e) {
+                Logger.getLogger(CBGNReliableChannel.class.getName()).log(Level.WARNING, null, e);
+            }
+            if (unacked.isEmpty() && !ackOwed) {
+                stopTicking();
+            }
+        }
+        if (lost) {
+            gaveUp();
+        }
+    }
+
+    // puts this channel on its ticker if it isn't already. Must be called
+    // with this channel locked.
+    private void startTicking() {
+        if (!ticking) {
+            ticking = true;
+            ticker.activate(this);
+        }
+    }
+
+    // takes this channel off its ticker. Must be called with this channel
+    // locked.
+    private void stopTicking() {
+        if (ticking) {
+            ticking = false;
+            ticker.deactivate(this);
+        }
+    }
+
+    /**
+     * Returns the number of messages sent on this channel that haven't been
+     * acknowledged yet.
+     *
+     * @return the number of unacknowledged messages
+     */
+    synchronized int getUnackedCount() {
+        return unacked.size();
+    }
+
+    /**
+     * Returns the smoothed round trip time measured from acknowledgements, or
+     * 0 if nothing has been acknowledged yet.
+     *
+     * @return the round trip time in milliseconds
+     */
+    synchronized long getRoundTripTime() {
+        return srtt;
+    }
+
+    // sends a pending message with the latest ack on it
+    private void transmit(Pending pending, long now) throws IOException {
+        HashMap<String, String> datagram = new HashMap<>(pending.data);
+        datagram.put(CBGNProtocol.CONTROL, CBGNProtocol.RELIABLE);
+        datagram.put(CBGNProtocol.SEQ, Integer.toString(pending.seq));
+        putAck(datagram);
+        pending.sentAt = now;
+        pending.sends++;
+        transmit(datagram);
+    }
+
+    // adds the ack fields to an outgoing datagram, if anything's been received
+    private void putAck(Map<String, String> datagram) {
+        if (received) {
+            datagram.put(CBGNProtocol.ACK_SEQ, Integer.toString(remoteAck));
+            datagram.put(CBGNProtocol.ACK_BITS, Integer.toString(remoteBits));
+            datagram.put(CBGNProtocol.ACK_ALL, Integer.toString(nextDeliver));
+            ackOwed = false;
+        }
+    }
+
+    // marks a sequence number from the peer as received
+    private void record(int seq) {
+        if (!received) {
+            received = true;
+            remoteAck = seq;
+            remoteBits = 0;
+            return;
+        }
+        int d = seq - remoteAck;
+        if (d > 0) {
+            // shifting by 32 or more doesn't clear an int, so do it by hand
+            remoteBits = d < ACK_BITS ? (remoteBits << d) | (1 << (d - 1)) : (d == ACK_BITS ? 1 << (ACK_BITS - 1) : 0);
+            remoteAck = seq;
+        } else if (d < 0 && -d <= ACK_BITS) {
+            remoteBits |= 1 << (-d - 1);
+        }
+    }
+
+    // drops everything the peer says it has, sampling the round trip time
+    // from messages that were only sent once
+    private void acknowledge(int ack, int bits, int all) {
+        long now = System.currentTimeMillis();
+        // sequence numbers are handed out in order, so walking up from the
+        // oldest unacked one visits each at most once
+        if (all - nextSeq > 0) {
+            all = nextSeq;
+        }
+        while (all - oldestUnacked > 0) {
+            acknowledge(unacked.remove(oldestUnacked), now);
+            oldestUnacked++;
+        }
+        acknowledge(unacked.remove(ack), now);
+        if (bits != 0 && !unacked.isEmpty()) {
+            for (int i = 0; i < ACK_BITS; i++) {
+                if ((bits & (1 << i)) != 0) {
+                    acknowledge(unacked.remove(ack - 1 - i), now);
+                }
+            }
+        }
+    }
+
+    private void acknowledge(Pending pending, long now) {
+        if (pending == null || pending.sends != 1) {
+            return;
+        }
+        long sample = now - pending.sentAt;
+        srtt = srtt == 0 ? sample : srtt + (sample - srtt) / 8;
+        rto = Math.max(MIN_RTO, Math.min(MAX_RTO, srtt * 2));
+    }
+
+    // parses a number from a header field, or returns null if it's missing or
+    // isn't a number
+    private static Integer parse(String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Integer.valueOf(value);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Drops everything still waiting to be acknowledged or delivered. Called
+     * when the peer goes away.
+     */
+    synchronized void clear() {
+        unacked.clear();
+        held.clear();
+        ackOwed = false;
+        stopTicking();
+    }
+
+    // a message waiting to be acknowledged
+    private static final class Pending {
+
+        final int seq;
+        final HashMap<String, String> data;
+        long sentAt;
+        int sends;
+
+        Pending(int seq, HashMap<String, String> data) {
+            this.seq = seq;
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package networking;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The CBGNReliableTicker class runs the resends and owed acks of a set of
+ * reliable channels. Channels add themselves when they have something
+ * unacknowledged or an ack to send, and take themselves off again once they
+ * don't, so the ticker only looks at channels with work to do, and sleeps
+ * without waking at all while there are none.
+ *
+ * @author Chris
+ */
+final class CBGNReliableTicker implements Runnable {
+
+    // the channels with something to resend or acknowledge
+    private final Set<CBGNReliableChannel> active;
+    private final Object lock;
+
+    private volatile boolean running;
+
+    /**
+     * Creates a new CBGNReliableTicker with no channels. It starts ticking
+     * when it's run.
+     */
+    CBGNReliableTicker() {
+        this.active = Collections.newSetFromMap(new ConcurrentHashMap<CBGNReliableChannel, Boolean>());
+        this.lock = new Object();
+        this.running = true;
+    }
+
+    /**
+     * Starts ticking the passed channel. Called by the channel when it gets
+     * something to resend or acknowledge.
+     *
+     * @param channel the channel
+     */
+    void activate(CBGNReliableChannel channel) {
+        if (active.add(channel)) {
+            synchronized (lock) {
+                lock.notify();
+            }
+        }
+    }
+
+    /**
+     * Stops ticking the passed channel. Called by the channel once it has
+     * nothing left to resend or acknowledge.
+     *
+     * @param channel the channel
+     */
+    void deactivate(CBGNReliableChannel channel) {
+        active.remove(channel);
+    }
+
+    /**
+     * Returns the number of channels being ticked.
+     *
+     * @return the number of channels with something to resend or acknowledge
+     */
+    int getActiveCount() {
+        return active.size();
+    }
+
+    /**
+     * Stops ticking. Channels aren't cleared by this, only no longer ticked.
+     */
+    void stop() {
+        running = false;
+        synchronized (lock) {
+            lock.notify();
+        }
+    }
+
+    /**
+     * Ticks every active channel every RELIABLE_TICK milliseconds until stop()
+     * is called.
+     */
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                synchronized (lock) {
+                    while (running && active.isEmpty()) {
+                        lock.wait();
+                    }
+                }
+                Thread.sleep(CBGNProtocol.RELIABLE_TICK);
+                long now = System.currentTimeMillis();
+                for (CBGNReliableChannel channel : active) {
+                    channel.tick(now);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
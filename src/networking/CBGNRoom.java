@@ -0,0 +1,107 @@
+package networking;
+
+import java.util.Arrays;
+
+/**
+ * The CBGNRoom class is a named group of connections on a server that can be
+ * broadcast to on its own. Broadcasting reads the members far more often than
+ * connections join or leave, so the members are kept in an array that's
+ * replaced on every change and can be iterated without locking.
+ *
+ * @author Chris
+ */
+final class CBGNRoom {
+
+    private static final CBGNConnection[] EMPTY = new CBGNConnection[0];
+
+    private final String name;
+    private volatile CBGNConnection[] members;
+    // set once the last member leaves and the room is dropped by the server;
+    // anyone still holding it has to look the room up again
+    private boolean retired;
+
+    /**
+     * Creates a new, empty CBGNRoom with the passed name.
+     *
+     * @param name the name of the room
+     */
+    CBGNRoom(String name) {
+        this.name = name;
+        this.members = EMPTY;
+    }
+
+    /**
+     * Returns the name of this room.
+     *
+     * @return the name of this room
+     */
+    String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the current members of this room. The array must not be
+     * modified; it's a snapshot and won't change if members join or leave.
+     *
+     * @return the members of this room
+     */
+    CBGNConnection[] getMembers() {
+        return members;
+    }
+
+    /**
+     * Returns the number of connections in this room.
+     *
+     * @return the number of members
+     */
+    int size() {
+        return members.length;
+    }
+
+    /**
+     * Adds the passed connection to this room.
+     *
+     * @param conn the connection joining
+     * @return false if the room has been retired and the caller has to look
+     * it up again, true otherwise
+     */
+    synchronized boolean add(CBGNConnection conn) {
+        if (retired) {
+            return false;
+        }
+        CBGNConnection[] current = members;
+        for (CBGNConnection member : current) {
+            if (member == conn) {
+                return true;
+            }
+        }
+        CBGNConnection[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = conn;
+        members = updated;
+        return true;
+    }
+
+    /**
+     * Removes the passed connection from this room. If that leaves the room
+     * empty, it's retired and can't be joined again.
+     *
+     * @param conn the connection leaving
+     * @return true if the room is now retired
+     */
+    synchronized boolean remove(CBGNConnection conn) {
+        CBGNConnection[] current = members;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == conn) {
+                CBGNConnection[] updated = new CBGNConnection[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                members = updated;
+                break;
+            }
+        }
+        if (members.length == 0) {
+            retired = true;
+        }
+        return retired;
+    }
+}
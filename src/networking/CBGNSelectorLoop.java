@@ -0,0 +1,133 @@
+package networking;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The CBGNSelectorLoop class drives a set of non-blocking TCP connections from
+ * a single thread. The server's selector engine creates a small number of
+ * these (one per core by default) and spreads accepted connections across
+ * them, instead of starting a Thread for every client.
+ *
+ * @author Chris
+ */
+final class CBGNSelectorLoop implements Runnable {
+
+    private final Selector selector;
+
+    // connections waiting to be registered with the selector. Registration has
+    // to happen on the loop's own thread, so other threads hand them over here.
+    private final ConcurrentLinkedQueue<CBGNConnection> registrations;
+
+    private volatile boolean running;
+
+    /**
+     * Creates a new CBGNSelectorLoop with its own Selector.
+     *
+     * @throws IOException if the Selector can't be opened
+     */
+    CBGNSelectorLoop() throws IOException {
+        selector = Selector.open();
+        registrations = new ConcurrentLinkedQueue<>();
+        running = true;
+    }
+
+    /**
+     * Hands the passed channel-backed connection to this loop. The connection
+     * starts receiving reads the next time the loop wakes up.
+     *
+     * @param conn the connection to drive
+     */
+    void register(CBGNConnection conn) {
+        registrations.add(conn);
+        selector.wakeup();
+    }
+
+    /**
+     * Marks the passed key as interested in writes, so that pending output is
+     * flushed once the socket can take more data.
+     *
+     * @param key the SelectionKey for a connection with pending output
+     */
+    void enableWrites(SelectionKey key) {
+        try {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            selector.wakeup();
+        } catch (CancelledKeyException e) {
+            // the connection is already being closed, nothing left to flush
+        }
+    }
+
+    /**
+     * Stops this loop. Connections are not closed by this call, the server is
+     * responsible for closing them.
+     */
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * Selects over the registered connections until shutdown() is called,
+     * dispatching reads and flushing writes as the channels become ready.
+     */
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                selector.select();
+                registerPending();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    process(key);
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            Logger.getLogger(CBGNSelectorLoop.class.getName()).log(Level.SEVERE, null, e);
+        } finally {
+            try {
+                selector.close();
+            } catch (IOException e) {
+                Logger.getLogger(CBGNSelectorLoop.class.getName()).log(Level.SEVERE, null, e);
+            }
+        }
+    }
+
+    // registers any connections handed over by other threads since the last select
+    private void registerPending() {
+        CBGNConnection conn;
+        while ((conn = registrations.poll()) != null) {
+            try {
+                conn.attach(this, selector);
+            } catch (IOException e) {
+                Logger.getLogger(CBGNSelectorLoop.class.getName()).log(Level.SEVERE, null, e);
+                conn.closeQuietly();
+            }
+        }
+    }
+
+    // handles a single ready key, closing its connection on failure
+    private void process(SelectionKey key) {
+        CBGNConnection conn = (CBGNConnection) key.attachment();
+        try {
+            if (key.isValid() && key.isReadable()) {
+                conn.readFromChannel();
+            }
+            if (key.isValid() && key.isWritable()) {
+                conn.flushToChannel();
+            }
+        } catch (IOException | CancelledKeyException e) {
+            conn.closeQuietly();
+        }
+    }
+}
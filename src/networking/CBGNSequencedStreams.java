@@ -0,0 +1,110 @@
+package networking;
+
+import java.util.HashMap;
+
+/**
+ * The CBGNSequencedStreams class numbers sequenced UDP messages and drops the
+ * stale ones. A sequenced message belongs to a named stream, such as a
+ * player's position; the sender numbers each stream separately and the
+ * receiver throws away anything older than the newest message it has seen on
+ * that stream, so state that's already been replaced is never handed on.
+ * Nothing is resent, so a lost message is simply skipped.
+ *
+ * The same object numbers streams being sent and tracks streams being
+ * received; the two don't interact.
+ *
+ * @author Chris
+ */
+final class CBGNSequencedStreams {
+
+    // the next sequence number to send on each stream
+    private final HashMap<String, int[]> sending;
+    // the newest sequence number received on each stream
+    private final HashMap<String, int[]> receiving;
+
+    /**
+     * Creates a new CBGNSequencedStreams with no streams.
+     */
+    CBGNSequencedStreams() {
+        this.sending = new HashMap<>();
+        this.receiving = new HashMap<>();
+    }
+
+    /**
+     * Returns the sequence number for the next message sent on the passed
+     * stream.
+     *
+     * @param stream the name of the stream
+     * @return its next sequence number
+     */
+    synchronized int next(String stream) {
+        int[] seq = sending.get(stream);
+        if (seq == null) {
+            seq = new int[1];
+            sending.put(stream, seq);
+        }
+        return seq[0]++;
+    }
+
+    /**
+     * Returns whether a message received on the passed stream is newer than
+     * every other message received on it, remembering it as the newest if so.
+     *
+     * @param stream the name of the stream
+     * @param seq the message's sequence number
+     * @return false if the message is stale and should be dropped
+     */
+    synchronized boolean accept(String stream, int seq) {
+        int[] newest = receiving.get(stream);
+        if (newest == null) {
+            receiving.put(stream, new int[]{seq});
+            return true;
+        }
+        // compared by difference so the numbers can wrap around
+        if (seq - newest[0] <= 0) {
+            return false;
+        }
+        newest[0] = seq;
+        return true;
+    }
+
+    /**
+     * Checks a received sequenced datagram, stripping its header if it's
+     * fresh.
+     *
+     * @param datagram the datagram received
+     * @return the message in the datagram, or null if it's stale or its
+     * header is missing
+     */
+    HashMap<String, String> receive(HashMap<String, String> datagram) {
+        String stream = datagram.remove(CBGNProtocol.STREAM);
+        String seq = datagram.remove(CBGNProtocol.SEQ);
+        datagram.remove(CBGNProtocol.CONTROL);
+        if (stream == null || seq == null) {
+            return null;
+        }
+        try {
+            return accept(stream, Integer.parseInt(seq)) ? datagram : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Builds the datagram for the next message on the passed stream.
+     *
+     * @param stream the name of the stream
+     * @param data the message
+     * @return a copy of the message with the sequenced header added
+     */
+    HashMap<String, String> wrap(String stream, HashMap<String, String> data) {
+        if (stream == null) {
+            throw new IllegalArgumentException("Stream name cannot be null.");
+        }
+        HashMap<String, String> datagram = new HashMap<>(data);
+        datagram.put(CBGNProtocol.CONTROL, CBGNProtocol.SEQUENCED);
+        datagram.put(CBGNProtocol.STREAM, stream);
+        datagram.put(CBGNProtocol.SEQ, Integer.toString(next(stream)));
+        return datagram;
+    }
+}
@@ -2,12 +2,30 @@ package networking;
 
 import error.CBGNException;
 import java.io.IOException;
-import java.net.DatagramSocket;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.security.SecureRandom;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.management.JMException;
 
 /**
  *
@@ -19,156 +37,1487 @@ public class CBGNServer implements Runnable {
     public final static int DEFAULT_SERVER_UDP_PORT = 1777;
     public final static int DEFAULT_SERVER_BROADCAST_PORT = 1778;
 
-    // a list of connections this Server is maintaining
-    private final HashMap<Socket, CBGNConnection> connections;
+    // the connections this Server is maintaining
+    private final CBGNConnectionRegistry connections;
+
+    // makes up the session tokens clients bind their UDP addresses with
+    private final SecureRandom tokens;
+
+    // numbers the sequenced UDP streams this server sends. Every connection
+    // sees the same numbers, so a broadcast is still encoded once.
+    private final CBGNSequencedStreams sequenced;
 
     private final int tcpPort, udpPort, udpBroadcastPort;
 
-    protected CBGNServerListener listener;
+    protected CBGNServerListener listener;
+
+    // how many times a second the server ticks, or 0 if it hands messages on
+    // as soon as they arrive, and the listener that runs each tick
+    private int tickRate;
+    private volatile CBGNTickListener tickListener;
+    private volatile long tick;
+    // what's arrived since the last tick, waiting to be handed on by the next
+    private final ConcurrentLinkedQueue<Runnable> inbound;
+    private final AtomicInteger inboundCount;
+
+    // where received events go instead of the listener, if that's been asked
+    // for
+    private CBGNEventQueue events;
+
+    // how many ticks the server may fall behind before it gives up on
+    // catching up
+    private static final int MAX_TICK_LAG = 5;
+
+    private CBGNServerConnectionAdapter adapter;
+
+    // the UDP connections, all bound to the UDP port. There's more than one
+    // only if UDP receivers were asked for and the platform has SO_REUSEPORT.
+    private CBGNConnection[] udpConns;
+    private int udpReceivers;
+
+    // set while the server is running, so its background tasks know to stop
+    private volatile boolean running;
+
+    // whether TCP connections are driven by a few selector loops instead of a
+    // Thread each, and how many loops to use
+    private boolean selectorEngine;
+    private int selectorThreads;
+    private CBGNSelectorLoop[] selectorLoops;
+
+    // runs the UDP connection, each TCP connection and the selector loops
+    private Executor executor;
+
+    // the rooms connections have joined, by name. Rooms are dropped once
+    // their last member leaves.
+    private final ConcurrentHashMap<String, CBGNRoom> rooms;
+
+    // where each connection is interested in hearing about, for UDP
+    // broadcasts that only go to nearby players
+    private volatile CBGNInterestGrid interestGrid;
+
+    private static final float DEFAULT_INTEREST_CELL_SIZE = 100f;
+
+    // the codecs clients may ask for when they connect, by name
+    private final LinkedHashMap<String, CBGNCodec> codecs;
+
+    // how many messages each connection may have waiting to be written, and
+    // what happens when a connection can't keep up
+    private int outboundQueueCapacity;
+    private CBGNOverflowPolicy overflowPolicy;
+
+    private static final int DEFAULT_OUTBOUND_QUEUE_CAPACITY = 1024;
+
+    // whether messages wait for flush() before being written, and how many
+    // bytes a connection may batch up before writing anyway
+    private boolean batching;
+    private int batchThreshold;
+
+    static final int DEFAULT_BATCH_THRESHOLD = 16384;
+
+    // the largest datagram the server accepts
+    private int maxDatagramSize;
+
+    // the dictionary every connection's TCP keys are replaced from, shared so
+    // a broadcast encodes to the same bytes for everyone. It's never replaced,
+    // since events cache the frames encoded with it.
+    private final CBGNKeyDictionary keyDictionary;
+    private volatile boolean keyDictionaryEnabled;
+
+    // the compression clients may ask for, or null, and how big a message to
+    // a client has to be before it's compressed
+    private volatile CBGNCompression compression;
+    private int compressionThreshold;
+
+    // what every connection has sent and received, and how long it took
+    private final CBGNMetrics metrics;
+
+    // how often each connection is pinged, and how long one may go without
+    // sending anything before it's closed, in milliseconds. Either may be 0
+    // for never. The timing wheel runs every connection's heartbeat.
+    private int heartbeatInterval;
+    private int idleTimeout;
+    private final CBGNTimingWheel heartbeats;
+
+    // resends and acks on the reliable channels that have anything pending
+    private final CBGNReliableTicker reliableTicker;
+
+    static final int DEFAULT_HEARTBEAT_INTERVAL = 1000;
+    static final int DEFAULT_IDLE_TIMEOUT = 0;
+
+    // how finely heartbeats are timed, and how many ticks make a turn of
+    // the wheel, which covers a typical idle timeout
+    private static final long HEARTBEAT_TICK = 50;
+    private static final int HEARTBEAT_SLOTS = 256;
+
+    /**
+     * Creates a new CBGNServer object with the default ports.
+     */
+    public CBGNServer() {
+        this(DEFAULT_SERVER_PORT, DEFAULT_SERVER_UDP_PORT, DEFAULT_SERVER_BROADCAST_PORT);
+    }
+
+    /**
+     * Creates a new CBGNServer object listening on the passed port.
+     *
+     * @param port the port for this Server to listen on
+     */
+    public CBGNServer(int port) {
+        this(port, DEFAULT_SERVER_UDP_PORT, DEFAULT_SERVER_BROADCAST_PORT);
+    }
+
+    /**
+     * Creates a new CBGNServer object listening on the passed port.
+     *
+     * @param tcpPort the port for this Server to listen on
+     * @param udpPort the port for this Server to listen to UDP on
+     */
+    public CBGNServer(int tcpPort, int udpPort) {
+        this(tcpPort, udpPort, DEFAULT_SERVER_BROADCAST_PORT);
+    }
+
+    /**
+     * Creates a new CBGNServer object listening on the passed port.
+     *
+     * @param tcpPort the port for this Server to listen on
+     * @param udpPort the port for this Server to listen to UDP on
+     * @param udpBroadcastPort the port for this server to send UDP packets to.
+     * By default the server will broadcast to (get this)
+     * DEFAULT_CLIENT_UDP_PORT.
+     */
+    public CBGNServer(int tcpPort, int udpPort, int udpBroadcastPort) {
+        this.tcpPort = tcpPort;
+        this.udpPort = udpPort;
+        this.udpBroadcastPort = udpBroadcastPort;
+        connections = new CBGNConnectionRegistry();
+        inbound = new ConcurrentLinkedQueue<>();
+        inboundCount = new AtomicInteger();
+        tokens = new SecureRandom();
+        sequenced = new CBGNSequencedStreams();
+        selectorThreads = Runtime.getRuntime().availableProcessors();
+        executor = CBGNThreadPerTaskExecutor.INSTANCE;
+        outboundQueueCapacity = DEFAULT_OUTBOUND_QUEUE_CAPACITY;
+        overflowPolicy = CBGNOverflowPolicy.DISCONNECT;
+        batchThreshold = DEFAULT_BATCH_THRESHOLD;
+        maxDatagramSize = CBGNConnection.DEFAULT_MAX_DATAGRAM_SIZE;
+        udpReceivers = 1;
+        rooms = new ConcurrentHashMap<>();
+        interestGrid = new CBGNInterestGrid(DEFAULT_INTEREST_CELL_SIZE);
+        keyDictionary = new CBGNKeyDictionary();
+        keyDictionaryEnabled = true;
+        compression = CBGNCompression.DEFLATE;
+        compressionThreshold = CBGNConnection.DEFAULT_COMPRESSION_THRESHOLD;
+        metrics = new CBGNMetrics(this);
+        heartbeatInterval = DEFAULT_HEARTBEAT_INTERVAL;
+        idleTimeout = DEFAULT_IDLE_TIMEOUT;
+        heartbeats = new CBGNTimingWheel(HEARTBEAT_TICK, TimeUnit.MILLISECONDS, HEARTBEAT_SLOTS);
+        reliableTicker = new CBGNReliableTicker();
+        codecs = new LinkedHashMap<>();
+        registerCodec(CBGNCodec.JSON);
+        registerCodec(CBGNCodec.BINARY);
+    }
+
+    /**
+     * Sets this server's listener to the passed listener. This will overwrite
+     * any currently-set listener.
+     *
+     * @param listener the CBGNServerListener to send messages to
+     */
+    public void registerListener(CBGNServerListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Sets the listener that runs the game's simulation step on every tick.
+     * It's only called if a tick rate has been set.
+     *
+     * @param tickListener the CBGNTickListener to call every tick
+     */
+    public void registerTickListener(CBGNTickListener tickListener) {
+        this.tickListener = tickListener;
+    }
+
+    /**
+     * Sets whether the server queues what it receives instead of handing it to
+     * its listener. With the event queue on, new connections, messages and
+     * closed connections become CBGNEvents on the queue returned by
+     * getEventQueue(), tagged with the connection's ID, for the game to take
+     * off from its own thread, as do slow connections; the listener only
+     * hears about onBegin and onStopped. Echoing is unaffected. If the server is
+     * also ticking, events are queued at the start of the tick they're handed
+     * on in, so the tick listener can drain them. This must be set before the
+     * server is run.
+     *
+     * @param eventQueue true to queue events instead of calling the listener
+     */
+    public void setEventQueue(boolean eventQueue) {
+        this.events = eventQueue ? new CBGNEventQueue() : null;
+    }
+
+    /**
+     * Returns the queue received events are put on, or null if the server
+     * hands them to its listener instead.
+     *
+     * @return the event queue, or null
+     */
+    public CBGNEventQueue getEventQueue() {
+        return events;
+    }
+
+    /**
+     * Sets how many times a second the server ticks, or 0 for it not to tick,
+     * which is the default. A ticking server doesn't hand messages to its
+     * listener as they arrive. Instead, on every tick, it hands on everything
+     * that arrived since the last tick, along with new and closed
+     * connections, then runs the tick listener, then writes everything sent
+     * during the tick in one go. All of that happens on a single thread, so
+     * the reading threads never touch game state, and output is batched
+     * whatever setBatching says. This must be set before the server is run.
+     *
+     * @param tickRate the number of ticks per second, from 0 to 1000
+     */
+    public void setTickRate(int tickRate) {
+        if (tickRate < 0 || tickRate > 1000) {
+            throw new IllegalArgumentException("Tick rate must be from 0 to 1000.");
+        }
+        this.tickRate = tickRate;
+    }
+
+    /**
+     * Returns how many times a second the server ticks, or 0 if it doesn't.
+     *
+     * @return the tick rate
+     */
+    public int getTickRate() {
+        return tickRate;
+    }
+
+    /**
+     * Sets how often the server pings each connection, in milliseconds, or 0
+     * for never. Clients answer every ping straight away, which measures the
+     * round trip time to them and keeps quiet clients from timing out. Only
+     * clients whose hello says they answer pings are pinged; clients that
+     * never said hello would get each ping as an ordinary message, so they
+     * aren't, and their round trip time stays unknown. The default is once a
+     * second. This must be set before the server is run.
+     *
+     * @param heartbeatInterval the time between pings, or 0
+     */
+    public void setHeartbeatInterval(int heartbeatInterval) {
+        if (heartbeatInterval < 0) {
+            throw new IllegalArgumentException("Heartbeat interval cannot be negative.");
+        }
+        this.heartbeatInterval = heartbeatInterval;
+    }
+
+    /**
+     * Returns how often the server pings each connection.
+     *
+     * @return the time between pings in milliseconds, or 0 for never
+     */
+    public int getHeartbeatInterval() {
+        return heartbeatInterval;
+    }
+
+    /**
+     * Sets how long a connection may go without the server receiving
+     * anything from it, over TCP or from its bound UDP address, before the
+     * server closes it, in milliseconds, or 0 for never. That catches
+     * clients that went away without closing their socket, which would
+     * otherwise be sent broadcasts forever. It should be several heartbeat
+     * intervals, so a couple of late pongs don't close a live connection.
+     * Clients that aren't pinged, because they never said they answer pings,
+     * are only kept open by what they send themselves, so a quiet one of
+     * those is closed too. The default is 0, so nothing is closed for being
+     * idle until this is set. This must be set before the server is run.
+     *
+     * @param idleTimeout the time allowed without hearing from a client, or 0
+     */
+    public void setIdleTimeout(int idleTimeout) {
+        if (idleTimeout < 0) {
+            throw new IllegalArgumentException("Idle timeout cannot be negative.");
+        }
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Returns how long a connection may go without sending anything before
+     * it's closed.
+     *
+     * @return the idle timeout in milliseconds, or 0 for never
+     */
+    public int getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Returns the number of the tick the server is on, or the number of ticks
+     * it has run if it's between them.
+     *
+     * @return the current tick
+     */
+    public long getTick() {
+        return tick;
+    }
+
+    /**
+     * Sets whether this server uses its selector engine for TCP connections.
+     * By default every connection gets its own Thread blocking on reads; with
+     * the selector engine enabled, all connections are driven non-blockingly
+     * by a small, fixed number of I/O threads instead. This must be set before
+     * the server is run.
+     *
+     * @param selectorEngine true to use the selector engine
+     */
+    public void setSelectorEngine(boolean selectorEngine) {
+        this.selectorEngine = selectorEngine;
+    }
+
+    /**
+     * Sets the number of I/O threads the selector engine uses. This defaults
+     * to the number of available processors, and has no effect unless the
+     * selector engine is enabled.
+     *
+     * @param selectorThreads the number of I/O threads, at least 1
+     */
+    public void setSelectorThreads(int selectorThreads) {
+        if (selectorThreads < 1) {
+            throw new IllegalArgumentException("A server needs at least one selector thread.");
+        }
+        this.selectorThreads = selectorThreads;
+    }
+
+    /**
+     * Sets the Executor this server runs its connections on. By default every
+     * connection is started on a new Thread; passing an executor that runs
+     * tasks on virtual threads (or a bounded pool) changes how the
+     * per-connection readers and writers, the UDP receivers, the selector
+     * loops and the server's timers are scheduled. With the blocking engine
+     * each connection has a reader task and, once it's been sent anything, a
+     * writer task, and both run for the lifetime of the connection. A bounded
+     * pool must therefore have two threads for every connection, plus one
+     * for each UDP receiver, one each for the heartbeat and reliable UDP
+     * timers, one for the tick loop if the server ticks, and a few spare for
+     * closing connections; with too few, writers never start and every
+     * outbound queue fills up. The selector engine only needs its selector
+     * threads and the same fixed extras. This must be set before the server
+     * is run.
+     *
+     * @param executor the Executor to run connections on
+     */
+    public void setExecutor(Executor executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("Executor cannot be null.");
+        }
+        this.executor = executor;
+    }
+
+    /**
+     * Sets how many messages each connection may have queued for writing
+     * before the overflow policy kicks in. Messages are written to each
+     * connection from its own queue, so a connection that isn't reading only
+     * ever holds up itself. The default is 1024.
+     *
+     * Messages held back by batching or a tick count towards the capacity,
+     * but a batching connection whose queue fills before the flush starts
+     * writing it there and then. With the selector engine that write happens
+     * on the sending thread, so a burst within one tick only overflows if the
+     * socket can't take it. The blocking engine hands the write to the
+     * connection's writer task, which a fast enough burst can still outrun,
+     * so there the capacity should cover the most messages sent to one
+     * connection in a tick. This must be set before the server is run.
+     *
+     * @param capacity the most messages to queue per connection, at least 1
+     */
+    public void setOutboundQueueCapacity(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Outbound queue capacity must be at least 1.");
+        }
+        this.outboundQueueCapacity = capacity;
+    }
+
+    /**
+     * Sets the largest datagram this server accepts over UDP; bigger ones are
+     * dropped. It's also the largest snapshot this server sends, so clients
+     * should accept datagrams at least this big. The default is 1472 bytes,
+     * the most that fits in a single Ethernet frame. This must be set before
+     * the server is run.
+     *
+     * @param maxDatagramSize the size in bytes, from 1 to 65507
+     */
+    public void setMaxDatagramSize(int maxDatagramSize) {
+        if (maxDatagramSize < 1 || maxDatagramSize > CBGNConnection.MAX_DATAGRAM_SIZE) {
+            throw new IllegalArgumentException("Maximum datagram size must be from 1 to " + CBGNConnection.MAX_DATAGRAM_SIZE + ".");
+        }
+        this.maxDatagramSize = maxDatagramSize;
+    }
+
+    /**
+     * Sets how many UDP receivers the server opens on its UDP port, each
+     * decoding on its own task. With more than one, SO_REUSEPORT lets the
+     * operating system spread incoming datagrams across them, always sending
+     * a given client's datagrams to the same receiver so they're still
+     * handled in order. Where SO_REUSEPORT isn't available the server falls
+     * back to a single receiver. The default is 1. This must be set before
+     * the server is run.
+     *
+     * @param udpReceivers the number of receivers, at least 1
+     */
+    public void setUDPReceivers(int udpReceivers) {
+        if (udpReceivers < 1) {
+            throw new IllegalArgumentException("Number of UDP receivers must be at least 1.");
+        }
+        this.udpReceivers = udpReceivers;
+    }
+
+    /**
+     * Sets what happens when a connection's outbound queue is full. The
+     * default is to disconnect the connection. Either way the listener's
+     * onSlowConnection is called. This must be set before the server is run.
+     *
+     * @param policy what to do with a connection that can't keep up
+     */
+    public void setOverflowPolicy(CBGNOverflowPolicy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException("Overflow policy cannot be null.");
+        }
+        this.overflowPolicy = policy;
+    }
+
+    /**
+     * Sets whether this server batches its output. With batching on, every
+     * message sent to a connection waits until flush() is called (or until
+     * the connection has more than the batch threshold waiting), and is then
+     * written together with everything else sent since the last flush. This
+     * suits a tick-based game that sends many small messages per tick and
+     * calls flush() at the end of each one. A connection that reaches its
+     * outbound queue capacity before the flush is written early rather than
+     * treated as slow. This must be set before the server is run.
+     *
+     * @param batching true to batch output until flush() is called
+     */
+    public void setBatching(boolean batching) {
+        this.batching = batching;
+    }
+
+    /**
+     * Sets how many bytes a batching connection may have waiting before it
+     * writes them without waiting for flush(). The default is 16 KiB. This
+     * must be set before the server is run.
+     *
+     * @param batchThreshold the most bytes to hold back, at least 1
+     */
+    public void setBatchThreshold(int batchThreshold) {
+        if (batchThreshold < 1) {
+            throw new IllegalArgumentException("Batch threshold must be at least 1.");
+        }
+        this.batchThreshold = batchThreshold;
+    }
+
+    /**
+     * Writes everything sent since the last flush to every connection. This
+     * only does anything if batching is on, typically it's called once at the
+     * end of every game tick.
+     */
+    public void flush() {
+        for (CBGNConnection conn : connections.snapshot()) {
+            conn.flush();
+        }
+    }
+
+    /**
+     * Registers the passed codec with this server, so that clients asking for
+     * it by name when they connect get switched over to it. The JSON and
+     * binary codecs are always registered; registering another codec with the
+     * same name replaces it.
+     *
+     * @param codec the codec to make available to clients
+     */
+    public void registerCodec(CBGNCodec codec) {
+        if (codec == null) {
+            throw new IllegalArgumentException("Codec cannot be null.");
+        }
+        synchronized (codecs) {
+            codecs.put(codec.getName(), codec);
+        }
+    }
+
+    /**
+     * Sets whether clients that ask for it get their TCP map keys replaced by
+     * short references. Once a key has been sent a few times, it's defined
+     * once per connection and sent as a reference of a few bytes after that,
+     * which adds up for games that send the same keys in every message. It's on by default; connections
+     * that have already agreed to it keep using it.
+     *
+     * @param keyDictionary true to agree to key dictionaries
+     */
+    public void setKeyDictionary(boolean keyDictionary) {
+        this.keyDictionaryEnabled = keyDictionary;
+    }
+
+    /**
+     * Sets the compression clients may ask for when they connect, or null to
+     * refuse compression. The default is Deflate. Clients that ask for a
+     * compression with a different name don't get any.
+     *
+     * @param compression the compression to agree to, or null
+     */
+    public void setCompression(CBGNCompression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Returns the compression clients may ask for, or null if compression is
+     * refused.
+     *
+     * @return the compression agreed to, or null
+     */
+    public CBGNCompression getCompression() {
+        return compression;
+    }
+
+    /**
+     * Sets how big a TCP message has to be, in bytes, before it's compressed
+     * for clients that agreed on compression. Smaller messages are sent as
+     * they are, since compressing them costs more than it saves. The default
+     * is 1 KiB. This must be set before the server is run.
+     *
+     * @param compressionThreshold the smallest message to compress, at least 1
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        if (compressionThreshold < 1) {
+            throw new IllegalArgumentException("Compression threshold must be at least 1.");
+        }
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * Returns the dictionary connections replace their TCP keys from, or null
+     * if key dictionaries are off.
+     *
+     * @return the server's key dictionary, or null
+     */
+    CBGNKeyDictionary getKeyDictionary() {
+        return keyDictionaryEnabled ? keyDictionary : null;
+    }
+
+    /**
+     * Returns the registered codec with the passed name, or null if there
+     * isn't one.
+     *
+     * @param name the name of the codec
+     * @return the codec, or null
+     */
+    CBGNCodec getCodec(String name) {
+        synchronized (codecs) {
+            return codecs.get(name);
+        }
+    }
+
+    /**
+     * Returns whether this server uses its selector engine for TCP
+     * connections.
+     *
+     * @return true if the selector engine is enabled
+     */
+    public boolean isSelectorEngine() {
+        return selectorEngine;
+    }
+
+    /**
+     * Returns the number of registered connections with this server.
+     *
+     * @return the number of registered connections with this server
+     */
+    public int numberOfConnections() {
+        return connections.size();
+    }
+
+    /**
+     * Returns this server's metrics: what its connections have sent and
+     * received, and how long encoding, decoding and broadcasting take.
+     *
+     * @return the server's metrics
+     */
+    public CBGNMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns what the connection with the passed ID has sent and received
+     * so far, along with its outbound queue and round trip time.
+     *
+     * @param id the connection's ID
+     * @return a snapshot of the connection's metrics, or null if there's no
+     * such connection
+     */
+    public CBGNConnectionMetrics getConnectionMetrics(int id) {
+        CBGNConnection conn = connections.get(id);
+        return conn == null ? null : conn.snapshotMetrics();
+    }
+
+    /**
+     * Returns the smoothed round trip time to the connection with the passed
+     * ID, as measured by the heartbeat. Games can use this to work out how
+     * far behind the server a client's inputs are.
+     *
+     * @param id the connection's ID
+     * @return the round trip time in milliseconds, or -1 if there's no such
+     * connection or it hasn't been measured yet
+     */
+    public float getRoundTripTime(int id) {
+        CBGNConnection conn = connections.get(id);
+        return conn == null ? -1 : conn.getHeartbeat().getRoundTripTime();
+    }
+
+    /**
+     * Returns how much the round trip time to the connection with the passed
+     * ID varies from one heartbeat to the next.
+     *
+     * @param id the connection's ID
+     * @return the jitter in milliseconds, or -1 if there's no such
+     * connection or it hasn't been measured yet
+     */
+    public float getJitter(int id) {
+        CBGNConnection conn = connections.get(id);
+        return conn == null ? -1 : conn.getHeartbeat().getJitter();
+    }
+
+    /**
+     * Returns the number of TCP messages waiting to be written, over every
+     * connection.
+     *
+     * @return the total length of the outbound queues
+     */
+    int getOutboundQueueDepth() {
+        int depth = 0;
+        for (CBGNConnection conn : connections.snapshot()) {
+            depth += conn.getOutboundQueueSize();
+        }
+        return depth;
+    }
+
+    /**
+     * Returns the number of received messages waiting to be handed on by the
+     * next tick. It's always 0 if the server isn't ticking.
+     *
+     * @return the number of messages waiting for a tick
+     */
+    int getInboundQueueDepth() {
+        return inboundCount.get();
+    }
+
+    /**
+     * Returns the IDs of every connection to this server. Each connection is
+     * given an ID when it's accepted, and IDs are never reused.
+     *
+     * @return the IDs of the current connections
+     */
+    public int[] getConnectionIds() {
+        CBGNConnection[] current = connections.snapshot();
+        int[] ids = new int[current.length];
+        for (int i = 0; i < current.length; i++) {
+            ids[i] = current[i].getId();
+        }
+        return ids;
+    }
+
+    /**
+     * Returns the ID of the connection for the passed socket.
+     *
+     * @param socket the socket of the connection
+     * @return the connection's ID, or -1 if it isn't one of this server's
+     * connections
+     */
+    public int getConnectionId(Socket socket) {
+        CBGNConnection conn = connections.get(socket);
+        return conn == null ? -1 : conn.getId();
+    }
+
+    /**
+     * Returns the socket of the connection with the passed ID.
+     *
+     * @param id the connection's ID
+     * @return the connection's socket, or null if there's no such connection
+     */
+    public Socket getSocket(int id) {
+        CBGNConnection conn = connections.get(id);
+        return conn == null ? null : conn.clientSocket;
+    }
+
+    /**
+     * Sends the passed data to the connection with the passed ID only.
+     *
+     * @param id the connection's ID
+     * @param data a map of string key/value pairs to send
+     * @return false if there's no such connection
+     * @throws IOException if there is an exception handing the write
+     */
+    public boolean sendMessage(int id, HashMap<String, String> data) throws IOException {
+        CBGNConnection conn = connections.get(id);
+        if (conn == null) {
+            return false;
+        }
+        conn.sendMessage(data);
+        return true;
+    }
+
+    /**
+     * Sends the passed data over UDP to the connection with the passed ID
+     * only.
+     *
+     * @param id the connection's ID
+     * @param data a map of string key/value pairs to send
+     * @return false if there's no such connection
+     * @throws IOException if there is an exception handing the write
+     */
+    public boolean sendUDPMessage(int id, HashMap<String, String> data) throws IOException {
+        CBGNConnection conn = connections.get(id);
+        if (conn == null) {
+            return false;
+        }
+        broadcastUDPMessage(new GameEvent(data), Arrays.asList(conn));
+        return true;
+    }
+
+    /**
+     * Removes the passed connection from the current list of connections. You
+     * must manually close this socket. If the socket isn't in the current list
+     * of connections, nothing will happen.
+     *
+     * @param socket the socket to remove
+     */
+    public void removeConnection(Socket socket) {
+        CBGNConnection conn = socket == null ? null : connections.remove(socket);
+        if (conn != null) {
+            for (CBGNRoom room : conn.getRooms()) {
+                leaveRoom(room, conn);
+            }
+            interestGrid.remove(conn);
+            conn.getReliableChannel().clear();
+        }
+    }
+
+    /**
+     * Adds the connection for the passed socket to the named room, creating
+     * the room if nobody is in it yet. A connection can be in any number of
+     * rooms. Messages a client sends are echoed to the rooms it's in, or to
+     * every connection if it isn't in any.
+     *
+     * @param room the name of the room to join
+     * @param socket the socket of the connection joining
+     * @return false if the socket isn't one of this server's connections
+     */
+    public boolean joinRoom(String room, Socket socket) {
+        if (room == null) {
+            throw new IllegalArgumentException("Room name cannot be null.");
+        }
+        CBGNConnection conn = connections.get(socket);
+        if (conn == null) {
+            return false;
+        }
+        while (true) {
+            CBGNRoom joined = rooms.get(room);
+            if (joined == null) {
+                joined = new CBGNRoom(room);
+                CBGNRoom existing = rooms.putIfAbsent(room, joined);
+                if (existing != null) {
+                    joined = existing;
+                }
+            }
+            // a room that emptied out while we were looking it up is gone,
+            // so go around again and make a new one
+            if (joined.add(conn)) {
+                conn.joined(joined);
+                if (connections.get(socket) != conn) {
+                    // the connection was removed while this was joining, and
+                    // its removal may have missed the room just joined
+                    leaveRoom(joined, conn);
+                    return false;
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Removes the connection for the passed socket from the named room. If
+     * the connection isn't in the room, nothing happens.
+     *
+     * @param room the name of the room to leave
+     * @param socket the socket of the connection leaving
+     */
+    public void leaveRoom(String room, Socket socket) {
+        CBGNConnection conn = connections.get(socket);
+        CBGNRoom left = room == null ? null : rooms.get(room);
+        if (conn != null && left != null) {
+            leaveRoom(left, conn);
+        }
+    }
+
+    // removes the connection from the room, dropping the room if it's empty
+    private void leaveRoom(CBGNRoom room, CBGNConnection conn) {
+        conn.left(room);
+        if (room.remove(conn)) {
+            rooms.remove(room.getName(), room);
+        }
+    }
+
+    /**
+     * Returns the number of connections in the named room.
+     *
+     * @param room the name of the room
+     * @return the number of connections in it, 0 if it doesn't exist
+     */
+    public int roomSize(String room) {
+        CBGNRoom r = room == null ? null : rooms.get(room);
+        return r == null ? 0 : r.size();
+    }
+
+    /**
+     * Sets the width of the cells the server uses to find connections
+     * interested in a position. It works best at about the size of a typical
+     * area of interest. The default is 100. This can't be changed once any
+     * connection has an area of interest.
+     *
+     * @param cellSize the width of each cell, greater than 0
+     */
+    public void setInterestCellSize(float cellSize) {
+        if (interestGrid.size() > 0) {
+            throw new IllegalStateException("Cell size cannot change once areas of interest are set.");
+        }
+        interestGrid = new CBGNInterestGrid(cellSize);
+    }
+
+    /**
+     * Sets the area the connection for the passed socket is interested in to
+     * a circle. Positional UDP broadcasts only go to connections whose area
+     * contains the broadcast's position; call this again whenever the player
+     * moves.
+     *
+     * @param socket the socket of the connection
+     * @param x the x coordinate of the circle's centre
+     * @param y the y coordinate of the circle's centre
+     * @param radius the radius of the circle, at least 0
+     * @return false if the socket isn't one of this server's connections
+     * @throws IllegalArgumentException if the position or radius isn't
+     * finite, or the circle covers more than 4096 cells of the interest grid
+     */
+    public boolean setInterest(Socket socket, float x, float y, float radius) {
+        CBGNConnection conn = connections.get(socket);
+        if (conn == null) {
+            return false;
+        }
+        interestGrid.update(conn, x, y, radius);
+        if (connections.get(socket) != conn) {
+            // the connection was removed while this was updating, and its
+            // removal may have missed the area just added
+            interestGrid.remove(conn);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Removes the area of interest for the connection for the passed socket,
+     * so it no longer gets positional UDP broadcasts.
+     *
+     * @param socket the socket of the connection
+     */
+    public void clearInterest(Socket socket) {
+        CBGNConnection conn = connections.get(socket);
+        if (conn != null) {
+            interestGrid.remove(conn);
+        }
+    }
+
+    /**
+     * Runs the server, accepting connections and adding them to the list of
+     * available connections.
+     */
+    @Override
+    public void run() {
+
+        try {
+            if (listener != null) {
+                listener.onBegin();
+            }
+
+            adapter = new CBGNServerConnectionAdapter(this);
+
+            running = true;
+            openUDPReceivers();
+            if (heartbeatInterval > 0 || idleTimeout > 0) {
+                executor.execute(heartbeats);
+            }
+            executor.execute(reliableTicker);
+            if (tickRate > 0) {
+                // output waits for the end of the tick
+                batching = true;
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        runTicks();
+                    }
+                });
+            }
+
+            if (selectorEngine) {
+                acceptChannels();
+            } else {
+                acceptSockets();
+            }
+        } catch (IOException e) {
+            Logger.getLogger(CBGNConnection.class.getName()).log(Level.SEVERE, null, e);
+        } finally {
+            running = false;
+            heartbeats.stop();
+            reliableTicker.stop();
+            try {
+                metrics.unregisterMBean();
+            } catch (JMException e) {
+                Logger.getLogger(CBGNServer.class.getName()).log(Level.WARNING, null, e);
+            }
+            if (selectorLoops != null) {
+                for (CBGNSelectorLoop loop : selectorLoops) {
+                    loop.shutdown();
+                }
+            }
+            // close all of the connections
+            for (CBGNConnection conn : connections.snapshot()) {
+                try {
+                    conn.close();
+                } catch (IOException e) {
+                    Logger.getLogger(CBGNConnection.class.getName()).log(Level.SEVERE, null, e);
+                }
+            }
+        }
+    }
+
+    // ticks at the tick rate until the server stops. A tick that runs long
+    // makes the next one start straight away, but once the server is more
+    // than a few ticks behind it stops trying to catch up.
+    private void runTicks() {
+        long period = 1000000000L / tickRate;
+        float step = 1f / tickRate;
+        long next = System.nanoTime();
+        try {
+            while (running) {
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                }
+                long behind = System.nanoTime() - next;
+                if (behind > period * MAX_TICK_LAG) {
+                    Logger.getLogger(CBGNServer.class.getName()).log(Level.WARNING,
+                            "Server fell {0} ticks behind, skipping them.", behind / period);
+                    next += (behind / period) * period;
+                }
+                next += period;
+                runTick(step);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // hands on what arrived before the tick started, runs the tick listener
+    // and writes everything sent. Anything arriving meanwhile waits for the
+    // next tick, so a flood of messages can't stretch a tick out forever.
+    private void runTick(float step) {
+        int count = inboundCount.get();
+        for (int i = 0; i < count; i++) {
+            try {
+                inbound.poll().run();
+            } catch (RuntimeException e) {
+                Logger.getLogger(CBGNServer.class.getName()).log(Level.SEVERE, null, e);
+            }
+        }
+        inboundCount.addAndGet(-count);
+
+        CBGNTickListener ticker = tickListener;
+        if (ticker != null) {
+            try {
+                ticker.onTick(tick, step);
+            } catch (RuntimeException e) {
+                Logger.getLogger(CBGNServer.class.getName()).log(Level.SEVERE, null, e);
+            }
+        }
+        tick++;
+        flush();
+    }
+
+    /**
+     * Hands the passed delivery to the listener's thread: the tick thread on
+     * the next tick if the server is ticking, or the calling thread right
+     * away if not.
+     *
+     * @param delivery calls the listener, and echoes what it's handed
+     */
+    void deliver(Runnable delivery) {
+        if (tickRate > 0) {
+            // counted after it's queued, so a tick never polls an empty queue
+            inbound.add(delivery);
+            inboundCount.incrementAndGet();
+        } else {
+            delivery.run();
+        }
+    }
+
+    // tells the listener about a new connection, on the listener's thread
+    private void announce(final CBGNConnection conn) {
+        deliver(new Runnable() {
+            @Override
+            public void run() {
+                if (events != null) {
+                    events.add(new CBGNEvent(CBGNEvent.Type.CONNECTED, conn.getId(), null, null));
+                } else {
+                    listener.onConnection(conn.name);
+                }
+            }
+        });
+    }
+
+    /**
+     * Hands a received message to the listener, or puts it on the event queue
+     * if there is one.
+     *
+     * @param type MESSAGE, UDP_MESSAGE or RELIABLE_UDP_MESSAGE
+     * @param sender the connection the message came from, or null if it
+     * isn't known
+     * @param data the message
+     */
+    void handOn(CBGNEvent.Type type, CBGNConnection sender, HashMap<String, String> data) {
+        if (events != null) {
+            events.add(new CBGNEvent(type, sender == null ? 0 : sender.getId(), data, null));
+            return;
+        }
+        switch (type) {
+            case MESSAGE:
+                listener.onMessage(data);
+                break;
+            case UDP_MESSAGE:
+                listener.onUDPMessage(data);
+                break;
+            case RELIABLE_UDP_MESSAGE:
+                listener.onReliableUDPMessage(data);
+                break;
+            default:
+                throw new IllegalArgumentException("Not a message event: " + type);
+        }
+    }
+
+    /**
+     * Tells the listener a connection closed, or puts that on the event queue
+     * if there is one.
+     *
+     * @param conn the connection that closed
+     * @param reason why it closed
+     */
+    void handOnClosed(CBGNConnection conn, String reason) {
+        if (events != null) {
+            events.add(new CBGNEvent(CBGNEvent.Type.CLOSED, conn.getId(), null, reason));
+        } else {
+            listener.onConnectionClosed(conn.clientSocket, new CBGNException(reason));
+        }
+    }
+
+    /**
+     * Tells the listener a connection couldn't keep up, or puts it on the
+     * event queue if there is one.
+     *
+     * @param conn the connection whose outbound queue filled
+     * @param policy the overflow policy that was applied
+     */
+    void handOnSlow(CBGNConnection conn, CBGNOverflowPolicy policy) {
+        if (events != null) {
+            events.add(new CBGNEvent(CBGNEvent.Type.SLOW, conn.getId(), null, policy.name()));
+        } else if (listener != null) {
+            listener.onSlowConnection(conn.clientSocket, policy);
+        }
+    }
+
+    // opens the UDP receivers and starts each on its own task
+    private void openUDPReceivers() throws IOException {
+        SocketOption<Boolean> reusePort = udpReceivers > 1 ? reusePortOption() : null;
+        if (udpReceivers > 1 && reusePort == null) {
+            Logger.getLogger(CBGNServer.class.getName()).log(Level.WARNING,
+                    "SO_REUSEPORT isn't available, using a single UDP receiver.");
+        }
+
+        udpConns = new CBGNConnection[reusePort == null ? 1 : udpReceivers];
+        for (int i = 0; i < udpConns.length; i++) {
+            DatagramChannel udpChannel = DatagramChannel.open();
+            if (reusePort != null) {
+                udpChannel.setOption(reusePort, true);
+            }
+            udpChannel.socket().bind(new InetSocketAddress(getUdpPort()));
+            udpConns[i] = new CBGNConnection(adapter, udpChannel);
+            udpConns[i].setMaxDatagramSize(maxDatagramSize);
+            udpConns[i].setMetrics(metrics);
+        }
+        for (CBGNConnection udpConn : udpConns) {
+            executor.execute(udpConn);
+        }
+    }
 
-    private CBGNServerConnectionAdapter adapter;
+    // returns the SO_REUSEPORT option, or null if this Java doesn't have it
+    // (it was only added in Java 9) or the platform doesn't support it
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> reusePortOption() {
+        try {
+            SocketOption<Boolean> option = (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+            try (DatagramChannel probe = DatagramChannel.open()) {
+                return probe.supportedOptions().contains(option) ? option : null;
+            }
+        } catch (ReflectiveOperationException | IOException e) {
+            return null;
+        }
+    }
+
+    // adds a newly accepted connection to the registry and gives it a
+    // session token. Until the client binds its UDP address with the token,
+    // its datagrams are expected from the broadcast port on the same host.
+    private void register(final CBGNConnection conn) {
+        conn.setReliableChannel(new CBGNReliableChannel(reliableTicker) {
+            @Override
+            protected void transmit(HashMap<String, String> datagram) throws IOException {
+                sendDatagram(conn, new GameEvent(datagram).toDatagram());
+            }
+
+            @Override
+            protected void overflowed(boolean first) {
+                conn.reliableOverflowed(first);
+            }
+
+            @Override
+            protected void gaveUp() {
+                Logger.getLogger(CBGNServer.class.getName()).log(Level.INFO,
+                        "Closing connection {0}, a reliable UDP message went unacknowledged.", conn.name);
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            conn.close("Reliable UDP timed out");
+                        } catch (IOException e) {
+                            Logger.getLogger(CBGNServer.class.getName()).log(Level.WARNING, null, e);
+                        }
+                    }
+                });
+            }
+        });
+        conn.setSequencedStreams(new CBGNSequencedStreams());
+        conn.setSnapshotSender(new CBGNSnapshotSender());
+        conn.setHeartbeat(new CBGNHeartbeat());
+        conn.setCompressionThreshold(compressionThreshold);
+        conn.setMetrics(metrics);
+        metrics.connectionAccepted();
+        int id = connections.add(conn, new InetSocketAddress(conn.clientSocket.getInetAddress(), udpBroadcastPort));
+        conn.setSessionToken(id + "." + Long.toHexString(tokens.nextLong()));
+        if (heartbeatInterval > 0 || idleTimeout > 0) {
+            scheduleHeartbeat(conn, heartbeatInterval > 0 ? heartbeatInterval : idleTimeout);
+        }
+    }
+
+    // sets a connection's next heartbeat on the timing wheel
+    private void scheduleHeartbeat(final CBGNConnection conn, long delay) {
+        conn.getHeartbeat().setTimeout(heartbeats.schedule(new Runnable() {
+            @Override
+            public void run() {
+                heartbeat(conn);
+            }
+        }, delay, TimeUnit.MILLISECONDS));
+    }
 
-    // the UDP connection, in case we need to manage it at some point
-    private CBGNConnection udpConn;
+    // closes a connection that's been quiet for too long, or pings it, and
+    // sets its next heartbeat. Runs on the timing wheel's thread, so nothing
+    // in here may block.
+    private void heartbeat(final CBGNConnection conn) {
+        if (conn.isClosed()) {
+            return;
+        }
+        long silent = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - conn.getLastHeard());
+        if (idleTimeout > 0 && silent >= idleTimeout) {
+            Logger.getLogger(CBGNServer.class.getName()).log(Level.INFO,
+                    "Closing connection {0}, nothing heard from it for {1,number,#} ms.", new Object[]{conn.name, silent});
+            // closing runs the listener and the server's clean up, which
+            // mustn't hold up every other connection's heartbeat
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        conn.close("Timed out");
+                    } catch (IOException e) {
+                        Logger.getLogger(CBGNServer.class.getName()).log(Level.WARNING, null, e);
+                    }
+                }
+            });
+            return;
+        }
+        long next = idleTimeout > 0 ? idleTimeout - silent : Long.MAX_VALUE;
+        if (heartbeatInterval > 0 && conn.getHeartbeat().answersPings()) {
+            try {
+                // connections queue their writes, so this doesn't block
+                conn.sendMessage(conn.getHeartbeat().ping(System.nanoTime() / 1000));
+                if (tickRate == 0) {
+                    // a ticking server writes at the end of the tick anyway
+                    conn.flush();
+                }
+            } catch (IOException e) {
+                // the connection is closing; its reading side will notice
+            }
+        }
+        if (heartbeatInterval > 0) {
+            // a client that hasn't said hello yet may still do so
+            next = Math.min(next, heartbeatInterval);
+        }
+        scheduleHeartbeat(conn, next);
+    }
 
     /**
-     * Creates a new CBGNServer object with the default ports.
+     * Takes a round trip time sample from a client's answer to a ping.
+     *
+     * @param conn the connection the pong arrived on
+     * @param pong the pong
      */
-    public CBGNServer() {
-        this(DEFAULT_SERVER_PORT, DEFAULT_SERVER_UDP_PORT, DEFAULT_SERVER_BROADCAST_PORT);
+    void onPong(CBGNConnection conn, HashMap<String, String> pong) {
+        CBGNHeartbeat heartbeat = conn.getHeartbeat();
+        if (heartbeat == null) {
+            return;
+        }
+        long sample = heartbeat.pong(pong, System.nanoTime() / 1000);
+        if (sample >= 0) {
+            metrics.roundTrip(sample * 1000);
+        }
+    }
+
+    // accepts connections over and over, giving each one its own task on
+    // the executor
+    private void acceptSockets() throws IOException {
+        ServerSocket serverSocket = new ServerSocket(getTcpPort());
+        Socket clientSocket;
+
+        // here we listen for connections and accept them over and over
+        while (true) {
+            // start a new task for each client, because server
+            clientSocket = serverSocket.accept();
+            if (batching) {
+                clientSocket.setTcpNoDelay(true);
+            }
+            CBGNConnection conn = new CBGNConnection(adapter, clientSocket);
+            conn.setOutboundQueue(executor, outboundQueueCapacity, overflowPolicy);
+            conn.setBatching(batching, batchThreshold);
+            // register before the connection starts, so that it can't close
+            // and be removed before it's been added
+            register(conn);
+            announce(conn);
+            executor.execute(conn);
+        }
+    }
+
+    // accepts connections over and over, spreading them across the selector
+    // loops so that a few threads drive every connection
+    private void acceptChannels() throws IOException {
+        selectorLoops = new CBGNSelectorLoop[selectorThreads];
+        for (int i = 0; i < selectorLoops.length; i++) {
+            selectorLoops[i] = new CBGNSelectorLoop();
+            executor.execute(selectorLoops[i]);
+        }
+
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().bind(new InetSocketAddress(getTcpPort()));
+
+        int next = 0;
+        while (true) {
+            SocketChannel clientChannel = serverChannel.accept();
+            clientChannel.socket().setTcpNoDelay(true);
+            CBGNConnection conn = new CBGNConnection(adapter, clientChannel);
+            conn.setOutboundQueue(executor, outboundQueueCapacity, overflowPolicy);
+            conn.setBatching(batching, batchThreshold);
+            register(conn);
+            announce(conn);
+
+            // round-robin is enough to keep the loops evenly loaded
+            selectorLoops[next].register(conn);
+            next = (next + 1) % selectorLoops.length;
+        }
     }
 
     /**
-     * Creates a new CBGNServer object listening on the passed port.
+     * Sends the passed event to every passed connection. The event is encoded
+     * once per codec in use, not once per connection.
      *
-     * @param port the port for this Server to listen on
+     * @param event the GameEvent to send
+     * @param targets the connections to send it to
+     * @throws IOException if there is an exception handing the write
      */
-    public CBGNServer(int port) {
-        this(port, DEFAULT_SERVER_UDP_PORT, DEFAULT_SERVER_BROADCAST_PORT);
+    private void broadcastMessage(GameEvent event, Iterable<CBGNConnection> targets) throws IOException {
+        long start = System.nanoTime();
+        for (CBGNConnection conn : targets) {
+            try {
+                conn.sendEvent(event);
+            } catch (IOException e) {
+                // a connection that closed mid-broadcast mustn't stop the
+                // rest getting it
+                recipientFailed(conn, e);
+                conn.closeQuietly();
+            }
+        }
+        metrics.broadcast(System.nanoTime() - start);
     }
 
     /**
-     * Creates a new CBGNServer object listening on the passed port.
+     * Sends the passed event to every passed connection over UDP. The event
+     * is encoded once, and the same packet is readdressed for every
+     * connection.
      *
-     * @param tcpPort the port for this Server to listen on
-     * @param udpPort the port for this Server to listen to UDP on
+     * @param event the GameEvent to send
+     * @param targets the connections to send it to
+     * @throws IOException if there is an exception handing the write
      */
-    public CBGNServer(int tcpPort, int udpPort) {
-        this(tcpPort, udpPort, DEFAULT_SERVER_BROADCAST_PORT);
+    private void broadcastUDPMessage(GameEvent event, Iterable<CBGNConnection> targets) throws IOException {
+        long start = System.nanoTime();
+        byte[] payload = event.toDatagram();
+        DatagramPacket packet = new DatagramPacket(payload, payload.length);
+        for (CBGNConnection conn : targets) {
+            packet.setSocketAddress(conn.getUDPAddress());
+            try {
+                udpSender(conn).sendUDPPacket(packet);
+            } catch (IOException e) {
+                // UDP is lossy anyway, so skip this one and carry on
+                recipientFailed(conn, e);
+            }
+        }
+        metrics.broadcast(System.nanoTime() - start);
+    }
+
+    // sends a single encoded datagram to the passed connection
+    private void sendDatagram(CBGNConnection conn, byte[] payload) throws IOException {
+        udpSender(conn).sendUDPPacket(new DatagramPacket(payload, payload.length, conn.getUDPAddress()));
+    }
+
+    // returns the UDP connection to send to the passed connection from. Every
+    // receiver shares the port, so any of them can send; connections are
+    // spread across them so broadcasts don't all queue on one.
+    private CBGNConnection udpSender(CBGNConnection conn) {
+        CBGNConnection[] senders = udpConns;
+        return senders[(conn.getId() & Integer.MAX_VALUE) % senders.length];
     }
 
     /**
-     * Creates a new CBGNServer object listening on the passed port.
+     * Sends the passed data reliably over UDP to every passed connection.
      *
-     * @param tcpPort the port for this Server to listen on
-     * @param udpPort the port for this Server to listen to UDP on
-     * @param udpBroadcastPort the port for this server to send UDP packets to.
-     * By default the server will broadcast to (get this)
-     * DEFAULT_CLIENT_UDP_PORT.
+     * @param data the data to send
+     * @param targets the connections to send it to
+     * @throws IOException if there is an exception handing the write
      */
-    public CBGNServer(int tcpPort, int udpPort, int udpBroadcastPort) {
-        this.tcpPort = tcpPort;
-        this.udpPort = udpPort;
-        this.udpBroadcastPort = udpBroadcastPort;
-        connections = new HashMap<>();
+    private void broadcastReliableUDPMessage(HashMap<String, String> data, Iterable<CBGNConnection> targets) throws IOException {
+        long start = System.nanoTime();
+        for (CBGNConnection conn : targets) {
+            try {
+                conn.getReliableChannel().send(data);
+            } catch (IOException e) {
+                recipientFailed(conn, e);
+            }
+        }
+        metrics.broadcast(System.nanoTime() - start);
     }
 
     /**
-     * Sets this server's listener to the passed listener. This will overwrite
-     * any currently-set listener.
+     * Echoes a sequenced UDP message to the rooms its sender is in, or to
+     * every connection if it isn't in any. Each sender's stream is echoed as
+     * a stream of its own, so one sender's updates never make another's look
+     * stale.
      *
-     * @param listener the CBGNServerListener to send messages to
+     * @param sender the connection the message came from
+     * @param stream the stream the message was sent on
+     * @param data the message
+     * @throws IOException if there is an exception handing the write
      */
-    public void registerListener(CBGNServerListener listener) {
-        this.listener = listener;
+    void echoSequencedUDPMessage(CBGNConnection sender, String stream, HashMap<String, String> data) throws IOException {
+        String echoed = sender.getId() + ":" + stream;
+        broadcastUDPMessage(new GameEvent(sequenced.wrap(echoed, data)), echoTargets(sender));
     }
 
     /**
-     * Returns the number of registered connections with this server.
+     * Echoes a reliable UDP message to the rooms its sender is in, or to
+     * every connection if it isn't in any.
      *
-     * @return the number of registered connections with this server
+     * @param sender the connection the message came from
+     * @param data the message
+     * @throws IOException if there is an exception handing the write
      */
-    public int numberOfConnections() {
-        return connections.size();
+    void echoReliableUDPMessage(CBGNConnection sender, HashMap<String, String> data) throws IOException {
+        broadcastReliableUDPMessage(data, echoTargets(sender));
     }
 
     /**
-     * Removes the passed connection from the current list of connections. You
-     * must manually close this socket. If the socket isn't in the current list
-     * of connections, nothing will happen.
+     * Echoes a message from the passed connection to the rooms it's in, or to
+     * every connection if it isn't in any. A connection in more than one of
+     * the sender's rooms only gets the message once.
      *
-     * @param socket the socket to remove
+     * @param sender the connection the message came from
+     * @param data the message
+     * @throws IOException if there is an exception handing the write
      */
-    public void removeConnection(Socket socket) {
-        connections.remove(socket);
+    void echoMessage(CBGNConnection sender, HashMap<String, String> data) throws IOException {
+        broadcastMessage(new GameEvent(data), echoTargets(sender));
     }
 
     /**
-     * Runs the server, accepting connections and adding them to the list of
-     * available connections.
+     * Echoes a UDP message to the rooms its sender is in, or to every
+     * connection if it isn't in any or the sender isn't known.
+     *
+     * @param sender the connection the message came from, or null
+     * @param data the message
+     * @throws IOException if there is an exception handing the write
      */
-    @Override
-    public void run() {
-
-        try {
-            if (listener != null) {
-                listener.onBegin();
-            }
+    void echoUDPMessage(CBGNConnection sender, HashMap<String, String> data) throws IOException {
+        broadcastUDPMessage(new GameEvent(data), echoTargets(sender));
+    }
 
-            adapter = new CBGNServerConnectionAdapter(this);
-            ServerSocket serverSocket = new ServerSocket(getTcpPort());
-            Socket clientSocket;
-
-            // start the UDP thread here, since we only need one
-            DatagramSocket udpSocket = new DatagramSocket(getUdpPort());
-            udpConn = new CBGNConnection(adapter, udpSocket);
-            Thread thread = new Thread(udpConn);
-            thread.start();
-
-            // here we listen for connections and accept them over and over
-            while (true) {
-                // start a new Thread for each client, because server
-                clientSocket = serverSocket.accept();
-                CBGNConnection conn = new CBGNConnection(adapter, clientSocket);
-                thread = new Thread(conn);
-                thread.start();
-                listener.onConnection(conn.name);
-                connections.put(clientSocket, conn);
-            }
-        } catch (IOException e) {
-            Logger.getLogger(CBGNConnection.class.getName()).log(Level.SEVERE, null, e);
-        } finally {
-            // close all of the connections
-            for (CBGNConnection conn : connections.values()) {
-                try {
-                    conn.close();
-                } catch (IOException e) {
-                    Logger.getLogger(CBGNConnection.class.getName()).log(Level.SEVERE, null, e);
-                }
+    // returns the connections a message from the sender is echoed to
+    private Iterable<CBGNConnection> echoTargets(CBGNConnection sender) {
+        CBGNRoom[] senderRooms = sender == null ? new CBGNRoom[0] : sender.getRooms();
+        if (senderRooms.length == 0) {
+            return Arrays.asList(connections.snapshot());
+        }
+        if (senderRooms.length == 1) {
+            return Arrays.asList(senderRooms[0].getMembers());
+        }
+        IdentityHashMap<CBGNConnection, Boolean> targets = new IdentityHashMap<>();
+        for (CBGNRoom room : senderRooms) {
+            for (CBGNConnection conn : room.getMembers()) {
+                targets.put(conn, Boolean.TRUE);
             }
         }
+        return targets.keySet();
     }
 
     /**
+     * Returns the connection whose UDP datagrams come from the passed address.
      *
-     * @param event the GameEvent to send
-     * @throws IOException if there is an exception handing the write
+     * @param address the address a datagram came from
+     * @return the connection, or null if there isn't one
      */
-    private void broadcastMessage(GameEvent event) throws IOException {
-        for (CBGNConnection conn : connections.values()) {
-            conn.sendMessage(event.toString());
-        }
+    CBGNConnection getConnection(SocketAddress address) {
+        return connections.getByUDPAddress(address);
     }
 
     /**
+     * Binds the connection with the passed session token to the passed UDP
+     * address. From then on, datagrams from that address are attributed to
+     * the connection, and UDP sent to the connection goes to that address.
      *
-     * @param event the GameEvent to send
-     * @throws IOException if there is an exception handing the write
+     * @param token the session token the client sent
+     * @param address the address its datagram came from
+     * @return the connection bound, or null if the token doesn't match one
      */
-    private void broadcastUDPMessage(GameEvent event) throws IOException {
-        for (CBGNConnection conn : connections.values()) {
-            udpConn.sendUDPMessage(conn.clientSocket.getInetAddress(), this.udpBroadcastPort, event.toString());
+    CBGNConnection bindUDPAddress(String token, SocketAddress address) {
+        CBGNConnection conn = connections.getByToken(token);
+        if (conn != null) {
+            connections.bindUDPAddress(conn, address);
         }
+        return conn;
     }
 
     /**
@@ -180,7 +1529,22 @@ public class CBGNServer implements Runnable {
      * @throws IOException if there is an exception handing the write
      */
     public void broadcastMessage(HashMap<String, String> data) throws IOException {
-        broadcastMessage(new GameEvent(data));
+        broadcastMessage(new GameEvent(data), Arrays.asList(connections.snapshot()));
+    }
+
+    /**
+     * Broadcasts the passed data to every connection in the named room. If
+     * the room doesn't exist, nothing is sent.
+     *
+     * @param room the name of the room to send to
+     * @param data a map of string key/value pairs to send
+     * @throws IOException if there is an exception handing the write
+     */
+    public void broadcastMessage(String room, HashMap<String, String> data) throws IOException {
+        CBGNRoom r = rooms.get(room);
+        if (r != null) {
+            broadcastMessage(new GameEvent(data), Arrays.asList(r.getMembers()));
+        }
     }
 
     /**
@@ -192,7 +1556,173 @@ public class CBGNServer implements Runnable {
      * @throws IOException if there is an exception handing the write
      */
     public void broadcastUDPMessage(HashMap<String, String> data) throws IOException {
-        broadcastUDPMessage(new GameEvent(data));
+        broadcastUDPMessage(new GameEvent(data), Arrays.asList(connections.snapshot()));
+    }
+
+    /**
+     * Broadcasts the passed data to every connection in the named room over
+     * UDP. If the room doesn't exist, nothing is sent.
+     *
+     * @param room the name of the room to send to
+     * @param data a map of string key/value pairs to send
+     * @throws IOException if there is an exception handing the write
+     */
+    public void broadcastUDPMessage(String room, HashMap<String, String> data) throws IOException {
+        CBGNRoom r = rooms.get(room);
+        if (r != null) {
+            broadcastUDPMessage(new GameEvent(data), Arrays.asList(r.getMembers()));
+        }
+    }
+
+    /**
+     * Broadcasts the passed data over UDP to every connection as the next
+     * message on the passed stream. Connections drop it if they've already
+     * had a newer message on the same stream, so only ever the latest state
+     * is handed on; like any UDP message, it may not arrive at all.
+     *
+     * @param stream the name of the stream, such as "positions"
+     * @param data a map of string key/value pairs to send
+     * @throws IOException if there is an exception handing the write
+     */
+    public void broadcastSequencedUDPMessage(String stream, HashMap<String, String> data) throws IOException {
+        broadcastUDPMessage(new GameEvent(sequenced.wrap(stream, data)), Arrays.asList(connections.snapshot()));
+    }
+
+    /**
+     * Sends the passed data over UDP to the connection with the passed ID as
+     * the next message on the passed stream.
+     *
+     * @param id the connection's ID
+     * @param stream the name of the stream
+     * @param data a map of string key/value pairs to send
+     * @return false if there's no such connection
+     * @throws IOException if there is an exception handing the write
+     * @see #broadcastSequencedUDPMessage(String, HashMap)
+     */
+    public boolean sendSequencedUDPMessage(int id, String stream, HashMap<String, String> data) throws IOException {
+        CBGNConnection conn = connections.get(id);
+        if (conn == null) {
+            return false;
+        }
+        sendDatagram(conn, new GameEvent(sequenced.wrap(stream, data)).toDatagram());
+        return true;
+    }
+
+    /**
+     * Sends the passed state over UDP to the connection with the passed ID as
+     * a snapshot. Once the client has acknowledged an earlier snapshot, only
+     * the keys that changed since then are sent; if it hasn't acknowledged
+     * one in a while, the full state is. The client always hands the full
+     * state to its listener's onClientUDPMessage, and never hands on a
+     * snapshot older than one it already has. Keys with null values are
+     * left out.
+     *
+     * A snapshot has to fit in one datagram of at most the size set with
+     * setMaxDatagramSize(). One that doesn't is logged and dropped, as if it
+     * had been lost, so a state too big to ever send in full never reaches
+     * the client.
+     *
+     * @param id the connection's ID
+     * @param state the full state to send
+     * @return false if there's no such connection
+     * @throws IOException if there is an exception handing the write
+     */
+    public boolean sendSnapshot(int id, HashMap<String, String> state) throws IOException {
+        CBGNConnection conn = connections.get(id);
+        if (conn == null) {
+            return false;
+        }
+        sendSnapshot(conn, state);
+        return true;
+    }
+
+    /**
+     * Sends the passed state to every connection as a snapshot. Each
+     * connection is sent a delta against the last snapshot it acknowledged,
+     * and snapshots too big for one datagram are dropped as for
+     * sendSnapshot().
+     *
+     * @param state the full state to send
+     * @throws IOException if there is an exception handing the write
+     * @see #sendSnapshot(int, HashMap)
+     */
+    public void broadcastSnapshot(HashMap<String, String> state) throws IOException {
+        for (CBGNConnection conn : connections.snapshot()) {
+            try {
+                sendSnapshot(conn, state);
+            } catch (IOException e) {
+                recipientFailed(conn, e);
+            }
+        }
+    }
+
+    // logs a broadcast that couldn't be handed to one of its recipients
+    private static void recipientFailed(CBGNConnection conn, IOException e) {
+        Logger.getLogger(CBGNServer.class.getName()).log(Level.FINE,
+                "Couldn't send a broadcast to connection " + conn.name + ", skipping it.", e);
+    }
+
+    // sends the next snapshot to a single connection, dropping it if it's too
+    // big for one datagram. The client never acknowledges a dropped snapshot,
+    // so later deltas are still against one it has.
+    private void sendSnapshot(CBGNConnection conn, HashMap<String, String> state) throws IOException {
+        byte[] payload = new GameEvent(conn.getSnapshotSender().encode(state)).toDatagram();
+        if (payload.length > maxDatagramSize) {
+            Logger.getLogger(CBGNServer.class.getName()).log(Level.WARNING,
+                    "Dropped a {0,number,#} byte snapshot to connection {1}, bigger than {2,number,#} bytes.",
+                    new Object[]{payload.length, conn.name, maxDatagramSize});
+            return;
+        }
+        sendDatagram(conn, payload);
+    }
+
+    /**
+     * Broadcasts the passed data reliably over UDP to every connection. Each
+     * connection gets it exactly once, in the order reliable messages were
+     * sent to it, without waiting on TCP traffic.
+     *
+     * @param data a map of string key/value pairs to send
+     * @throws IOException if there is an exception handing the write
+     */
+    public void broadcastReliableUDPMessage(HashMap<String, String> data) throws IOException {
+        broadcastReliableUDPMessage(data, Arrays.asList(connections.snapshot()));
+    }
+
+    /**
+     * Sends the passed data reliably over UDP to the connection with the
+     * passed ID only.
+     *
+     * @param id the connection's ID
+     * @param data a map of string key/value pairs to send
+     * @return false if there's no such connection
+     * @throws IOException if there is an exception handing the write
+     */
+    public boolean sendReliableUDPMessage(int id, HashMap<String, String> data) throws IOException {
+        CBGNConnection conn = connections.get(id);
+        if (conn == null) {
+            return false;
+        }
+        conn.getReliableChannel().send(data);
+        return true;
+    }
+
+    /**
+     * Broadcasts the passed data over UDP to every connection whose area of
+     * interest contains the passed position. Connections without an area of
+     * interest don't get it.
+     *
+     * @param x the x coordinate the data is about
+     * @param y the y coordinate the data is about
+     * @param data a map of string key/value pairs to send
+     * @throws IOException if there is an exception handing the write
+     * @see #setInterest(Socket, float, float, float)
+     */
+    public void broadcastUDPMessage(float x, float y, HashMap<String, String> data) throws IOException {
+        ArrayList<CBGNConnection> targets = new ArrayList<>();
+        interestGrid.query(x, y, targets);
+        if (!targets.isEmpty()) {
+            broadcastUDPMessage(new GameEvent(data), targets);
+        }
     }
 
     /**
@@ -228,36 +1758,177 @@ class CBGNServerConnectionAdapter extends CBGNConnectionListener {
         this.server = server;
     }
 
+    // logs a message that couldn't be sent on from a reading thread
+    private static void sendFailed(IOException e) {
+        Logger.getLogger(CBGNServer.class.getName()).log(Level.WARNING, "Server error sending message.", e);
+    }
+
     //
     @Override
-    protected void onMessage(CBGNConnection conn, HashMap<String, String> data) {
-        try {
-            server.listener.onMessage(data);
-            server.broadcastMessage(data);
-        } catch (IOException e) {
-            System.out.println("Server error sending message: " + e.getMessage());
-        }
+    protected void onMessage(final CBGNConnection conn, final HashMap<String, String> data) {
+        server.deliver(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    server.handOn(CBGNEvent.Type.MESSAGE, conn, data);
+                    server.echoMessage(conn, data);
+                } catch (IOException e) {
+                    sendFailed(e);
+                }
+            }
+        });
     }
 
     //
     @Override
     protected void onUDPMessage(CBGNConnection conn, HashMap<String, String> data) {
-        try {
-            if (data != null) {
-                server.listener.onUDPMessage(data);
-                server.broadcastUDPMessage(data);
-            } else {
-                System.out.println("Server received UDP message, but it was bad.");
+        onUDPMessage(conn, null, data);
+    }
+
+    //
+    @Override
+    protected void onUDPMessage(CBGNConnection conn, SocketAddress source, final HashMap<String, String> data) {
+        if (data == null) {
+            // the connection has already logged why
+            return;
+        }
+        final CBGNConnection sender = server.getConnection(source);
+        if (sender != null) {
+            sender.heard();
+        }
+        server.deliver(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    server.handOn(CBGNEvent.Type.UDP_MESSAGE, sender, data);
+                    server.echoUDPMessage(sender, data);
+                } catch (IOException e) {
+                    sendFailed(e);
+                }
+            }
+        });
+    }
+
+    //
+    @Override
+    protected void onUDPControlMessage(CBGNConnection conn, SocketAddress source, String type, HashMap<String, String> data) {
+        // any datagram from a bound address shows its client is still there
+        final CBGNConnection sender = server.getConnection(source);
+        if (sender != null) {
+            sender.heard();
+        }
+        if (CBGNProtocol.RELIABLE.equals(type) || CBGNProtocol.ACK.equals(type)) {
+            // reliable traffic only counts once the sender has bound its address
+            if (sender == null) {
+                return;
+            }
+            final ArrayList<HashMap<String, String>> delivered = new ArrayList<>(1);
+            sender.getReliableChannel().receive(data, delivered);
+            if (delivered.isEmpty()) {
+                return;
+            }
+            server.deliver(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (HashMap<String, String> message : delivered) {
+                            server.handOn(CBGNEvent.Type.RELIABLE_UDP_MESSAGE, sender, message);
+                            server.echoReliableUDPMessage(sender, message);
+                        }
+                    } catch (IOException e) {
+                        sendFailed(e);
+                    }
+                }
+            });
+        } else if (CBGNProtocol.SNAPSHOT_ACK.equals(type)) {
+            String number = data.get(CBGNProtocol.SEQ);
+            if (sender != null && number != null) {
+                try {
+                    sender.getSnapshotSender().acknowledge(Integer.parseInt(number));
+                } catch (NumberFormatException e) {
+                    // a garbled ack is the same as a lost one
+                }
+            }
+        } else if (CBGNProtocol.SEQUENCED.equals(type)) {
+            // streams are tracked per sender, so the sender has to be bound
+            final String stream = data.get(CBGNProtocol.STREAM);
+            final HashMap<String, String> message = sender == null ? null : sender.getSequencedStreams().receive(data);
+            if (message == null) {
+                return;
+            }
+            server.deliver(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        server.handOn(CBGNEvent.Type.UDP_MESSAGE, sender, message);
+                        server.echoSequencedUDPMessage(sender, stream, message);
+                    } catch (IOException e) {
+                        sendFailed(e);
+                    }
+                }
+            });
+        } else if (CBGNProtocol.BIND.equals(type)) {
+            CBGNConnection bound = server.bindUDPAddress(data.get(CBGNProtocol.TOKEN), source);
+            if (bound != null) {
+                // the client keeps resending its bind until this arrives
+                HashMap<String, String> ack = new HashMap<>();
+                ack.put(CBGNProtocol.CONTROL, CBGNProtocol.BOUND);
+                try {
+                    bound.sendMessage(ack);
+                    bound.flush();
+                } catch (IOException e) {
+                    sendFailed(e);
+                }
             }
-        } catch (IOException e) {
-            System.out.println("Server error sending message: " + e.getMessage());
         }
     }
 
     //
     @Override
-    protected void onConnectionClosed(CBGNConnection conn, String reason) {
-        server.listener.onConnectionClosed(conn.clientSocket, new CBGNException(reason));
+    protected void onConnectionClosed(final CBGNConnection conn, final String reason) {
+        server.deliver(new Runnable() {
+            @Override
+            public void run() {
+                server.handOnClosed(conn, reason);
+            }
+        });
         server.removeConnection(conn.clientSocket);
     }
+
+    //
+    @Override
+    protected void onOutboundOverflow(final CBGNConnection conn, final CBGNOverflowPolicy policy) {
+        // this is on the sending thread, which may be the game's own or a
+        // selector loop, so it's handed on like everything else
+        server.deliver(new Runnable() {
+            @Override
+            public void run() {
+                server.handOnSlow(conn, policy);
+            }
+        });
+    }
+
+    //
+    @Override
+    protected void onControlMessage(CBGNConnection conn, String type, HashMap<String, String> data) {
+        if (CBGNProtocol.HELLO.equals(type)) {
+            // clients asking for a codec we don't have get to keep JSON
+            CBGNCodec codec = server.getCodec(data.get(CBGNProtocol.CODEC));
+            CBGNCompression compression = server.getCompression();
+            if (compression != null && !compression.getName().equals(data.get(CBGNProtocol.COMPRESSION))) {
+                compression = null;
+            }
+            if ("1".equals(data.get(CBGNProtocol.HEARTBEAT))) {
+                conn.getHeartbeat().setAnswersPings(true);
+            }
+            try {
+                conn.acceptCodec(codec == null ? CBGNCodec.JSON : codec,
+                        "1".equals(data.get(CBGNProtocol.DICTIONARY)) ? server.getKeyDictionary() : null, compression);
+            } catch (IOException e) {
+                sendFailed(e);
+            }
+        } else if (CBGNProtocol.PONG.equals(type)) {
+            server.onPong(conn, data);
+        }
+    }
 }
@@ -39,6 +39,14 @@ public interface CBGNServerListener {
      */
     public void onUDPMessage(HashMap<String, String> data);
 
+    /**
+     * Called by the server when it receives a GameEvent sent reliably over
+     * UDP. These arrive exactly once and in the order each client sent them.
+     *
+     * @param data the data received by the server, presumably from a client.
+     */
+    public void onReliableUDPMessage(HashMap<String, String> data);
+
     /**
      * Called when the server's connection to the socket is closed for some
      * reason. The reason is detailed in the parameters.
@@ -48,6 +56,20 @@ public interface CBGNServerListener {
      */
     public void onConnectionClosed(Socket socket, CBGNException reason);
 
+    /**
+     * Called when a connection isn't reading fast enough and its outbound
+     * queue has filled up. This is called once each time a connection falls
+     * behind, not for every message dropped. If the policy is DISCONNECT, the
+     * connection is closed right after, and onConnectionClosed follows this
+     * call. Like the other callbacks, this is called on the tick thread if
+     * the server ticks, and not at all if it has an event queue, which gets
+     * a SLOW event instead.
+     *
+     * @param socket the socket that can't keep up
+     * @param policy what the server is doing about it
+     */
+    public void onSlowConnection(Socket socket, CBGNOverflowPolicy policy);
+
     /**
      * Called by the server when it stops, either for an error or because of
      * normal termination (in which case the passed exception will be null).
@@ -0,0 +1,112 @@
+package networking;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The CBGNSnapshotReceiver class rebuilds full state snapshots from the deltas
+ * a CBGNSnapshotSender sends. It remembers the last few snapshots it rebuilt,
+ * so a delta against any of them can be applied; a delta against a snapshot
+ * it never got is dropped, and the sender falls back to a full snapshot once
+ * it notices no acks are coming back. Snapshots older than the newest one
+ * rebuilt are still kept as baselines but aren't handed on.
+ *
+ * @author Chris
+ */
+final class CBGNSnapshotReceiver {
+
+    private final int[] numbers;
+    private final ArrayList<HashMap<String, String>> received;
+
+    // the newest snapshot handed on, or -1
+    private int newest;
+
+    /**
+     * Creates a new CBGNSnapshotReceiver with nothing received.
+     */
+    CBGNSnapshotReceiver() {
+        this.numbers = new int[CBGNSnapshotSender.HISTORY];
+        this.received = new ArrayList<>(Collections.<HashMap<String, String>>nCopies(CBGNSnapshotSender.HISTORY, null));
+        this.newest = -1;
+    }
+
+    /**
+     * Rebuilds the full state from a snapshot datagram.
+     *
+     * @param datagram the datagram received
+     * @return the number of the snapshot rebuilt, to acknowledge, or -1 if
+     * it couldn't be
+     */
+    synchronized int receive(HashMap<String, String> datagram) {
+        Integer number = parse(datagram.remove(CBGNProtocol.SEQ));
+        String baseline = datagram.remove(CBGNProtocol.BASELINE);
+        datagram.remove(CBGNProtocol.CONTROL);
+        if (number == null || number < 0) {
+            return -1;
+        }
+
+        HashMap<String, String> snapshot;
+        if (baseline == null) {
+            snapshot = datagram;
+        } else {
+            Integer base = parse(baseline);
+            HashMap<String, String> previous = base == null ? null : remembered(base);
+            if (previous == null) {
+                return -1;
+            }
+            snapshot = new HashMap<>(previous);
+            for (Map.Entry<String, String> entry : datagram.entrySet()) {
+                if (entry.getValue() == null) {
+                    snapshot.remove(entry.getKey());
+                } else {
+                    snapshot.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        int slot = number & (CBGNSnapshotSender.HISTORY - 1);
+        numbers[slot] = number;
+        received.set(slot, snapshot);
+        return number;
+    }
+
+    /**
+     * Returns the passed snapshot if it's newer than every snapshot returned
+     * before, so that stale state is never handed on.
+     *
+     * @param number the number of a snapshot just rebuilt
+     * @return a copy of the snapshot, or null if a newer one has already been
+     * handed on
+     */
+    synchronized HashMap<String, String> take(int number) {
+        if (newest >= 0 && number - newest <= 0) {
+            return null;
+        }
+        HashMap<String, String> snapshot = remembered(number);
+        if (snapshot == null) {
+            return null;
+        }
+        newest = number;
+        // the listener is free to change it, but the baseline mustn't change
+        return new HashMap<>(snapshot);
+    }
+
+    // returns the snapshot rebuilt with the passed number, or null if it's
+    // been overwritten or never arrived
+    private HashMap<String, String> remembered(int number) {
+        int slot = number & (CBGNSnapshotSender.HISTORY - 1);
+        return numbers[slot] == number ? received.get(slot) : null;
+    }
+
+    private static Integer parse(String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Integer.valueOf(value);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
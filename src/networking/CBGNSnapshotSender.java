@@ -0,0 +1,110 @@
+package networking;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The CBGNSnapshotSender class turns a stream of full state snapshots for one
+ * client into deltas. It remembers the last few snapshots it sent, and once
+ * the client acknowledges one of them, later snapshots only carry the keys
+ * that changed since that one, with removed keys sent as null. If the client
+ * hasn't acknowledged any snapshot that's still remembered, for instance
+ * because its acks were lost, the next snapshot goes out in full.
+ *
+ * Null values have no meaning in a snapshot; keys with null values are left
+ * out.
+ *
+ * @author Chris
+ */
+final class CBGNSnapshotSender {
+
+    // how many sent snapshots are remembered as possible baselines
+    static final int HISTORY = 32;
+
+    private final int[] numbers;
+    private final ArrayList<HashMap<String, String>> sent;
+    private int next;
+
+    // the newest snapshot the client has acknowledged, or -1
+    private int baseline;
+
+    /**
+     * Creates a new CBGNSnapshotSender with nothing sent.
+     */
+    CBGNSnapshotSender() {
+        this.numbers = new int[HISTORY];
+        this.sent = new ArrayList<>(Collections.<HashMap<String, String>>nCopies(HISTORY, null));
+        this.baseline = -1;
+    }
+
+    /**
+     * Builds the datagram for the next snapshot of the passed state, as a
+     * delta against the newest acknowledged snapshot if it's still
+     * remembered, or in full otherwise.
+     *
+     * @param state the full state to send
+     * @return the datagram to send
+     */
+    synchronized HashMap<String, String> encode(Map<String, String> state) {
+        int number = next++;
+        HashMap<String, String> snapshot = new HashMap<>(state.size());
+        for (Map.Entry<String, String> entry : state.entrySet()) {
+            if (entry.getValue() != null) {
+                snapshot.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        HashMap<String, String> base = remembered(baseline);
+        HashMap<String, String> datagram;
+        if (base == null) {
+            datagram = new HashMap<>(snapshot);
+        } else {
+            datagram = new HashMap<>();
+            for (Map.Entry<String, String> entry : snapshot.entrySet()) {
+                if (!entry.getValue().equals(base.get(entry.getKey()))) {
+                    datagram.put(entry.getKey(), entry.getValue());
+                }
+            }
+            for (String key : base.keySet()) {
+                if (!snapshot.containsKey(key)) {
+                    datagram.put(key, null);
+                }
+            }
+            datagram.put(CBGNProtocol.BASELINE, Integer.toString(baseline));
+        }
+        datagram.put(CBGNProtocol.CONTROL, CBGNProtocol.SNAPSHOT);
+        datagram.put(CBGNProtocol.SEQ, Integer.toString(number));
+
+        numbers[number & (HISTORY - 1)] = number;
+        sent.set(number & (HISTORY - 1), snapshot);
+        return datagram;
+    }
+
+    /**
+     * Records that the client has the passed snapshot, making it the baseline
+     * for later deltas if it's newer than the current one.
+     *
+     * @param number the number of the snapshot acknowledged
+     */
+    synchronized void acknowledge(int number) {
+        // acks for snapshots never sent are ignored
+        if (number - next >= 0 || remembered(number) == null) {
+            return;
+        }
+        if (baseline < 0 || number - baseline > 0) {
+            baseline = number;
+        }
+    }
+
+    // returns the snapshot sent with the passed number, or null if it's
+    // fallen out of the history
+    private HashMap<String, String> remembered(int number) {
+        if (number < 0 || next - number > HISTORY) {
+            return null;
+        }
+        int slot = number & (HISTORY - 1);
+        return numbers[slot] == number ? sent.get(slot) : null;
+    }
+}
@@ -0,0 +1,24 @@
+package networking;
+
+import java.util.concurrent.Executor;
+
+/**
+ * The CBGNThreadPerTaskExecutor class is the default Executor for servers and
+ * clients. It starts a new platform Thread for every task, which is how
+ * connections have always been run.
+ *
+ * @author Chris
+ */
+final class CBGNThreadPerTaskExecutor implements Executor {
+
+    // shared, since this executor doesn't keep any state
+    static final CBGNThreadPerTaskExecutor INSTANCE = new CBGNThreadPerTaskExecutor();
+
+    private CBGNThreadPerTaskExecutor() {
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        new Thread(task).start();
+    }
+}
@@ -0,0 +1,23 @@
+package networking;
+
+/**
+ * The CBGNTickListener interface runs a game's simulation step when the
+ * server is ticking. Every tick, the server first hands on the messages that
+ * arrived since the last tick, then calls onTick, then writes everything
+ * that was sent during the tick in one go. All of that happens on the one
+ * tick thread, so game state touched only from the listeners doesn't need
+ * locking.
+ *
+ * @author Chris
+ */
+public interface CBGNTickListener {
+
+    /**
+     * Called once per tick, after the messages received since the last tick
+     * have been handed on and before anything sent is written.
+     *
+     * @param tick the number of this tick, counting from 0
+     * @param step the fixed length of a tick, in seconds
+     */
+    public void onTick(long tick, float step);
+}
@@ -0,0 +1,177 @@
+package networking;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The CBGNTimingWheel class runs tasks after a delay, for timers that are
+ * set often and rarely need to be exact, such as a heartbeat for every
+ * connection. Time is cut into ticks, and each task goes into the slot of the
+ * wheel for the tick it's due on, so setting a timer and firing one are both
+ * constant time however many there are, and a single thread serves them all.
+ * A task runs on the first tick after it's due, so it may run up to one tick
+ * late.
+ *
+ * Tasks delayed by more than a full turn of the wheel wait out the extra
+ * turns in their slot. Tasks run on the wheel's thread, so they should hand
+ * off anything slow.
+ *
+ * @author Chris
+ */
+final class CBGNTimingWheel implements Runnable {
+
+    private final long tickNanos;
+    private final Timeout[] slots;
+    private final int mask;
+
+    // tasks scheduled since the last tick, placed on the wheel by its thread
+    private final ConcurrentLinkedQueue<Timeout> pending;
+
+    // when the wheel started, and the number of ticks it has run
+    private final long start;
+    private long tick;
+
+    private volatile boolean running;
+
+    /**
+     * Creates a new CBGNTimingWheel. It starts turning when it's run.
+     *
+     * @param tick how long each tick is
+     * @param unit the unit of tick
+     * @param slots the number of slots, rounded up to a power of two
+     */
+    CBGNTimingWheel(long tick, TimeUnit unit, int slots) {
+        if (tick <= 0) {
+            throw new IllegalArgumentException("Tick must be positive.");
+        }
+        if (slots < 1 || slots > 1 << 20) {
+            throw new IllegalArgumentException("Slots must be from 1 to " + (1 << 20) + ".");
+        }
+        int size = 1;
+        while (size < slots) {
+            size <<= 1;
+        }
+        this.tickNanos = unit.toNanos(tick);
+        this.slots = new Timeout[size];
+        this.mask = size - 1;
+        this.pending = new ConcurrentLinkedQueue<>();
+        this.start = System.nanoTime();
+        this.running = true;
+    }
+
+    /**
+     * Runs the passed task once the passed delay has passed. This can be
+     * called from any thread, including from a task.
+     *
+     * @param task the task to run
+     * @param delay how long to wait
+     * @param unit the unit of delay
+     * @return the timeout, which can be cancelled
+     */
+    Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(task, System.nanoTime() + unit.toNanos(Math.max(0, delay)));
+        pending.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Stops the wheel. Tasks that haven't run yet never will.
+     */
+    void stop() {
+        running = false;
+    }
+
+    /**
+     * Ticks until stop() is called, running each task as it comes due.
+     */
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                long wait = start + (tick + 1) * tickNanos - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                placePending();
+                expire((int) (tick & mask));
+                tick++;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // puts every newly scheduled task in the slot for the tick it's due on
+    private void placePending() {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            // tick n runs once start + (n + 1) ticks have passed, so this is
+            // the first tick at or after the deadline; anything overdue goes
+            // on this one
+            long due = Math.max(tick, (timeout.deadline - start + tickNanos - 1) / tickNanos - 1);
+            timeout.rounds = (due - tick) / slots.length;
+            int slot = (int) (due & mask);
+            timeout.next = slots[slot];
+            slots[slot] = timeout;
+        }
+    }
+
+    // runs the tasks in the passed slot that are due on this turn
+    private void expire(int slot) {
+        Timeout previous = null;
+        Timeout timeout = slots[slot];
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (!timeout.cancelled && timeout.rounds > 0) {
+                timeout.rounds--;
+                previous = timeout;
+            } else {
+                if (previous == null) {
+                    slots[slot] = next;
+                } else {
+                    previous.next = next;
+                }
+                timeout.next = null;
+                if (!timeout.cancelled) {
+                    try {
+                        timeout.task.run();
+                    } catch (RuntimeException e) {
+                        Logger.getLogger(CBGNTimingWheel.class.getName()).log(Level.SEVERE, null, e);
+                    }
+                }
+            }
+            timeout = next;
+        }
+    }
+
+    /**
+     * A task waiting on the wheel.
+     */
+    static final class Timeout {
+
+        final Runnable task;
+        final long deadline;
+        private volatile boolean cancelled;
+
+        // only touched by the wheel's thread
+        long rounds;
+        Timeout next;
+
+        Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Stops the task from running, if it hasn't already.
+         */
+        void cancel() {
+            cancelled = true;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package networking;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The CBGNTrace class logs a sample of the packets the networking package
+ * sends and receives, for when the normal logging doesn't say enough about
+ * what's on the wire. Tracing is off by default, and while it's off the only
+ * cost on the send and receive paths is reading one field.
+ *
+ * When it's on, one packet in every N is logged at INFO to the
+ * "networking.packets" logger, one line per packet in the form
+ *
+ * <pre>udp.out peer=/127.0.0.1:1778 bytes=58</pre>
+ *
+ * where the first word is tcp.in, tcp.out, udp.in or udp.out. Received
+ * control messages also get a control= field. Sampling can be turned on
+ * while running with setPacketSampling(), or from the start with the
+ * networking.trace.packets system property, as in
+ * -Dnetworking.trace.packets=100.
+ *
+ * Everything else the networking package has to say goes through
+ * java.util.logging as usual: problems at WARNING or SEVERE, and routine
+ * events like connections opening at FINE.
+ *
+ * @author Chris
+ */
+public final class CBGNTrace {
+
+    // where packet traces go
+    private static final Logger PACKETS = Logger.getLogger("networking.packets");
+
+    // one packet in this many is traced, or none if it's 0
+    private static volatile int sampling = Math.max(0, Integer.getInteger("networking.trace.packets", 0));
+
+    private CBGNTrace() {
+    }
+
+    /**
+     * Sets how many packets go by for every one that's traced. 1 traces every
+     * packet, and 0 turns tracing off.
+     *
+     * @param oneIn the sampling interval, or 0 for none
+     */
+    public static void setPacketSampling(int oneIn) {
+        if (oneIn < 0) {
+            throw new IllegalArgumentException("Packet sampling cannot be negative.");
+        }
+        sampling = oneIn;
+    }
+
+    /**
+     * Returns how many packets go by for every one that's traced, or 0 if
+     * tracing is off.
+     *
+     * @return the sampling interval
+     */
+    public static int getPacketSampling() {
+        return sampling;
+    }
+
+    /**
+     * Returns whether the next packet should be traced. Callers check this
+     * before building anything to trace, so a packet that isn't traced costs
+     * nothing more.
+     *
+     * @return true to trace the next packet
+     */
+    static boolean sample() {
+        int oneIn = sampling;
+        return oneIn != 0 && (oneIn == 1 || ThreadLocalRandom.current().nextInt(oneIn) == 0);
+    }
+
+    /**
+     * Traces one packet. Only call this after sample() returned true.
+     *
+     * @param event tcp.in, tcp.out, udp.in or udp.out
+     * @param peer who the packet came from or went to
+     * @param bytes the size of the packet
+     * @param control the type of a control message received, or null
+     */
+    static void packet(String event, Object peer, int bytes, String control) {
+        if (control == null) {
+            PACKETS.log(Level.INFO, "{0} peer={1} bytes={2,number,#}", new Object[]{event, peer, bytes});
+        } else {
+            PACKETS.log(Level.INFO, "{0} peer={1} bytes={2,number,#} control={3}", new Object[]{event, peer, bytes, control});
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package networking;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The CBGNUTF8 class writes and reads UTF-8 straight to and from the codecs'
+ * streams and buffers, so encoding a message doesn't need a byte array for
+ * every String in it.
+ *
+ * @author Chris
+ */
+final class CBGNUTF8 {
+
+    // bytes copied out of direct buffers before decoding, kept per thread so
+    // reading from a direct buffer doesn't need a new array for every String
+    private static final ThreadLocal<byte[]> SCRATCH = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[256];
+        }
+    };
+
+    // keys decoded recently on this thread. Messages use the same few keys
+    // over and over, so a key found here is handed back as the same String
+    // instead of being decoded again.
+    private static final ThreadLocal<KeyCache> KEYS = new ThreadLocal<KeyCache>() {
+        @Override
+        protected KeyCache initialValue() {
+            return new KeyCache();
+        }
+    };
+
+    // keys longer than this are always decoded
+    private static final int MAX_CACHED_KEY = 32;
+
+    private CBGNUTF8() {
+    }
+
+    /**
+     * Returns the number of bytes the passed String takes up in UTF-8.
+     *
+     * @param s the String to measure
+     * @return its length in UTF-8
+     */
+    static int length(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (isPair(s, i)) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Writes the passed String to the passed stream as UTF-8.
+     *
+     * @param s the String to write
+     * @param out the stream to write to
+     * @throws IOException if writing fails
+     */
+    static void write(String s, OutputStream out) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            i = write(s, i, out);
+        }
+    }
+
+    /**
+     * Writes the char at the passed index as UTF-8, along with the following
+     * char if the two make up a surrogate pair. An unpaired surrogate is
+     * written as U+FFFD, which takes up the 3 bytes length() counts for it.
+     *
+     * @param s the String to write from
+     * @param i the index of the char to write
+     * @param out the stream to write to
+     * @return the index of the last char written
+     * @throws IOException if writing fails
+     */
+    static int write(String s, int i, OutputStream out) throws IOException {
+        char c = s.charAt(i);
+        if (c < 0x80) {
+            out.write(c);
+        } else if (c < 0x800) {
+            out.write(0xC0 | (c >> 6));
+            out.write(0x80 | (c & 0x3F));
+        } else if (isPair(s, i)) {
+            int cp = Character.toCodePoint(c, s.charAt(++i));
+            out.write(0xF0 | (cp >> 18));
+            out.write(0x80 | ((cp >> 12) & 0x3F));
+            out.write(0x80 | ((cp >> 6) & 0x3F));
+            out.write(0x80 | (cp & 0x3F));
+        } else if (Character.isSurrogate(c)) {
+            out.write(0xEF);
+            out.write(0xBF);
+            out.write(0xBD);
+        } else {
+            out.write(0xE0 | (c >> 12));
+            out.write(0x80 | ((c >> 6) & 0x3F));
+            out.write(0x80 | (c & 0x3F));
+        }
+        return i;
+    }
+
+    /**
+     * Reads the passed number of bytes from the buffer as a UTF-8 String.
+     *
+     * @param in the buffer to read from
+     * @param length the number of bytes to read
+     * @return the decoded String
+     */
+    static String read(ByteBuffer in, int length) {
+        String s;
+        if (in.hasArray()) {
+            s = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+        } else {
+            byte[] bytes = scratch(length);
+            in.get(bytes, 0, length);
+            s = new String(bytes, 0, length, StandardCharsets.UTF_8);
+        }
+        return s;
+    }
+
+    /**
+     * Reads the passed range of the buffer as a UTF-8 String, without moving
+     * the buffer's position.
+     *
+     * @param in the buffer to read from
+     * @param index the index of the first byte
+     * @param length the number of bytes to read
+     * @return the decoded String
+     */
+    static String read(ByteBuffer in, int index, int length) {
+        if (in.hasArray()) {
+            return new String(in.array(), in.arrayOffset() + index, length, StandardCharsets.UTF_8);
+        }
+        byte[] bytes = scratch(length);
+        for (int i = 0; i < length; i++) {
+            bytes[i] = in.get(index + i);
+        }
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads the passed range of the buffer as a UTF-8 map key, without moving
+     * the buffer's position. Short keys that were read recently on the same
+     * thread are returned as the same String, so maps decoded one after the
+     * other share their key objects.
+     *
+     * @param in the buffer to read from
+     * @param index the index of the first byte
+     * @param length the number of bytes to read
+     * @return the decoded key
+     */
+    static String readKey(ByteBuffer in, int index, int length) {
+        if (length > MAX_CACHED_KEY) {
+            return read(in, index, length);
+        }
+        return KEYS.get().get(in, index, length);
+    }
+
+    /**
+     * Reads the next bytes of the buffer as a UTF-8 map key, moving the
+     * buffer's position past them.
+     *
+     * @param in the buffer to read from
+     * @param length the number of bytes to read
+     * @return the decoded key
+     * @see #readKey(ByteBuffer, int, int)
+     */
+    static String readKey(ByteBuffer in, int length) {
+        String key = readKey(in, in.position(), length);
+        in.position(in.position() + length);
+        return key;
+    }
+
+    // returns this thread's scratch array, grown to hold at least length bytes
+    private static byte[] scratch(int length) {
+        byte[] bytes = SCRATCH.get();
+        if (bytes.length < length) {
+            bytes = new byte[Math.max(length, bytes.length * 2)];
+            SCRATCH.set(bytes);
+        }
+        return bytes;
+    }
+
+    // a small direct-mapped cache from encoded keys to their Strings
+    private static final class KeyCache {
+
+        private static final int SIZE = 512;
+
+        private final byte[][] encoded = new byte[SIZE][];
+        private final String[] keys = new String[SIZE];
+
+        String get(ByteBuffer in, int index, int length) {
+            int hash = 0x811C9DC5;
+            for (int i = 0; i < length; i++) {
+                hash = (hash ^ (in.get(index + i) & 0xFF)) * 0x01000193;
+            }
+            int slot = (hash ^ (hash >>> 16)) & (SIZE - 1);
+
+            byte[] cached = encoded[slot];
+            if (cached != null && cached.length == length) {
+                int i = 0;
+                while (i < length && cached[i] == in.get(index + i)) {
+                    i++;
+                }
+                if (i == length) {
+                    return keys[slot];
+                }
+            }
+
+            byte[] bytes = new byte[length];
+            for (int i = 0; i < length; i++) {
+                bytes[i] = in.get(index + i);
+            }
+            String key = new String(bytes, StandardCharsets.UTF_8);
+            encoded[slot] = bytes;
+            keys[slot] = key;
+            return key;
+        }
+    }
+
+    // whether the char at i starts a valid surrogate pair
+    private static boolean isPair(String s, int i) {
+        return Character.isHighSurrogate(s.charAt(i)) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1));
+    }
+}
@@ -1,8 +1,10 @@
 package networking;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
-import java.util.Set;
-import org.json.simple.JSONObject;
+import java.util.IdentityHashMap;
 
 /**
  * The GameEvent class contains a map of events and a connection the event has
@@ -19,6 +21,25 @@ final class GameEvent {
     // the data for this GameEvent, if any
     private final HashMap<String, String> data;
 
+    // the frames this GameEvent has been encoded into so far, by codec, and
+    // its datagram form. Broadcasts encode once per codec and hand every
+    // connection a view of the same bytes.
+    private IdentityHashMap<CBGNCodec, ByteBuffer> frames;
+    private byte[] datagram;
+
+    // the frames encoded with dictionary references in place of keys, by
+    // codec, and the highest key ID they use. Only a server's dictionary is
+    // ever used, so there's one set.
+    private IdentityHashMap<CBGNCodec, ByteBuffer> keyedFrames;
+    private HashMap<String, String> keyed;
+    private int maxKeyId;
+
+    // compressed versions of the frames above, by the array of the frame
+    // they were compressed from, and the compression they were made with.
+    // Frames that don't shrink map to themselves.
+    private IdentityHashMap<byte[], ByteBuffer> compressedFrames;
+    private CBGNCompression compressedWith;
+
     /**
      * Creates a new GameEvent with the passed data.
      *
@@ -75,8 +96,131 @@ final class GameEvent {
      * @param key
      * @param value
      */
-    public void append(String key, String value) {
+    public synchronized void append(String key, String value) {
         this.data.put(key, value);
+        frames = null;
+        datagram = null;
+        keyedFrames = null;
+        keyed = null;
+        compressedFrames = null;
+    }
+
+    /**
+     * Returns this GameEvent encoded as a frame by the passed codec. The
+     * encoding is done once per codec; every call gets its own view of the
+     * same bytes, which are never modified.
+     *
+     * @param codec the codec to encode with
+     * @return a buffer holding the encoded frame
+     * @throws IOException if the codec fails to encode the data
+     */
+    synchronized ByteBuffer encode(CBGNCodec codec) throws IOException {
+        if (frames == null) {
+            frames = new IdentityHashMap<>(4);
+        }
+        ByteBuffer frame = frames.get(codec);
+        if (frame == null) {
+            CBGNOutputBuffer bytes = new CBGNOutputBuffer(128);
+            codec.encode(data, bytes);
+            frame = ByteBuffer.wrap(bytes.toByteArray());
+            frames.put(codec, frame);
+        }
+        return frame.duplicate();
+    }
+
+    /**
+     * Returns this GameEvent encoded as a frame by the passed codec, with its
+     * keys replaced by references from the passed dictionary. Like encode,
+     * this is done once per codec.
+     *
+     * @param codec the codec to encode with
+     * @param dictionary the dictionary to take references from
+     * @return a buffer holding the encoded frame
+     * @throws IOException if the codec fails to encode the data
+     * @see #getMaxKeyId()
+     */
+    synchronized ByteBuffer encode(CBGNCodec codec, CBGNKeyDictionary dictionary) throws IOException {
+        if (keyed == null) {
+            int[] max = {-1};
+            keyed = dictionary.encode(data, max);
+            maxKeyId = max[0];
+            keyedFrames = new IdentityHashMap<>(4);
+        }
+        ByteBuffer frame = keyedFrames.get(codec);
+        if (frame == null) {
+            CBGNOutputBuffer bytes = new CBGNOutputBuffer(128);
+            codec.encode(keyed, bytes);
+            frame = ByteBuffer.wrap(bytes.toByteArray());
+            keyedFrames.put(codec, frame);
+        }
+        return frame.duplicate();
+    }
+
+    /**
+     * Returns the passed frame, which must have come from one of the encode
+     * methods, compressed with the passed compressor if that makes it
+     * smaller. The result is kept, so each frame is compressed once however
+     * many connections it's sent to.
+     *
+     * @param frame a frame encoded by this GameEvent
+     * @param compression the compression the compressor belongs to
+     * @param compressor the sending connection's compressor
+     * @return the compressed frame, or the frame itself
+     * @throws IOException if compressing fails
+     */
+    synchronized ByteBuffer compress(ByteBuffer frame, CBGNCompression compression, CBGNCompressor compressor) throws IOException {
+        if (compressedFrames == null || compressedWith != compression) {
+            compressedFrames = new IdentityHashMap<>(4);
+            compressedWith = compression;
+        }
+        ByteBuffer compressed = compressedFrames.get(frame.array());
+        if (compressed == null) {
+            CBGNOutputBuffer bytes = new CBGNOutputBuffer(frame.remaining() / 2);
+            compressed = compressor.compressFrame(frame, bytes) ? ByteBuffer.wrap(bytes.toByteArray()) : frame;
+            compressedFrames.put(frame.array(), compressed);
+        }
+        return compressed.duplicate();
+    }
+
+    /**
+     * Returns the highest key ID used by the frames encoded with a
+     * dictionary, or -1 if they don't use any.
+     *
+     * @return the highest key ID used
+     */
+    synchronized int getMaxKeyId() {
+        return maxKeyId;
+    }
+
+    /**
+     * Returns whether this GameEvent is a control message rather than game
+     * data.
+     *
+     * @return true if this is a control message
+     */
+    boolean isControl() {
+        return data.containsKey(CBGNProtocol.CONTROL);
+    }
+
+    /**
+     * Returns this GameEvent as the payload of a UDP datagram, a JSON object
+     * without a trailing newline. The bytes are encoded once and shared, so
+     * they must not be modified.
+     *
+     * @return the datagram payload
+     */
+    synchronized byte[] toDatagram() {
+        if (datagram == null) {
+            CBGNOutputBuffer json = new CBGNOutputBuffer(128);
+            try {
+                CBGNJSONCodec.writeObject(data, json);
+            } catch (IOException e) {
+                // writing to a CBGNOutputBuffer can't fail
+                throw new IllegalStateException(e);
+            }
+            datagram = json.toByteArray();
+        }
+        return datagram;
     }
 
     /**
@@ -87,14 +231,6 @@ final class GameEvent {
      */
     @Override
     public String toString() {
-
-        JSONObject json = new JSONObject();
-        Set<String> set = data.keySet();
-
-        for (String key : set) {
-            json.put(key, (String) data.get(key));
-        }
-
-        return json.toJSONString();
+        return new String(toDatagram(), StandardCharsets.UTF_8);
     }
 }